@@ -0,0 +1,79 @@
+package com.noleme.flow.benchmark;
+
+import com.noleme.flow.Flow;
+import com.noleme.flow.FlowOut;
+import com.noleme.flow.impl.parallel.runtime.heap.ConcurrentHashHeap;
+import com.noleme.flow.impl.pipeline.runtime.heap.HashHeap;
+import com.noleme.flow.impl.pipeline.runtime.heap.Heap;
+import com.noleme.flow.impl.pipeline.runtime.heap.SlotHeap;
+import com.noleme.flow.impl.pipeline.runtime.heap.SlotIndex;
+import com.noleme.flow.io.input.Input;
+import com.noleme.flow.node.Node;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of a push followed by a consume on each heap implementation, over every node of a long chain.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("deprecation")
+public class HeapBenchmark
+{
+    private static final int NODES = 10_000;
+
+    @Param({ "hash", "concurrent", "slot" })
+    public String heap;
+
+    private Node[] nodes;
+    private Heap instance;
+
+    @Setup
+    public void setup()
+    {
+        this.nodes = new Node[NODES];
+
+        FlowOut<Integer> chain = Flow.from(() -> 0);
+        this.nodes[0] = (Node) chain;
+        for (int i = 1 ; i < NODES ; ++i)
+        {
+            chain = chain.pipe(value -> value);
+            this.nodes[i] = (Node) chain;
+        }
+
+        switch (this.heap)
+        {
+            case "hash":
+                this.instance = new HashHeap(Input.empty());
+                break;
+            case "concurrent":
+                this.instance = new ConcurrentHashHeap(Input.empty());
+                break;
+            case "slot":
+                this.instance = new SlotHeap(new SlotIndex(this.nodes), Input.empty());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown heap " + this.heap);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NODES)
+    public void pushConsume(Blackhole blackhole)
+    {
+        for (Node node : this.nodes)
+        {
+            this.instance.push(node, node, 1);
+            blackhole.consume(this.instance.consume(node));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.noleme.flow.benchmark;
+
+import com.noleme.flow.actor.generator.Generator;
+
+/**
+ * Generates every integer from a start value (inclusive) up to an end value (exclusive).
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public class RangeGenerator implements Generator<Integer>
+{
+    private final int end;
+    private int i;
+
+    /**
+     * @param start
+     * @param end
+     */
+    public RangeGenerator(int start, int end)
+    {
+        this.i = start;
+        this.end = end;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return this.i < this.end;
+    }
+
+    @Override
+    public Integer generate()
+    {
+        return this.i++;
+    }
+}
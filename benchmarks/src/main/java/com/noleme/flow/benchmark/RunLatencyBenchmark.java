@@ -0,0 +1,79 @@
+package com.noleme.flow.benchmark;
+
+import com.noleme.flow.Flow;
+import com.noleme.flow.FlowOut;
+import com.noleme.flow.compiler.CompilationException;
+import com.noleme.flow.compiler.FlowRuntime;
+import com.noleme.flow.compiler.RunException;
+import com.noleme.flow.impl.parallel.ParallelCompiler;
+import com.noleme.flow.impl.parallel.ParallelRuntime;
+import com.noleme.flow.impl.pipeline.PipelineCompiler;
+import com.noleme.flow.io.input.Input;
+import com.noleme.flow.io.output.Recipient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of a single run() call on a tiny fan-out/join graph, where the per-run setup dominates the actual work.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunLatencyBenchmark
+{
+    @Param({ "pipeline", "parallel" })
+    public String runtime;
+
+    @Param({ "true", "false" })
+    public boolean hot;
+
+    private FlowRuntime instance;
+    private Recipient<Integer> recipient;
+    private Input input;
+
+    @Setup
+    public void setup() throws CompilationException
+    {
+        FlowOut<Integer> source = Flow.from("value");
+        var a = source.pipe(v -> v + 1);
+        var b = source.pipe(v -> v * 2);
+        var c = source.pipe(v -> v - 1);
+        var ab = a.join(b, Integer::sum);
+        var abc = ab.join(c, Integer::sum);
+        this.recipient = abc.pipe(v -> v * 3).collect();
+
+        switch (this.runtime)
+        {
+            case "pipeline":
+                this.instance = new PipelineCompiler().setHotMode(this.hot).compile(source);
+                break;
+            case "parallel":
+                this.instance = new ParallelCompiler(4, true).setHotMode(this.hot).compile(source);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown runtime " + this.runtime);
+        }
+
+        this.input = Input.of("value", 1);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        if (this.instance instanceof ParallelRuntime)
+            ((ParallelRuntime) this.instance).shutdownThreadPool();
+    }
+
+    @Benchmark
+    public Integer run() throws RunException
+    {
+        return this.instance.run(this.input).get(this.recipient);
+    }
+}
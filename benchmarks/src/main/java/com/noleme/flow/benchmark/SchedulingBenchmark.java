@@ -0,0 +1,95 @@
+package com.noleme.flow.benchmark;
+
+import com.noleme.flow.Flow;
+import com.noleme.flow.FlowOut;
+import com.noleme.flow.compiler.CompilationException;
+import com.noleme.flow.compiler.RunException;
+import com.noleme.flow.impl.parallel.ParallelCompiler;
+import com.noleme.flow.impl.parallel.ParallelRuntime;
+import com.noleme.flow.io.output.Output;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the scheduling overhead of the ParallelRuntime with trivial actors, over a wide DAG and over a stream.
+ * The wide DAG result is per run, dividing it by the node count gives the per-node cost.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulingBenchmark
+{
+    private static final int THREADS = 4;
+    private static final int ITEMS = 10_000;
+
+    @State(Scope.Benchmark)
+    public static class WideState
+    {
+        @Param({ "4000", "12000" })
+        public int nodes;
+
+        private ParallelRuntime runtime;
+
+        @Setup
+        public void setup() throws CompilationException
+        {
+            FlowOut<Integer> source = Flow.from(() -> 0);
+            /* Every other node is a direct dependent of the source, each of them followed by a sink */
+            for (int i = 1 ; i < this.nodes ; i += 2)
+                source.pipe(v -> v + 1).sink(v -> {});
+
+            this.runtime = new ParallelCompiler(THREADS, true).setHotMode(true).compile(source);
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            this.runtime.shutdownThreadPool();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class StreamState
+    {
+        private ParallelRuntime runtime;
+
+        @Setup
+        public void setup() throws CompilationException
+        {
+            FlowOut<Integer> source = Flow.from(() -> 0);
+            source
+                .stream(v -> new RangeGenerator(0, ITEMS)).setMaxParallelism(8)
+                .pipe(v -> v + 1)
+                .pipe(v -> v * 2)
+                .sink(v -> {})
+            ;
+
+            this.runtime = new ParallelCompiler(THREADS, true).setHotMode(true).compile(source);
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            this.runtime.shutdownThreadPool();
+        }
+    }
+
+    @Benchmark
+    public Output wideDag(WideState state) throws RunException
+    {
+        return state.runtime.run();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public Output stream(StreamState state) throws RunException
+    {
+        return state.runtime.run();
+    }
+}
@@ -0,0 +1,77 @@
+package com.noleme.flow.benchmark;
+
+import com.noleme.flow.Flow;
+import com.noleme.flow.FlowOut;
+import com.noleme.flow.compiler.CompilationException;
+import com.noleme.flow.compiler.FlowRuntime;
+import com.noleme.flow.compiler.RunException;
+import com.noleme.flow.impl.parallel.ParallelCompiler;
+import com.noleme.flow.impl.parallel.ParallelRuntime;
+import com.noleme.flow.impl.pipeline.PipelineCompiler;
+import com.noleme.flow.io.output.Output;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the stream throughput of each runtime depending on the generator batch size.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBatchBenchmark
+{
+    private static final int ITEMS = 100_000;
+
+    @Param({ "1", "4", "16", "64", "256" })
+    public int batchSize;
+
+    @Param({ "pipeline", "parallel" })
+    public String runtime;
+
+    private FlowRuntime instance;
+
+    @Setup
+    public void setup() throws CompilationException
+    {
+        FlowOut<Integer> source = Flow.from(() -> 0);
+        source
+            .stream(v -> new RangeGenerator(0, ITEMS)).setMaxParallelism(4).setBatchSize(this.batchSize)
+            .pipe(v -> v + 1)
+            .pipe(v -> v * 2)
+            .sink(v -> {})
+        ;
+
+        switch (this.runtime)
+        {
+            case "pipeline":
+                this.instance = new PipelineCompiler().setHotMode(true).compile(source);
+                break;
+            case "parallel":
+                this.instance = new ParallelCompiler(2, true).setHotMode(true).compile(source);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown runtime " + this.runtime);
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        if (this.instance instanceof ParallelRuntime)
+            ((ParallelRuntime) this.instance).shutdownThreadPool();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public Output run() throws RunException
+    {
+        return this.instance.run();
+    }
+}
@@ -0,0 +1,64 @@
+package com.noleme.flow.benchmark;
+
+import com.noleme.flow.Flow;
+import com.noleme.flow.FlowOut;
+import com.noleme.flow.compiler.CompilationException;
+import com.noleme.flow.compiler.RunException;
+import com.noleme.flow.impl.parallel.ParallelCompiler;
+import com.noleme.flow.impl.parallel.ParallelRuntime;
+import com.noleme.flow.io.output.Output;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-item cost of a stream with many concurrent offsets, where workers contend on the RuntimeState.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamContentionBenchmark
+{
+    private static final int ITEMS = 20_000;
+    private static final int OFFSETS = 64;
+
+    @Param({ "4", "16" })
+    public int workers;
+
+    private ParallelRuntime runtime;
+
+    @Setup
+    public void setup() throws CompilationException
+    {
+        FlowOut<Integer> source = Flow.from(() -> 0);
+        source
+            .stream(v -> new RangeGenerator(0, ITEMS)).setMaxParallelism(OFFSETS)
+            .pipe(v -> v + 1)
+            .pipe(v -> v * 2)
+            .pipe(v -> v - 1)
+            .pipe(v -> v / 2)
+            .sink(v -> {})
+        ;
+
+        this.runtime = new ParallelCompiler(this.workers, true).setHotMode(true).compile(source);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        this.runtime.shutdownThreadPool();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public Output run() throws RunException
+    {
+        return this.runtime.run();
+    }
+}
@@ -0,0 +1,41 @@
+package com.noleme.flow.actor;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Helpers for the asynchronous actor contracts (AsyncTransformer, AsyncLoader and AsyncGenerator).
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public final class Futures
+{
+    private Futures() {}
+
+    /**
+     * Blocks until the provided stage completes, the exception it was completed with (if any) is rethrown as is instead of being wrapped.
+     *
+     * @param stage
+     * @param <T>
+     * @return the value the stage was completed with
+     * @throws Exception
+     */
+    public static <T> T await(CompletionStage<T> stage) throws Exception
+    {
+        try {
+            return stage.toCompletableFuture().get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.noleme.flow.actor.accumulator;
+
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+/**
+ * A FoldingAccumulator which partial states can be combined, in the manner of a {@link Collector}.
+ *
+ * Parallel runtimes can then fold stream results into several partial states (typically one per worker thread) instead of serializing every fold on a single state.
+ * Partial states are combined once the stream is over, they don't cover contiguous ranges of the stream: the combination is expected to be both associative and order-insensitive.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/16
+ */
+public interface CombiningAccumulator<I, S, O> extends FoldingAccumulator<I, S, O>
+{
+    /**
+     *
+     * @param left a partial state
+     * @param right another partial state
+     * @return the combination of both partial states
+     * @throws Exception
+     */
+    S combine(S left, S right) throws Exception;
+
+    /**
+     *
+     * @param init
+     * @param accumulator
+     * @param combiner
+     * @param finisher
+     * @param <I>
+     * @param <S>
+     * @param <O>
+     * @return
+     */
+    static <I, S, O> CombiningAccumulator<I, S, O> of(Supplier<S> init, BiFunction<S, I, S> accumulator, BinaryOperator<S> combiner, Function<S, O> finisher)
+    {
+        return new CombiningAccumulator<>() {
+            @Override
+            public S init()
+            {
+                return init.get();
+            }
+
+            @Override
+            public S accumulate(S state, I input)
+            {
+                return accumulator.apply(state, input);
+            }
+
+            @Override
+            public S combine(S left, S right)
+            {
+                return combiner.apply(left, right);
+            }
+
+            @Override
+            public O finish(S state)
+            {
+                return finisher.apply(state);
+            }
+        };
+    }
+
+    /**
+     *
+     * @param init
+     * @param accumulator
+     * @param combiner
+     * @param <I>
+     * @param <S>
+     * @return
+     */
+    static <I, S> CombiningAccumulator<I, S, S> of(Supplier<S> init, BiFunction<S, I, S> accumulator, BinaryOperator<S> combiner)
+    {
+        return of(init, accumulator, combiner, Function.identity());
+    }
+
+    /**
+     * Adapts a {@link Collector} into a CombiningAccumulator, eg. {@code CombiningAccumulator.of(Collectors.groupingBy(...))}.
+     *
+     * The collector's characteristics are not enforced, and in particular its encounter order isn't preserved: partial states are folded from arbitrary items and combined in no particular order.
+     * Order-sensitive collectors (eg. {@code Collectors.toList()} or {@code Collectors.joining()}) remain usable, but their result won't follow the stream order when run by a parallel runtime.
+     * Collectors which result doesn't depend on order (eg. those reporting {@link Collector.Characteristics#UNORDERED}, counts, sums or groupings thereof) are unaffected.
+     *
+     * @param collector
+     * @param <I>
+     * @param <S>
+     * @param <O>
+     * @return
+     */
+    static <I, S, O> CombiningAccumulator<I, S, O> of(Collector<I, S, O> collector)
+    {
+        return of(
+            collector.supplier(),
+            (state, input) -> {
+                collector.accumulator().accept(state, input);
+                return state;
+            },
+            collector.combiner(),
+            collector.finisher()
+        );
+    }
+}
@@ -0,0 +1,100 @@
+package com.noleme.flow.actor.accumulator;
+
+import java.util.Collection;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * An Accumulator which folds stream results one at a time into an intermediate state, instead of expecting the whole collection of results at once.
+ *
+ * Runtimes feed each result to the accumulator as soon as it is produced, which means the result can be released from the heap right away.
+ * Results are folded in the order they are produced: in a parallel runtime, this isn't necessarily the order of their offsets.
+ * Folding calls for a given accumulator are serialized by the runtime, implementations don't have to be thread-safe but should remain cheap.
+ *
+ * The batch {@link #accumulate(Collection)} variant is implemented as a fold over the provided collection.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/15
+ */
+public interface FoldingAccumulator<I, S, O> extends Accumulator<I, O>
+{
+    /**
+     *
+     * @return the initial state of the accumulation
+     * @throws Exception
+     */
+    S init() throws Exception;
+
+    /**
+     *
+     * @param state the current state of the accumulation
+     * @param input a stream result
+     * @return the updated state of the accumulation
+     * @throws Exception
+     */
+    S accumulate(S state, I input) throws Exception;
+
+    /**
+     *
+     * @param state the final state of the accumulation
+     * @return
+     * @throws Exception
+     */
+    O finish(S state) throws Exception;
+
+    @Override
+    default O accumulate(Collection<I> input) throws Exception
+    {
+        S state = this.init();
+        for (I value : input)
+            state = this.accumulate(state, value);
+        return this.finish(state);
+    }
+
+    /**
+     *
+     * @param init
+     * @param accumulator
+     * @param finisher
+     * @param <I>
+     * @param <S>
+     * @param <O>
+     * @return
+     */
+    static <I, S, O> FoldingAccumulator<I, S, O> of(Supplier<S> init, BiFunction<S, I, S> accumulator, Function<S, O> finisher)
+    {
+        return new FoldingAccumulator<>() {
+            @Override
+            public S init()
+            {
+                return init.get();
+            }
+
+            @Override
+            public S accumulate(S state, I input)
+            {
+                return accumulator.apply(state, input);
+            }
+
+            @Override
+            public O finish(S state)
+            {
+                return finisher.apply(state);
+            }
+        };
+    }
+
+    /**
+     *
+     * @param init
+     * @param accumulator
+     * @param <I>
+     * @param <S>
+     * @return
+     */
+    static <I, S> FoldingAccumulator<I, S, S> of(Supplier<S> init, BiFunction<S, I, S> accumulator)
+    {
+        return of(init, accumulator, Function.identity());
+    }
+}
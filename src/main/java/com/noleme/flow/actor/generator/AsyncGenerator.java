@@ -0,0 +1,31 @@
+package com.noleme.flow.actor.generator;
+
+import com.noleme.flow.actor.Futures;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A Generator which produces its elements asynchronously, typically through a non-blocking I/O call.
+ * Runtimes supporting asynchronous execution (eg. the ParallelRuntime) consider the offset as generated once the returned stage completes, without holding a worker in the meantime.
+ * Other runtimes fall back to generate, which blocks until the stage completes.
+ *
+ * As with any Generator, elements are requested one at a time: the next call to hasNext only occurs once the previous stage has completed.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public interface AsyncGenerator<O> extends Generator<O>
+{
+    /**
+     *
+     * @return a stage completed with the next element of the stream
+     * @throws Exception
+     */
+    CompletionStage<O> generateAsync() throws Exception;
+
+    @Override
+    default O generate() throws Exception
+    {
+        return Futures.await(this.generateAsync());
+    }
+}
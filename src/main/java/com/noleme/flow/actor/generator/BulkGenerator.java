@@ -0,0 +1,25 @@
+package com.noleme.flow.actor.generator;
+
+import java.util.List;
+
+/**
+ * A Generator which can produce several elements in a single call, typically a source fetching its elements by pages (JDBC fetch size, REST pagination, etc.).
+ * generateBatch is only used when the stream is micro-batched (see StreamGenerator.setBatchSize with a size larger than 1): each chunk is then produced by a single call to generateBatch instead of a generate call per element.
+ * Without micro-batching, or with prefetching enabled, the runtime relies on hasNext and generate as it would for any Generator, so implementations are expected to support both.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public interface BulkGenerator<O> extends Generator<O>
+{
+    /**
+     * This method should return up to max next elements of the stream, an empty list means the generator has reached the end.
+     * Once an empty list was returned, the stream ends even if hasNext still returns true, so hasNext may remain optimistic until the source actually runs dry.
+     * An InterruptionException interrupts the whole chunk.
+     *
+     * @param max the maximum number of elements to be returned
+     * @return the next elements of the stream
+     * @throws Exception
+     */
+    List<O> generateBatch(int max) throws Exception;
+}
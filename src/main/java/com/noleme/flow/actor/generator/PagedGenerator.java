@@ -0,0 +1,48 @@
+package com.noleme.flow.actor.generator;
+
+import java.util.List;
+
+/**
+ * A BulkGenerator wrapper which ends the stream upon the first empty page, regardless of what the underlying generator's hasNext reports.
+ * This allows paged sources to remain optimistic in hasNext (eg. REST pagination without a total count) and only find out about the end of the stream by fetching an empty page.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public class PagedGenerator<O> implements BulkGenerator<O>
+{
+    private final BulkGenerator<O> generator;
+    private boolean exhausted = false;
+
+    /**
+     *
+     * @param generator the underlying generator
+     */
+    public PagedGenerator(BulkGenerator<O> generator)
+    {
+        this.generator = generator;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return !this.exhausted && this.generator.hasNext();
+    }
+
+    @Override
+    public O generate() throws Exception
+    {
+        return this.generator.generate();
+    }
+
+    @Override
+    public List<O> generateBatch(int max) throws Exception
+    {
+        List<O> page = this.generator.generateBatch(max);
+
+        if (page.isEmpty())
+            this.exhausted = true;
+
+        return page;
+    }
+}
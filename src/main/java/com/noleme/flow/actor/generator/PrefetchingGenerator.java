@@ -0,0 +1,151 @@
+package com.noleme.flow.actor.generator;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Generator wrapper which fills a bounded look-ahead buffer from a background thread.
+ * Items are requested from the underlying generator ahead of time, so that its latency (paginated API calls, compressed file reads, etc.) is hidden behind downstream processing.
+ *
+ * The underlying generator is only ever called from the prefetching thread, which is started upon the first call to hasNext.
+ * The prefetching thread stops once the underlying generator is exhausted or has failed, failures are reported upon the corresponding call to generate.
+ * If the stream is abandoned before its end (eg. upon a run failure), the generator is expected to be closed: runtimes close it at the end of each run, which interrupts the prefetching thread.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/02
+ */
+public class PrefetchingGenerator<O> implements Generator<O>, AutoCloseable
+{
+    private final Generator<O> generator;
+    private final BlockingQueue<Prefetched<O>> buffer;
+    private final String name;
+    private Prefetched<O> next;
+    private volatile Thread thread;
+    private volatile boolean closed = false;
+
+    /* Period at which a consumer waiting on an empty buffer checks whether the generator was closed */
+    private static final long CLOSE_CHECK_PERIOD_MS = 100;
+
+    /**
+     *
+     * @param generator the underlying generator
+     * @param size the maximum number of items to be prefetched
+     * @param name the name given to the prefetching thread
+     */
+    public PrefetchingGenerator(Generator<O> generator, int size, String name)
+    {
+        if (size < 1)
+            throw new IllegalArgumentException("PrefetchingGenerator buffer size is expected to be larger or equal to 1");
+
+        this.generator = generator;
+        this.buffer = new ArrayBlockingQueue<>(size);
+        this.name = name;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return !this.peek().end;
+    }
+
+    @Override
+    public O generate() throws Exception
+    {
+        Prefetched<O> item = this.peek();
+
+        if (item.failure instanceof Error)
+            throw (Error) item.failure;
+        if (item.failure != null)
+            throw (Exception) item.failure;
+        if (item.end)
+            return null;
+
+        this.next = null;
+        return item.value;
+    }
+
+    /**
+     *
+     * @return
+     */
+    private Prefetched<O> peek()
+    {
+        if (this.thread == null && !this.closed)
+        {
+            this.thread = new Thread(this::prefetch, this.name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        try {
+            while (this.next == null)
+            {
+                if (this.closed)
+                    throw new IllegalStateException("Generator " + this.name + " was closed");
+                this.next = this.buffer.poll(CLOSE_CHECK_PERIOD_MS, TimeUnit.MILLISECONDS);
+            }
+            return this.next;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for generator " + this.name, e);
+        }
+    }
+
+    /**
+     * Stops the prefetching thread, items remaining in the buffer are discarded.
+     * Consumers waiting for an item, if any, fail instead of waiting indefinitely.
+     */
+    @Override
+    public void close()
+    {
+        this.closed = true;
+
+        if (this.thread != null)
+            this.thread.interrupt();
+
+        this.buffer.clear();
+    }
+
+    /**
+     * Fills the buffer until the underlying generator is exhausted or fails.
+     */
+    private void prefetch()
+    {
+        try {
+            try {
+                while (!this.closed && this.generator.hasNext())
+                    this.buffer.put(new Prefetched<>(this.generator.generate(), null, false));
+
+                this.buffer.put(new Prefetched<>(null, null, true));
+            }
+            catch (InterruptedException e) {
+                throw e;
+            }
+            catch (Exception | Error e) {
+                this.buffer.put(new Prefetched<>(null, e, false));
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A buffered item, which is either a generated value, a generation failure or the end of the stream.
+     */
+    private static final class Prefetched<O>
+    {
+        private final O value;
+        private final Throwable failure;
+        private final boolean end;
+
+        private Prefetched(O value, Throwable failure, boolean end)
+        {
+            this.value = value;
+            this.failure = failure;
+            this.end = end;
+        }
+    }
+}
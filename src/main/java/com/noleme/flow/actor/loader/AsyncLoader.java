@@ -0,0 +1,30 @@
+package com.noleme.flow.actor.loader;
+
+import com.noleme.flow.actor.Futures;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A Loader which performs its loading asynchronously, typically a non-blocking I/O call.
+ * Runtimes supporting asynchronous execution (eg. the ParallelRuntime) consider the node as completed once the returned stage completes, without holding a worker in the meantime.
+ * Other runtimes fall back to load, which blocks until the stage completes.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public interface AsyncLoader<T> extends Loader<T>
+{
+    /**
+     *
+     * @param input
+     * @return a stage completed once the input is loaded
+     * @throws Exception
+     */
+    CompletionStage<?> loadAsync(T input) throws Exception;
+
+    @Override
+    default void load(T input) throws Exception
+    {
+        Futures.await(this.loadAsync(input));
+    }
+}
@@ -0,0 +1,32 @@
+package com.noleme.flow.actor.transformer;
+
+import com.noleme.flow.actor.Futures;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A Transformer which performs its transformation asynchronously, typically a non-blocking I/O call.
+ * Runtimes supporting asynchronous execution (eg. the ParallelRuntime) consider the node as completed once the returned stage completes, without holding a worker in the meantime.
+ * Other runtimes fall back to transform, which blocks until the stage completes.
+ *
+ * A stage completed with an InterruptionException interrupts the node as transform would.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public interface AsyncTransformer<I, O> extends Transformer<I, O>
+{
+    /**
+     *
+     * @param input
+     * @return a stage completed with the transformation result
+     * @throws Exception
+     */
+    CompletionStage<O> transformAsync(I input) throws Exception;
+
+    @Override
+    default O transform(I input) throws Exception
+    {
+        return Futures.await(this.transformAsync(input));
+    }
+}
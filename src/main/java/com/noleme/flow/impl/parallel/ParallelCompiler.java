@@ -6,10 +6,16 @@ import com.noleme.flow.impl.parallel.compiler.ParallelIndexes;
 import com.noleme.flow.impl.parallel.compiler.pass.RemoveNodesWithUpstreamPass;
 import com.noleme.flow.impl.parallel.runtime.executor.ExecutorServiceProvider;
 import com.noleme.flow.impl.parallel.runtime.executor.Executors;
+import com.noleme.flow.impl.parallel.runtime.scheduler.CostModel;
 import com.noleme.flow.impl.pipeline.PipelineCompiler;
+import com.noleme.flow.impl.pipeline.compiler.pass.PipeFusionPass;
 import com.noleme.flow.impl.pipeline.compiler.pass.PipelineCompilerPass;
+import com.noleme.flow.impl.pipeline.compiler.pass.StreamFusionPass;
 import com.noleme.flow.impl.pipeline.compiler.pass.TopologicalSortPass;
+import com.noleme.flow.impl.pipeline.runtime.heap.accounting.AccountingConfig;
+import com.noleme.flow.impl.pipeline.runtime.heap.spill.SpillConfig;
 import com.noleme.flow.node.Node;
+import com.noleme.flow.stream.StreamAccumulator;
 import com.noleme.flow.stream.StreamGenerator;
 import com.noleme.flow.stream.StreamNode;
 
@@ -24,6 +30,11 @@ public class ParallelCompiler implements FlowCompiler<ParallelRuntime>
 {
     private final ExecutorServiceProvider provider;
     private final boolean autoRefresh;
+    private CostModel costModel = null;
+    private SpillConfig spillConfig = null;
+    private AccountingConfig accountingConfig = null;
+    private boolean hot = false;
+    private boolean fusion = false;
     private final List<PipelineCompilerPass> passes = List.of(
         new TopologicalSortPass(),
         new RemoveNodesWithUpstreamPass()
@@ -58,6 +69,74 @@ public class ParallelCompiler implements FlowCompiler<ParallelRuntime>
         this.autoRefresh = autoRefresh;
     }
 
+    /**
+     * Enables priority scheduling: ready nodes are ordered by remaining critical-path length, as estimated by the provided cost model.
+     * Observed durations are recorded into the model upon each run, it can be shared between compilers or persisted through {@link CostModel#export()}.
+     * Priority scheduling has a per-node overhead which only pays off for nodes of significant duration, it is disabled by default (ie. with a null cost model) and ready nodes are then dispatched in submission order.
+     *
+     * @param costModel
+     * @return
+     */
+    public ParallelCompiler setCostModel(CostModel costModel)
+    {
+        this.costModel = costModel;
+        return this;
+    }
+
+    /**
+     * Enables spilling: once the estimated footprint of heap values exceeds the configured budget, or for values exceeding the configured threshold, values are spilled to disk and loaded back upon consumption.
+     * Spilling is disabled by default (ie. with a null configuration).
+     *
+     * @param spillConfig
+     * @return
+     */
+    public ParallelCompiler setSpillConfig(SpillConfig spillConfig)
+    {
+        this.spillConfig = spillConfig;
+        return this;
+    }
+
+    /**
+     * Enables heap accounting: the estimated footprint of heap values is tracked per node and per stream, and reported through Output#heapReport(). With a budget, the runtime also stops admitting new stream offsets while the heap is over budget.
+     * Accounting is disabled by default (ie. with a null configuration).
+     *
+     * @param accountingConfig
+     * @return
+     */
+    public ParallelCompiler setAccountingConfig(AccountingConfig accountingConfig)
+    {
+        this.accountingConfig = accountingConfig;
+        return this;
+    }
+
+    /**
+     * Enables hot mode, which is meant for small graphs being ran at a high frequency (eg. from a request handler).
+     * The executor is started upfront and kept alive regardless of autoRefresh (it has to be shut down through ParallelRuntime#shutdownThreadPool()), per-run heaps and states are pooled and reset instead of being allocated anew, and run summaries are logged at the debug level.
+     * Hot mode is disabled by default.
+     *
+     * @param hot
+     * @return
+     */
+    public ParallelCompiler setHotMode(boolean hot)
+    {
+        this.hot = hot;
+        return this;
+    }
+
+    /**
+     * Enables operator fusion: linear chains of pipes and of stream pipes are executed as single nodes, without intermediate heap values nor scheduling between stages.
+     * Logs and errors still refer to the individual stages of a chain.
+     * Fusion is disabled by default.
+     *
+     * @param fusion
+     * @return
+     */
+    public ParallelCompiler setFusion(boolean fusion)
+    {
+        this.fusion = fusion;
+        return this;
+    }
+
     @Override
     public ParallelRuntime compile(Collection<Node> inputNodes) throws CompilationException
     {
@@ -68,7 +147,11 @@ public class ParallelCompiler implements FlowCompiler<ParallelRuntime>
             compiledNodes,
             this.provider,
             this.autoRefresh,
-            indexes
+            indexes,
+            this.costModel,
+            this.spillConfig,
+            this.accountingConfig,
+            this.hot
         );
     }
 
@@ -81,12 +164,163 @@ public class ParallelCompiler implements FlowCompiler<ParallelRuntime>
 
         this.indexStreamNodes(compiledNodes, generatorIndex, streamNodeIndex);
 
+        Set<Node> collectedNodes = collectNodes(compiledNodes);
+        Map<Node, Node> chains = new IdentityHashMap<>();
+        if (this.fusion)
+        {
+            chains.putAll(StreamFusionPass.computeChains(collectedNodes));
+            chains.putAll(PipeFusionPass.computeChains(collectedNodes));
+        }
+
+        /* Fused chains replace their stages, which are then addressed through the index of their chain */
+        Node[] nodes = fuse(collectedNodes, chains).toArray(new Node[0]);
+        Map<Node, Integer> indices = new HashMap<>();
+        for (int i = 0 ; i < nodes.length ; ++i)
+            indices.put(nodes[i], i);
+        for (Map.Entry<Node, Node> chain : chains.entrySet())
+            indices.put(chain.getKey(), indices.get(chain.getValue()));
+        if (!chains.isEmpty())
+            streamNodeIndex.replaceAll((generator, streamNodes) -> fuse(streamNodes, chains));
+
+        int[] streams = new int[nodes.length];
+        int[] positions = new int[nodes.length];
+        int[][] offsetRequirements = new int[nodes.length][];
+
+        Arrays.fill(streams, -1);
+        for (Map.Entry<StreamGenerator, Set<Node>> entry : streamNodeIndex.entrySet())
+        {
+            int generator = indices.get(entry.getKey());
+            int position = 0;
+
+            streams[generator] = generator;
+            positions[generator] = position++;
+            for (Node streamNode : entry.getValue())
+            {
+                int index = indices.get(streamNode);
+                streams[index] = generator;
+                positions[index] = position++;
+            }
+            offsetRequirements[generator] = new int[position];
+        }
+
+        int[] requirements = new int[nodes.length];
+        List<Set<Integer>> dependents = newSetList(nodes.length);
+        List<Set<Integer>> streamDependents = newSetList(nodes.length);
+        int[][] downstream = new int[nodes.length][];
+
+        for (int i = 0 ; i < nodes.length ; ++i)
+        {
+            boolean isStreamNode = streams[i] >= 0 && streams[i] != i;
+            /* Any requirement from outside a stream is lifted to its generator */
+            int target = isStreamNode ? streams[i] : i;
+
+            for (Node requirement : nodes[i].getRequirements())
+            {
+                int r = indices.get(requirement);
+
+                /* Requirements within the same stream are evaluated at the offset level */
+                if (isStreamNode && streams[r] == streams[i])
+                {
+                    dependents.get(r).add(i);
+                    requirements[i]++;
+                }
+                /* Requirements towards a stream node are satisfied upon the completion of the whole stream */
+                else if (streams[r] >= 0)
+                {
+                    if (streamDependents.get(streams[r]).add(target))
+                        requirements[target]++;
+                }
+                else if (dependents.get(r).add(target))
+                    requirements[target]++;
+            }
+
+            /* We don't block stream accumulators as they are expected to accumulate any stream that did complete */
+            downstream[i] = nodes[i].getDownstream().stream()
+                .filter(n -> !(n instanceof StreamAccumulator))
+                .mapToInt(indices::get)
+                .toArray()
+            ;
+        }
+
+        for (int i = 0 ; i < nodes.length ; ++i)
+        {
+            if (streams[i] >= 0 && streams[i] != i)
+                offsetRequirements[streams[i]][positions[i]] = requirements[i];
+        }
+
         return new ParallelIndexes(
             generatorIndex,
-            streamNodeIndex
+            streamNodeIndex,
+            indices,
+            nodes,
+            requirements,
+            toArray(dependents),
+            toArray(streamDependents),
+            downstream,
+            streams,
+            positions,
+            offsetRequirements
         );
     }
 
+    /**
+     * Collects every node reachable from the provided start nodes.
+     *
+     * @param startNodes
+     * @return
+     */
+    private static Set<Node> collectNodes(List<Node> startNodes)
+    {
+        Set<Node> nodes = new LinkedHashSet<>();
+        Queue<Node> queue = new LinkedList<>(startNodes);
+
+        while (!queue.isEmpty())
+        {
+            Node node = queue.poll();
+
+            if (!nodes.add(node))
+                continue;
+
+            queue.addAll(node.getDownstream());
+            queue.addAll(node.getRequiredBy());
+        }
+
+        return nodes;
+    }
+
+    /**
+     *
+     * @param nodes
+     * @param chains
+     * @return the provided nodes, with fused stages replaced by their chain
+     */
+    private static Set<Node> fuse(Set<Node> nodes, Map<Node, Node> chains)
+    {
+        if (chains.isEmpty())
+            return nodes;
+
+        Set<Node> fused = new LinkedHashSet<>();
+        for (Node node : nodes)
+            fused.add(chains.getOrDefault(node, node));
+        return fused;
+    }
+
+    private static List<Set<Integer>> newSetList(int size)
+    {
+        List<Set<Integer>> list = new ArrayList<>(size);
+        for (int i = 0 ; i < size ; ++i)
+            list.add(new LinkedHashSet<>());
+        return list;
+    }
+
+    private static int[][] toArray(List<Set<Integer>> list)
+    {
+        int[][] array = new int[list.size()][];
+        for (int i = 0 ; i < array.length ; ++i)
+            array[i] = list.get(i).stream().mapToInt(Integer::intValue).toArray();
+        return array;
+    }
+
     /**
      *
      * @param nodes
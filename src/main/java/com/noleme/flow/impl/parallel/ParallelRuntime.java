@@ -5,26 +5,50 @@ import com.noleme.flow.compiler.FlowRuntime;
 import com.noleme.flow.compiler.RunException;
 import com.noleme.flow.impl.parallel.compiler.ParallelIndexes;
 import com.noleme.flow.impl.parallel.runtime.executor.ExecutorServiceProvider;
-import com.noleme.flow.impl.parallel.runtime.heap.ConcurrentHashHeap;
+import com.noleme.flow.impl.parallel.runtime.scheduler.CostModel;
+import com.noleme.flow.impl.parallel.runtime.scheduler.FairScheduler;
+import com.noleme.flow.impl.parallel.runtime.scheduler.ReadyQueue;
 import com.noleme.flow.impl.parallel.runtime.state.RuntimeState;
+import com.noleme.flow.impl.pipeline.PipelineRunException;
 import com.noleme.flow.impl.pipeline.runtime.execution.Execution;
 import com.noleme.flow.impl.pipeline.runtime.heap.Heap;
+import com.noleme.flow.impl.pipeline.runtime.heap.SlotHeap;
+import com.noleme.flow.impl.pipeline.runtime.heap.accounting.AccountingConfig;
+import com.noleme.flow.impl.pipeline.runtime.heap.accounting.AccountingHeap;
+import com.noleme.flow.impl.pipeline.runtime.heap.spill.SpillConfig;
+import com.noleme.flow.impl.pipeline.runtime.heap.spill.SpillingHeap;
 import com.noleme.flow.impl.pipeline.runtime.node.OffsetNode;
 import com.noleme.flow.io.input.Input;
 import com.noleme.flow.io.output.Output;
+import com.noleme.flow.io.output.WriteableOutput;
 import com.noleme.flow.node.Node;
-import com.noleme.flow.stream.StreamAccumulator;
 import com.noleme.flow.stream.StreamGenerator;
-import com.noleme.flow.stream.StreamNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * The ParallelRuntime can be ran concurrently from several threads, each run has its own heap and state, while the executor is shared between runs.
+ * When several runs are active, tasks are scheduled through a FairScheduler so that the executor alternates between runs.
+ *
+ * In hot mode, the runtime is tuned for frequent runs of small graphs: the executor is started upfront and kept alive regardless of autoRefresh, per-run heaps and states are pooled and reset instead of being allocated anew, and run summaries are logged at the debug level.
+ *
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
  * Created on 2020/03/03
  */
@@ -36,8 +60,26 @@ public class ParallelRuntime implements FlowRuntime
     private final ParallelIndexes indexes;
     private final ExecutorServiceProvider poolProvider;
     private final boolean autoRefresh;
+    private final CostModel costModel;
+    private final SpillConfig spillConfig;
+    private final AccountingConfig accountingConfig;
+    private final boolean hot;
+    /* Recycled per-run resources, only used in hot mode */
+    private final BlockingQueue<Resources> resources = new ArrayBlockingQueue<>(RESOURCE_POOL_SIZE);
+    private final FairScheduler fairScheduler = new FairScheduler();
+    private final Runnable runNext = this.fairScheduler::runNext;
+    /* Per-thread pools of recycled tasks, a task is taken by the submitting thread and returned by the thread that ran it, only used with pools of long-lived threads */
+    private final ThreadLocal<ArrayDeque<Task>> tasks = ThreadLocal.withInitial(ArrayDeque::new);
     private ExecutorService pool;
-    private CompletionService<Node> completionService;
+    /* Number of runs currently using the pool, the pool is only shut down (with autoRefresh) once the last one ends */
+    private volatile int activeRuns = 0;
+
+    /* Number of nodes a worker can chain through continuations before yielding, when several runs compete for the pool */
+    private static final int CONTINUATION_BUDGET = 32;
+    /* Maximum number of recycled tasks kept by a thread, tasks beyond that are left to the garbage collector */
+    private static final int TASK_POOL_SIZE = 64;
+    /* Maximum number of recycled per-run resources, ie. of concurrent runs which can be served without any allocation */
+    private static final int RESOURCE_POOL_SIZE = 16;
 
     private static final Logger logger = LoggerFactory.getLogger(ParallelRuntime.class);
     
@@ -47,24 +89,34 @@ public class ParallelRuntime implements FlowRuntime
      * @param executorServiceProvider
      * @param autoRefresh
      * @param indexes
+     * @param costModel cost estimates used for priority scheduling, if null ready nodes are dispatched in submission order
+     * @param spillConfig spilling configuration for the heap, if null every value remains in memory
+     * @param accountingConfig accounting configuration for the heap, if null the heap footprint isn't tracked and stream offsets are admitted regardless of memory
+     * @param hot whether the runtime should be tuned for frequent runs of small graphs
      */
-    protected ParallelRuntime(List<Node> compiledNodes, ExecutorServiceProvider executorServiceProvider, boolean autoRefresh, ParallelIndexes indexes)
+    protected ParallelRuntime(List<Node> compiledNodes, ExecutorServiceProvider executorServiceProvider, boolean autoRefresh, ParallelIndexes indexes, CostModel costModel, SpillConfig spillConfig, AccountingConfig accountingConfig, boolean hot)
     {
         this.execution = new Execution();
         this.startNodes = compiledNodes;
         this.indexes = indexes;
         this.poolProvider = executorServiceProvider;
         this.autoRefresh = autoRefresh;
+        this.costModel = costModel;
+        this.spillConfig = spillConfig;
+        this.accountingConfig = accountingConfig;
+        this.hot = hot;
         this.regenerateThreadPool();
     }
 
     /**
-     *
+     * In hot mode, the worker threads of a ThreadPoolExecutor are started right away so that the first runs don't pay for their creation.
      */
     synchronized private void regenerateThreadPool()
     {
         this.pool = this.poolProvider.provide();
-        this.completionService = new ExecutorCompletionService<>(this.pool);
+
+        if (this.hot && this.pool instanceof ThreadPoolExecutor)
+            ((ThreadPoolExecutor) this.pool).prestartAllCoreThreads();
     }
 
     /**
@@ -76,252 +128,656 @@ public class ParallelRuntime implements FlowRuntime
         {
             this.pool.shutdown();
             this.pool = null;
-            this.completionService = null;
         }
     }
 
-    @Override
-    synchronized public Output run(Input input) throws RunException
+    /**
+     *
+     * @return
+     */
+    synchronized private ExecutorService acquireThreadPool()
     {
-        var heap = new ConcurrentHashHeap(input);
-        RuntimeState state = new RuntimeState(this.indexes);
-
         if (this.pool == null)
             this.regenerateThreadPool();
 
-        /* Add all start nodes to the waiting queue. */
-        state.queueAll(this.startNodes);
+        this.activeRuns++;
+        return this.pool;
+    }
+
+    /**
+     *
+     */
+    synchronized private void releaseThreadPool()
+    {
+        this.activeRuns--;
+
+        if (this.autoRefresh && !this.hot && this.activeRuns == 0)
+            this.shutdownThreadPool();
+    }
+
+    @Override
+    public Output run(Input input) throws RunException
+    {
+        Resources resources = this.hot ? this.acquireResources(input) : null;
+        SlotHeap slotHeap = resources != null ? resources.heap : new SlotHeap(this.indexes.slots, input);
+        AccountingHeap accounting = this.accountingConfig != null
+            ? new AccountingHeap(slotHeap, this.accountingConfig)
+            : null
+        ;
+        Heap baseHeap = accounting != null ? accounting : slotHeap;
+        Heap heap = this.spillConfig != null
+            ? new SpillingHeap(baseHeap, this.spillConfig)
+            : baseHeap
+        ;
+        /* Heap decorators only expose a read-only output, the runtime writes to the one held by the slot heap */
+        WriteableOutput output = slotHeap.getOutput();
+        var context = new RunContext(
+            heap,
+            accounting,
+            resources != null ? resources.state.reset(heap) : new RuntimeState(this.indexes, heap),
+            this.costModel != null ? new ReadyQueue(this.indexes, this.costModel) : null,
+            this.fairScheduler.createQueue(),
+            this.acquireThreadPool()
+        );
+
+        boolean succeeded = false;
 
         try {
-            heap.getOutput().setStartTime(Instant.now());
+            output.setStartTime(Instant.now());
+
+            /* Nodes without any pending requirement are dispatched to the pool, the rest of the run is driven by worker threads */
+            List<Node> readyNodes = context.state.initiate(this.startNodes);
+
+            if (readyNodes.isEmpty())
+                context.done();
+
+            for (Node node : readyNodes)
+                this.dispatch(node, context);
 
-            /* We loop as long as we have nodes to process (submitted to the pool or awaiting submission) */
-            while (state.hasSubmitted() || state.hasWaiting())
+            /* We wait until either every dispatched node has been reported back or one of them has failed */
+            context.await();
+            /* Upon a failure other workers may still be operating on the heap, the pool and the heap can only be let go once they are done */
+            context.drain();
+
+            if (context.failure != null)
             {
-                /* First, we go over the whole waiting list */
-                Iterator<Node> waitingIterator = state.waitingIterator();
-                while (waitingIterator.hasNext())
-                {
-                    Node waitingNode = waitingIterator.next();
-                    boolean removeIfSubmitted = true;
-
-                    /* If this is a stream generator, its prolonged presence in the waiting list is conditioned by special clauses */
-                    if (waitingNode instanceof StreamGenerator)
-                    {
-                        StreamGenerator generatorNode = (StreamGenerator) waitingNode;
-                        Generator generator = heap.getStreamGenerator(generatorNode);
-
-                        /* If the generator is exhausted, we remove it from the waiting pool and skip it */
-                        if (!generator.hasNext())
-                        {
-                            waitingIterator.remove();
-                            continue;
-                        }
-                        /* Generators can't be ran concurrently (as they are expected to be stateful and generated once per run) */
-                        if (state.isSubmitted(waitingNode))
-                            continue;
-                        /* If the stream has reached the max parallelism factor defined on the generator, we keep the node on the waiting pool */
-                        if (state.hasReachedMaxParallelism(generatorNode))
-                            continue;
-
-                        /* If the generator is to be executed, we do not want to remove it from the waiting pool */
-                        removeIfSubmitted = false;
-                    }
-
-                    NodeState readiness = this.isReady(waitingNode, state, heap);
-
-                    if (readiness == NodeState.READY)
-                    {
-                        if (removeIfSubmitted)
-                            waitingIterator.remove();
-
-                        this.submitNode(waitingNode, heap, state);
-                    }
-                    else if (readiness == NodeState.BLOCKED)
-                        waitingIterator.remove();
-                }
-                /* If we have submitted nodes, we use the blocking completion service in order to wait for the first completed node */
-                if (state.hasSubmitted())
-                {
-                    Future<Node> future = this.completionService.take();
-                    Node completedNode = future.get();
-
-                    /* We update the state collections */
-                    state.unsubmit(completedNode);
-                    state.complete(completedNode);
-
-                    /* For each node downstream from the one that just completed, we push it to the waiting list, if it wasn't already */
-                    for (Node downstream : completedNode.getDownstream())
-                    {
-                        /* Non-encapsulated StreamNodes should be ignored (they should already be added as OffsetNodes by the stream trunk */
-                        if (downstream instanceof StreamNode)
-                            continue;
-                        if (state.isWaiting(downstream) || state.isSubmitted(downstream))
-                            continue;
-                        /*
-                         * If an accumulator added by a previous stream node managed to complete in the timespan it takes for the last stream node to return and be considered here, it can create issues.
-                         * So we check for completed accumulator nodes too. Note that this should apply to any non-stream node that is designed to be directly downstream of stream nodes.
-                         */
-                        if (downstream instanceof StreamAccumulator && state.isCompleted(downstream))
-                            continue;
-
-                        state.queue(downstream);
-                    }
-                }
+                if (context.failure instanceof ParallelRunException)
+                    throw (ParallelRunException) context.failure;
+                throw new ParallelRunException(context.failure.getMessage(), context.failure, heap);
             }
 
-            return heap.getOutput();
+            if (!context.state.isResolved())
+                throw new ParallelRunException("Some flow nodes could not be scheduled, this is likely due to a stream depending on its own completion.", heap);
+
+            succeeded = true;
+            return output;
         }
         catch (InterruptedException e) {
-            throw new ParallelRunException(e.getMessage(), e, heap);
-        }
-        catch (ExecutionException e) {
-            if (e.getCause() instanceof ParallelRunException)
-                throw (ParallelRunException) e.getCause();
+            /* Workers may still be operating on the heap, nothing new is submitted once the run is failed and they have to be done before the pool and heap are let go */
+            context.fail(e);
+            context.drainUninterruptibly();
+            Thread.currentThread().interrupt();
             throw new ParallelRunException(e.getMessage(), e, heap);
         }
         finally {
-            heap.getOutput().setEndTime(Instant.now());
-            logger.info("Ran pipeline in {}", heap.getOutput().elapsedTimeString());
+            output.setEndTime(Instant.now());
+            if (this.hot && logger.isDebugEnabled())
+                logger.debug("Ran pipeline in {}", output.elapsedTimeString());
+            else if (!this.hot && logger.isInfoEnabled())
+                logger.info("Ran pipeline in {}", output.elapsedTimeString());
+
+            if (accounting != null)
+            {
+                output.setHeapReport(accounting.getReport());
+                logger.debug("Heap footprint: {}", output.heapReport());
+            }
+
+            /* Generators abandoned by a failed run (eg. prefetching ones) mustn't keep running past it */
+            heap.closeStreamGenerators();
+
+            if (heap instanceof SpillingHeap)
+                ((SpillingHeap) heap).close();
+            this.releaseThreadPool();
+
+            /* Resources of a failed run are left to the exception, which exposes their heap, and to any worker still operating on them */
+            if (resources != null && succeeded)
+                this.resources.offer(resources);
+        }
+    }
+
+    /**
+     *
+     * @param input
+     * @return pooled resources reset for a new run, or newly allocated ones if the pool is empty
+     */
+    private Resources acquireResources(Input input)
+    {
+        Resources resources = this.resources.poll();
 
-            if (this.autoRefresh)
-                this.shutdownThreadPool();
+        if (resources == null)
+        {
+            SlotHeap heap = new SlotHeap(this.indexes.slots, input);
+            return new Resources(heap, new RuntimeState(this.indexes, heap));
         }
+
+        resources.heap.reset(input);
+        return resources;
     }
 
     /**
+     * With priority scheduling, the node is pushed to the ready queue and the submitted task runs whichever ready node has the highest priority at the time it starts.
      *
      * @param node
-     * @param heap
-     * @param state
+     * @param context
      */
-    private void submitNode(Node node, Heap heap, RuntimeState state)
+    private void dispatch(Node node, RunContext context)
     {
-        if (node instanceof OffsetNode)
+        if (context.queue != null)
         {
-            Node actualNode = ((OffsetNode) node).getNode();
-            logger.debug("Submitting flow node #{} offset {} ({})", actualNode.getUid(), ((OffsetNode) node).getOffset(), actualNode.getClass().getSimpleName());
+            context.queue.push(node);
+            this.submit(this.task(null, context), context);
         }
         else
-            logger.debug("Submitting flow node #{} ({})", node.getUid(), node.getClass().getSimpleName());
+            this.submit(this.task(node, context), context);
+    }
 
-        /*
-         * Note regarding behaviour, there are two possible paths here:
-         *
-         * First is for StreamGenerators, these are responsible for initiating a stream and submitting the first OffsetNode of the stream.
-         *
-         * Second is for standard nodes and OffsetNodes. OffsetNodes override the getDownstream method so that any downstream StreamNode is returned as an OffsetNode with the same offset value.
-         * StreamAccumulators are not StreamNodes, so they will be returned unchanged, and the first stream to finish will submit it to the waiting queue.
-         *
-         * TODO: it would certainly be a better design to have all state updates in the main loop and get rid of the current RRWLock mess ;
-         *       for later: consider returning tuples of (node, result) and perform all state operations after the CompletionService returns
-         */
-        if (node instanceof StreamGenerator)
-        {
-            long offset = heap.getNextStreamOffset((StreamGenerator<?, ?>) node);
-            OffsetNode offsetNode = new OffsetNode(node, offset);
+    /**
+     *
+     * @param node the node to run, if null the task runs the highest priority node of the ready queue
+     * @param context
+     * @return
+     */
+    private Task task(Node node, RunContext context)
+    {
+        Task task = context.recycling ? this.tasks.get().poll() : null;
+
+        if (task == null)
+            task = new Task();
 
-            state.submit(offsetNode);
-            state.initiateStream(offsetNode);
+        task.node = node;
+        task.context = context;
+        return task;
+    }
+
+    /**
+     *
+     * @param task
+     */
+    private void recycle(Task task)
+    {
+        task.node = null;
+        task.context = null;
+        task.ready.clear();
 
-            this.completionService.submit(() -> {
-                boolean isSuccess = this.execution.launch(offsetNode, heap);
+        ArrayDeque<Task> pool = this.tasks.get();
+        if (pool.size() < TASK_POOL_SIZE)
+            pool.push(task);
+    }
 
-                if (!isSuccess)
-                    state.blockAll(offsetNode.getDownstream());
+    /**
+     *
+     * @param task
+     * @param context
+     */
+    private void submit(Runnable task, RunContext context)
+    {
+        /* Once the run has failed, nothing is submitted anymore so that the run can drain and release the pool */
+        if (context.isFailed())
+            return;
 
-                state.completeStreamItem(offsetNode);
+        context.acquire();
 
-                return offsetNode;
-            });
+        /* When several runs compete for the pool, tasks go through the fair scheduler */
+        if (this.activeRuns > 1)
+        {
+            this.fairScheduler.enqueue(context.runQueue, task);
+            try {
+                context.pool.execute(this.runNext);
+            }
+            catch (RejectedExecutionException e) {
+                /* If the task was already picked up by another run's call, it will be released upon completion as usual */
+                if (this.fairScheduler.remove(context.runQueue, task))
+                    context.release();
+                context.fail(e);
+            }
         }
-        else {
-            state.submit(node);
+        /* Within a ForkJoinPool worker, tasks are forked to the worker's local deque, they can then be stolen by idle workers */
+        else if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == context.pool)
+            ForkJoinTask.adapt(task).fork();
+        else
+        {
+            try {
+                context.pool.execute(task);
+            }
+            catch (RejectedExecutionException e) {
+                /* A rejected task will never release its count, the run has to fail instead of waiting for it */
+                context.release();
+                context.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Executes the provided node on the current worker thread, then proceeds with its successors in a continuation-passing style.
+     * Upon completion, the worker runs one of the newly-ready nodes itself and only hands extra ones back to the pool.
+     * This way successive stream nodes for a given offset remain on the same thread and don't go through the pool queue between each step.
+     *
+     * The list of ready nodes is provided by the caller, and reused from one step to the next.
+     *
+     * @param node
+     * @param context
+     * @param readyNodes
+     */
+    private void process(Node node, RunContext context, List<Node> readyNodes)
+    {
+        try {
+            Node current = node;
+            int steps = 0;
 
-            this.completionService.submit(() -> {
-                boolean isSuccess = this.execution.launch(node, heap);
+            while (current != null && !context.isFailed())
+            {
+                readyNodes.clear();
 
-                if (!isSuccess)
-                    state.blockAll(node.getDownstream());
+                if (current instanceof StreamGenerator)
+                    this.launchGenerator((StreamGenerator) current, context, readyNodes);
+                else
+                    this.launch(current, context, readyNodes);
 
-                if (node instanceof OffsetNode)
+                current = this.schedule(readyNodes, context);
+
+                /* If other runs are waiting for the pool, long continuations are handed back so that the worker can serve them */
+                if (current != null && ++steps >= CONTINUATION_BUDGET && this.activeRuns > 1)
                 {
-                    if (isSuccess)
-                        state.completeStreamItem((OffsetNode) node);
-                    else
-                        state.terminateStream((OffsetNode) node);
+                    this.dispatch(current, context);
+                    current = null;
                 }
+            }
 
-                return node;
-            });
+            if (context.state.isDone())
+                context.done();
+        }
+        catch (Exception | Error e) {
+            context.fail(e);
         }
     }
 
     /**
+     * Dispatches newly-ready nodes and selects the one the current worker should proceed with.
      *
-     * @param node Target node
-     * @param state
-     * @param heap
-     * @return The current NodeState for the Node
+     * @param readyNodes
+     * @param context
+     * @return
      */
-    private NodeState isReady(Node node, RuntimeState state, Heap heap)
+    private Node schedule(List<Node> readyNodes, RunContext context)
     {
-        if (node instanceof OffsetNode)
+        if (context.queue == null)
         {
-            OffsetNode offsetNode = (OffsetNode) node;
-            Node actualNode = offsetNode.getNode();
+            Node continuation = selectContinuation(readyNodes);
 
-            if (state.isBlocked(offsetNode) || state.isBlocked(actualNode))
-                return NodeState.BLOCKED;
-            for (Node usn : actualNode.getUpstream())
+            for (int i = 0 ; i < readyNodes.size() ; ++i)
             {
-                if (!heap.has(usn.getUid(), offsetNode.getOffset()))
-                    return NodeState.NOT_READY;
+                if (readyNodes.get(i) != continuation)
+                    this.dispatch(readyNodes.get(i), context);
             }
-            return NodeState.READY;
+
+            return continuation;
+        }
+
+        if (readyNodes.isEmpty())
+            return context.queue.isEmpty() ? null : context.queue.poll();
+        if (readyNodes.size() == 1 && context.queue.isEmpty())
+            return readyNodes.get(0);
+
+        /*
+         * Ready nodes are pushed to the queue and one task is submitted for each node beyond the first, the current worker then proceeds with the highest priority node.
+         * This can result in a submitted task finding the queue empty, in which case it simply ends.
+         */
+        context.queue.pushAll(readyNodes);
+        for (int i = 1 ; i < readyNodes.size() ; ++i)
+            this.submit(this.task(null, context), context);
+
+        return context.queue.poll();
+    }
+
+    /**
+     * If the generator cannot produce a new offset yet, it will be dispatched again by the RuntimeState upon the completion of its current offsets.
+     * This is also the case when the heap is over budget, as long as the stream has offsets in flight: a stream is always allowed one offset at a time, so that it can't stall.
+     *
+     * @param generatorNode
+     * @param context
+     * @param readyNodes
+     * @throws PipelineRunException
+     */
+    private void launchGenerator(StreamGenerator generatorNode, RunContext context, List<Node> readyNodes) throws PipelineRunException
+    {
+        if (!context.state.reserveGenerator(generatorNode))
+            return;
+
+        if (context.accounting != null && context.accounting.isOverBudget() && context.state.deferGenerator(generatorNode))
+        {
+            context.accounting.recordDeferral();
+            return;
         }
-        else if (node instanceof StreamAccumulator)
+
+        Generator generator = context.heap.getStreamGenerator(generatorNode);
+
+        /* If the generator is exhausted, the stream will complete as soon as its remaining offsets do */
+        if (!generator.hasNext())
         {
-            if (state.isBlocked(node))
-                return NodeState.BLOCKED;
+            context.state.exhaust(generatorNode, readyNodes);
+            return;
+        }
 
-            if (!state.isStreamComplete((StreamAccumulator) node))
-                return NodeState.NOT_READY;
+        long offset = context.heap.getNextStreamOffset(generatorNode);
 
-            for (Node nr : node.getRequirements())
+        this.launch(context.state.initiateStreamItem(generatorNode, offset), context, readyNodes);
+    }
+
+    /**
+     * Stream nodes are recycled by the RuntimeState once their offset is over, so the node mustn't be used after its completion is registered.
+     *
+     * @param node
+     * @param context
+     * @param readyNodes
+     * @throws PipelineRunException
+     */
+    private void launch(Node node, RunContext context, List<Node> readyNodes) throws PipelineRunException
+    {
+        if (logger.isDebugEnabled())
+        {
+            if (node instanceof OffsetNode)
             {
-                /* We already take care of stream requirements by checking for the stream completion */
-                if (nr instanceof StreamGenerator || nr instanceof StreamNode)
-                    continue;
+                Node actualNode = ((OffsetNode) node).getNode();
+                logger.debug("Running flow node #{} offset {} ({})", actualNode.getUid(), ((OffsetNode) node).getOffset(), actualNode.getClass().getSimpleName());
+            }
+            else
+                logger.debug("Running flow node #{} ({})", node.getUid(), node.getClass().getSimpleName());
+        }
 
-                if (!state.isCompleted(nr))
-                    return NodeState.NOT_READY;
+        if (this.execution.isAsync(node, context.heap))
+        {
+            this.launchAsync(node, context, readyNodes);
+            return;
+        }
+
+        if (this.costModel == null)
+        {
+            context.state.complete(node, this.execution.launch(node, context.heap), readyNodes);
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean isSuccess = this.execution.launch(node, context.heap);
+        this.costModel.record(node instanceof OffsetNode ? ((OffsetNode) node).getNode() : node, System.nanoTime() - start);
+
+        context.state.complete(node, isSuccess, readyNodes);
+    }
+
+    /**
+     * Asynchronous nodes don't hold the worker while their future is pending: the worker moves on, and the node's completion is registered by whichever thread completes the future.
+     * Until then the node is still considered as dispatched, which keeps the run going, and counts towards its stream's parallelism.
+     * Futures which are already completed are registered right away, so that the worker can proceed with the nodes they make ready.
+     *
+     * @param node
+     * @param context
+     * @param readyNodes
+     * @throws PipelineRunException
+     */
+    private void launchAsync(Node node, RunContext context, List<Node> readyNodes) throws PipelineRunException
+    {
+        Node actualNode = node instanceof OffsetNode ? ((OffsetNode) node).getNode() : node;
+        long start = this.costModel != null ? System.nanoTime() : 0;
+        CompletableFuture<Boolean> future = this.execution.launchAsync(node, context.heap, this.continuations(context));
+
+        if (!future.isDone())
+        {
+            future.whenComplete((success, failure) -> this.resume(node, actualNode, start, success, failure, context));
+            return;
+        }
+
+        boolean isSuccess;
+        try {
+            isSuccess = future.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof PipelineRunException)
+                throw (PipelineRunException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+
+        if (this.costModel != null)
+            this.costModel.record(actualNode, System.nanoTime() - start);
+
+        context.state.complete(node, isSuccess, readyNodes);
+    }
+
+    /**
+     * Calls back into asynchronous actors are submitted to the pool like any other task, they count as active tasks of the run and are dropped once it has failed.
+     *
+     * @param context
+     * @return an executor for the continuations of asynchronous actors
+     */
+    private Executor continuations(RunContext context)
+    {
+        return task -> this.submit(() -> {
+            try {
+                task.run();
             }
+            finally {
+                context.release();
+            }
+        }, context);
+    }
+
+    /**
+     * Registers the completion of an asynchronous node from the thread which completed its future.
+     * Nodes it makes ready are dispatched to the pool instead of being ran on that thread, which may belong to an I/O library.
+     *
+     * @param node
+     * @param actualNode
+     * @param start
+     * @param success
+     * @param failure
+     * @param context
+     */
+    private void resume(Node node, Node actualNode, long start, Boolean success, Throwable failure, RunContext context)
+    {
+        /* The callback counts as an active task, so that a failed run waits for it before letting go of the pool and heap */
+        context.acquire();
 
-            return NodeState.READY;
+        if (context.isFailed())
+        {
+            context.release();
+            return;
         }
-        else {
-            if (state.isBlocked(node))
-                return NodeState.BLOCKED;
 
-            for (Node nr : node.getRequirements())
-            {
-                if (!state.isCompleted(nr))
-                    return NodeState.NOT_READY;
+        if (failure != null)
+        {
+            context.fail(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+            context.release();
+            return;
+        }
+
+        try {
+            if (this.costModel != null)
+                this.costModel.record(actualNode, System.nanoTime() - start);
+
+            List<Node> readyNodes = context.state.complete(node, success, new ArrayList<>());
+
+            for (int i = 0 ; i < readyNodes.size() ; ++i)
+                this.dispatch(readyNodes.get(i), context);
+
+            if (context.state.isDone())
+                context.done();
+        }
+        catch (Exception | Error e) {
+            context.fail(e);
+        }
+        finally {
+            context.release();
+        }
+    }
+
+    /**
+     * Stream nodes and standard nodes are favored over generators, so that a given offset is carried through its stream by the same worker.
+     *
+     * @param readyNodes
+     * @return
+     */
+    private static Node selectContinuation(List<Node> readyNodes)
+    {
+        for (int i = 0 ; i < readyNodes.size() ; ++i)
+        {
+            if (!(readyNodes.get(i) instanceof StreamGenerator))
+                return readyNodes.get(i);
+        }
+        return readyNodes.isEmpty() ? null : readyNodes.get(0);
+    }
+
+    /**
+     * A recyclable task running a node, it also holds the list of ready nodes reused by the worker throughout its continuations.
+     */
+    private final class Task implements Runnable
+    {
+        private final List<Node> ready = new ArrayList<>();
+        private Node node;
+        private RunContext context;
+
+        @Override
+        public void run()
+        {
+            RunContext context = this.context;
+
+            try {
+                Node node = this.node != null ? this.node : context.queue.poll();
+
+                process(node, context, this.ready);
+
+                if (context.recycling)
+                    recycle(this);
+            }
+            finally {
+                context.release();
             }
+        }
+    }
 
-            return NodeState.READY;
+    /**
+     * Per-run heap and state which can be recycled between runs in hot mode.
+     */
+    private static final class Resources
+    {
+        private final SlotHeap heap;
+        private final RuntimeState state;
+
+        private Resources(SlotHeap heap, RuntimeState state)
+        {
+            this.heap = heap;
+            this.state = state;
         }
     }
 
     /**
-     * The NodeState enum represents the different states a Node can be in at runtime before its execution.
-     * READY is for Nodes that are ready to be executed
-     * NOT_READY is for Nodes that aren't yet ready to be executed
-     * BLOCKED is for Nodes that will not be executed either because they will never get all of their inputs, or because a parent Node blocked their branch
+     * Per-run execution context shared by worker threads.
      */
-    protected enum NodeState
+    private static final class RunContext
     {
-        READY, NOT_READY, BLOCKED
+        private final Heap heap;
+        private final AccountingHeap accounting;
+        private final RuntimeState state;
+        private final ReadyQueue queue;
+        private final FairScheduler.RunQueue runQueue;
+        private final ExecutorService pool;
+        /* Tasks are only recycled when the pool reuses its threads, with a thread per task (eg. virtual threads) each thread-local pool would be allocated for a single task */
+        private final boolean recycling;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        /* Number of submitted tasks and completion callbacks which haven't ended yet */
+        private final AtomicInteger active = new AtomicInteger(0);
+        private volatile boolean draining = false;
+        private volatile Throwable failure;
+
+        private RunContext(Heap heap, AccountingHeap accounting, RuntimeState state, ReadyQueue queue, FairScheduler.RunQueue runQueue, ExecutorService pool)
+        {
+            this.heap = heap;
+            this.accounting = accounting;
+            this.state = state;
+            this.queue = queue;
+            this.runQueue = runQueue;
+            this.pool = pool;
+            this.recycling = pool instanceof ThreadPoolExecutor || pool instanceof ForkJoinPool;
+        }
+
+        private void await() throws InterruptedException
+        {
+            this.latch.await();
+        }
+
+        /**
+         * Waits until every submitted task and completion callback has ended.
+         * Once the run is over (either done or failed) nothing new is submitted, so the number of active tasks can only decrease.
+         */
+        synchronized private void drain() throws InterruptedException
+        {
+            this.draining = true;
+
+            while (this.active.get() > 0)
+                this.wait();
+        }
+
+        /**
+         * Same as drain, but interruptions don't cut the wait short, they are only reported once every task has ended.
+         */
+        synchronized private void drainUninterruptibly()
+        {
+            boolean interrupted = false;
+            this.draining = true;
+
+            while (this.active.get() > 0)
+            {
+                try {
+                    this.wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        private void acquire()
+        {
+            this.active.incrementAndGet();
+        }
+
+        private void release()
+        {
+            if (this.active.decrementAndGet() == 0 && this.draining)
+            {
+                synchronized (this) {
+                    this.notifyAll();
+                }
+            }
+        }
+
+        private void done()
+        {
+            this.latch.countDown();
+        }
+
+        private boolean isFailed()
+        {
+            return this.failure != null;
+        }
+
+        synchronized private void fail(Throwable failure)
+        {
+            if (this.failure == null)
+                this.failure = failure;
+            this.latch.countDown();
+        }
     }
 }
@@ -1,13 +1,25 @@
 package com.noleme.flow.impl.parallel.compiler;
 
+import com.noleme.flow.impl.pipeline.runtime.heap.SlotIndex;
 import com.noleme.flow.node.Node;
 import com.noleme.flow.stream.StreamGenerator;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
+ * Compiled indexes used by the ParallelRuntime.
+ *
+ * Each node is given a dense integer index, which is then used for addressing pending-dependency counters and dependency tables at runtime.
+ * Dependencies are evaluated at two different levels:
+ * - "gate" dependencies, which concern non-stream nodes and stream generators (ie. nodes which are executed once per run)
+ * - "offset" dependencies, which concern stream nodes within a given stream (ie. nodes which are executed once per stream offset)
+ *
+ * Any dependency from a stream node towards a node outside its stream is lifted to its generator, so that a stream can only be initiated once all its external dependencies are met.
+ * Any dependency towards a stream node from outside its stream is considered as a dependency towards the completion of the whole stream.
+ *
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
  * Created on 2020/12/14
  */
@@ -16,21 +28,167 @@ public final class ParallelIndexes
 {
     public final Map<Node, StreamGenerator> generators;
     public final Map<StreamGenerator, Set<Node>> streamNodes;
+    /* Dense index for each node in the graph */
+    public final Map<Node, Integer> indices;
+    public final Node[] nodes;
+    /* Initial pending-dependency counter of each node (gate-level for non-stream nodes and generators, offset-level for stream nodes) */
+    public final int[] requirements;
+    /* Nodes which counter should be decremented upon completion (gate-level for non-stream nodes, offset-level for stream nodes and generators) */
+    public final int[][] dependents;
+    /* Nodes which counter should be decremented upon the completion of a stream, only set for generators */
+    public final int[][] streamDependents;
+    /* Nodes which should be blocked upon an interruption, accumulators are not included */
+    public final int[][] downstream;
+    /* Generator index for stream nodes and generators, -1 otherwise */
+    public final int[] streams;
+    /* Position of stream nodes within their stream (generators have position 0) */
+    public final int[] positions;
+    /* Initial offset-level pending-dependency counters of a stream indexed by position, only set for generators */
+    public final int[][] offsetRequirements;
+    /* Node index of each position within a stream, only set for generators */
+    public final int[][] streamMembers;
+    /* Node index of each non-stream upstream of a stream's nodes, once per consuming stream node, only set for generators */
+    public final int[][] streamSideInputs;
+    /* Node index of each upstream within the same stream, only set for stream nodes */
+    public final int[][] streamUpstreams;
+    /* Heap slots, which share the dense node indexes */
+    public final SlotIndex slots;
 
     public ParallelIndexes(
         Map<Node, StreamGenerator> generatorsIndex,
-        Map<StreamGenerator, Set<Node>> streamNodesIndex
+        Map<StreamGenerator, Set<Node>> streamNodesIndex,
+        Map<Node, Integer> indices,
+        Node[] nodes,
+        int[] requirements,
+        int[][] dependents,
+        int[][] streamDependents,
+        int[][] downstream,
+        int[] streams,
+        int[] positions,
+        int[][] offsetRequirements
     )
     {
         this.generators = generatorsIndex;
         this.streamNodes = streamNodesIndex;
+        this.indices = indices;
+        this.nodes = nodes;
+        this.requirements = requirements;
+        this.dependents = dependents;
+        this.streamDependents = streamDependents;
+        this.downstream = downstream;
+        this.streams = streams;
+        this.positions = positions;
+        this.offsetRequirements = offsetRequirements;
+        this.streamMembers = computeStreamMembers(streams, positions, offsetRequirements);
+        this.streamSideInputs = computeStreamSideInputs(nodes, indices, streams, this.streamMembers);
+        this.streamUpstreams = computeStreamUpstreams(nodes, indices, streams);
+        this.slots = new SlotIndex(nodes);
     }
 
-    public ParallelIndexes copy()
+    /**
+     *
+     * @param index
+     * @return true if the node at the given index is a stream node (generators excluded)
+     */
+    public boolean isStreamNode(int index)
     {
-        return new ParallelIndexes(
-            new HashMap<>(this.generators),
-            new HashMap<>(this.streamNodes)
-        );
+        return this.streams[index] >= 0 && this.streams[index] != index;
+    }
+
+    /**
+     *
+     * @param index
+     * @return true if the node at the given index is a stream generator
+     */
+    public boolean isGenerator(int index)
+    {
+        return this.streams[index] == index;
+    }
+
+    /**
+     *
+     * @param streams
+     * @param positions
+     * @param offsetRequirements
+     * @return
+     */
+    private static int[][] computeStreamMembers(int[] streams, int[] positions, int[][] offsetRequirements)
+    {
+        int[][] members = new int[streams.length][];
+
+        for (int i = 0 ; i < streams.length ; ++i)
+        {
+            if (streams[i] == i)
+                members[i] = new int[offsetRequirements[i].length];
+        }
+        for (int i = 0 ; i < streams.length ; ++i)
+        {
+            if (streams[i] >= 0)
+                members[streams[i]][positions[i]] = i;
+        }
+
+        return members;
+    }
+
+    /**
+     *
+     * @param nodes
+     * @param indices
+     * @param streams
+     * @param streamMembers
+     * @return
+     */
+    private static int[][] computeStreamSideInputs(Node[] nodes, Map<Node, Integer> indices, int[] streams, int[][] streamMembers)
+    {
+        int[][] sideInputs = new int[streams.length][];
+
+        for (int i = 0 ; i < streams.length ; ++i)
+        {
+            if (streams[i] != i)
+                continue;
+
+            List<Integer> upstreams = new ArrayList<>();
+            for (int position = 1 ; position < streamMembers[i].length ; ++position)
+            {
+                for (Node upstream : nodes[streamMembers[i][position]].getUpstream())
+                {
+                    int index = indices.get(upstream);
+                    if (streams[index] != i)
+                        upstreams.add(index);
+                }
+            }
+            sideInputs[i] = upstreams.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        return sideInputs;
+    }
+
+    /**
+     *
+     * @param nodes
+     * @param indices
+     * @param streams
+     * @return
+     */
+    private static int[][] computeStreamUpstreams(Node[] nodes, Map<Node, Integer> indices, int[] streams)
+    {
+        int[][] streamUpstreams = new int[streams.length][];
+
+        for (int i = 0 ; i < streams.length ; ++i)
+        {
+            if (streams[i] < 0 || streams[i] == i)
+                continue;
+
+            List<Integer> upstreams = new ArrayList<>();
+            for (Node upstream : nodes[i].getUpstream())
+            {
+                int index = indices.get(upstream);
+                if (streams[index] == streams[i])
+                    upstreams.add(index);
+            }
+            streamUpstreams[i] = upstreams.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        return streamUpstreams;
     }
 }
@@ -1,7 +1,13 @@
 package com.noleme.flow.impl.parallel.runtime.executor;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -10,6 +16,8 @@ import java.util.concurrent.TimeUnit;
  */
 public final class Executors
 {
+    private static final Logger logger = LoggerFactory.getLogger(Executors.class);
+
     private Executors()
     {
     }
@@ -24,4 +32,71 @@ public final class Executors
             new LinkedBlockingQueue<>()
         );
     }
+
+    /**
+     * Returns a work-stealing ExecutorService backed by a {@link ForkJoinPool}.
+     * Each worker has its own task deque: nodes dispatched by a worker upon completion are pushed to its local deque, and idle workers steal from the others.
+     * The pool is created in async mode, which is better suited to event-style tasks that are never joined.
+     *
+     * @param parallelism the targeted parallelism level
+     * @return
+     */
+    public static ExecutorService newWorkStealingPool(int parallelism)
+    {
+        return new ForkJoinPool(
+            parallelism,
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+            null,
+            true
+        );
+    }
+
+    /**
+     * Returns an unbounded ExecutorService which spawns threads on demand and reuses idle ones.
+     *
+     * @return
+     */
+    public static ExecutorService newCachedThreadPool()
+    {
+        return new ThrowingThreadPoolExecutor(
+            0,
+            Integer.MAX_VALUE,
+            60L,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<>()
+        );
+    }
+
+    /**
+     * Returns an ExecutorService running each task on its own virtual thread, which is suited to flows dominated by blocking I/O actors (HTTP clients, JDBC, file reads, etc.).
+     * There is no global cap on concurrency, {@link com.noleme.flow.stream.StreamGenerator#setMaxParallelism(int)} remains the concurrency cap of each stream.
+     *
+     * The library is built for Java 11, so virtual thread support is probed at runtime through reflection rather than through a multi-release build.
+     * Virtual threads are only available from Java 21 onwards: on earlier versions a warning is logged and this falls back to a fixed pool of one thread per available processor.
+     *
+     * @return
+     * @see #newVirtualThreadPerTaskExecutor(int)
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        return newVirtualThreadPerTaskExecutor(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Same as {@link #newVirtualThreadPerTaskExecutor()}, with an explicit size for the fixed pool used on Java versions without virtual threads.
+     *
+     * @param fallbackThreads the number of threads of the fallback pool
+     * @return
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(int fallbackThreads)
+    {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads are not supported by this JVM (Java {}), falling back to a fixed pool of {} threads", System.getProperty("java.version"), fallbackThreads);
+            return newFixedThreadPool(fallbackThreads);
+        }
+    }
 }
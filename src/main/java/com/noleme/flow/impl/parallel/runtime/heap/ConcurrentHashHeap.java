@@ -1,42 +1,46 @@
 package com.noleme.flow.impl.parallel.runtime.heap;
 
+import com.noleme.flow.actor.accumulator.FoldingAccumulator;
 import com.noleme.flow.actor.generator.Generator;
-import com.noleme.flow.impl.parallel.runtime.state.RRWLock;
+import com.noleme.flow.impl.pipeline.runtime.heap.Accumulation;
 import com.noleme.flow.impl.pipeline.runtime.heap.Counter;
-import com.noleme.flow.impl.pipeline.runtime.heap.CounterContainer;
 import com.noleme.flow.impl.pipeline.runtime.heap.Heap;
 import com.noleme.flow.io.input.Input;
 import com.noleme.flow.io.input.Key;
 import com.noleme.flow.io.output.OutputMap;
 import com.noleme.flow.io.output.WriteableOutput;
+import com.noleme.flow.stream.StreamAccumulator;
 import com.noleme.flow.stream.StreamGenerator;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
 
 /**
+ * A thread-safe Heap backed by concurrent hash maps keyed by node uid.
+ *
+ * @deprecated compiled runtimes use a {@link com.noleme.flow.impl.pipeline.runtime.heap.SlotHeap}, this implementation isn't used by the library anymore and will be removed in a future release.
  * @author Pierre Lecerf (pierre.lecerf@gmail.com) on 23/07/15.
  */
+@Deprecated
 @SuppressWarnings("rawtypes")
 public class ConcurrentHashHeap implements Heap
 {
     private final Map<String, Counter> contents;
     private final Map<String, Generator> generators;
-    private final Map<String, CounterContainer> streamContents;
+    private final Map<String, Map<Long, Counter>> streamContents;
     private final Map<String, Long> offsets;
+    private final Map<String, Accumulation> accumulations;
     private final Input input;
     private final WriteableOutput output;
-    private final RRWLock contentLock = new RRWLock();
-    private final RRWLock streamLock = new RRWLock();
 
     public ConcurrentHashHeap(Input input)
     {
         super();
         this.contents = new ConcurrentHashMap<>();
         this.streamContents = new ConcurrentHashMap<>();
-        this.generators = new HashMap<>();
-        this.offsets = new HashMap<>();
+        this.generators = new ConcurrentHashMap<>();
+        this.offsets = new ConcurrentHashMap<>();
+        this.accumulations = new ConcurrentHashMap<>();
         this.input = input;
         this.output = new OutputMap();
     }
@@ -51,55 +55,48 @@ public class ConcurrentHashHeap implements Heap
     @Override
     public boolean has(String id)
     {
-        try {
-            this.contentLock.read.lock();
-            return this.contents.containsKey(id);
-        }
-        finally {
-            this.contentLock.read.unlock();
-        }
+        return this.contents.containsKey(id);
     }
 
     @Override
     public Object peek(String id)
     {
-        try {
-            this.contentLock.read.lock();
-
-            if (this.contents.containsKey(id))
-                return this.contents.get(id).getValue();
-            return null;
-        }
-        finally {
-            this.contentLock.read.unlock();
-        }
+        Counter counter = this.contents.get(id);
+        return counter != null ? counter.getValue() : null;
     }
 
+    /**
+     * Only the consumer bringing the count down to zero removes the entry, the removal is conditioned on the entry still being the same counter in case the node was pushed again in the meantime.
+     *
+     * @param id
+     * @return
+     */
     @Override
     public Object consume(String id)
     {
-        try {
-            this.contentLock.write.lock();
-
-            if (this.contents.containsKey(id))
-            {
-                Counter counter = this.contents.get(id).decrement();
-                if (counter.getCount() == 0)
-                    this.contents.remove(id);
-                return counter.getValue();
-            }
+        Counter counter = this.contents.get(id);
+
+        if (counter == null)
             return null;
-        }
-        finally {
-            this.contentLock.write.unlock();
-        }
+        if (counter.decrementAndGet() == 0)
+            this.contents.remove(id, counter);
+        return counter.getValue();
     }
 
+    /**
+     * Generator creation isn't synchronized on the heap, so that a slow generator construction (opening a file, a DB cursor, etc.) doesn't stall other streams.
+     * The ParallelRuntime guarantees that a given generator is only ever reserved by one worker at a time, so it can't be created twice.
+     *
+     * @param node
+     * @return
+     */
     @Override
     @SuppressWarnings("unchecked")
-    synchronized public Generator getStreamGenerator(StreamGenerator node)
+    public Generator getStreamGenerator(StreamGenerator node)
     {
-        if (!this.generators.containsKey(node.getUid()))
+        Generator generator = this.generators.get(node.getUid());
+
+        if (generator == null)
         {
             /* If the node has an upstream node, we recover its output, otherwise the generator has a null input */
             var argument = node.getSimpleUpstream() != null
@@ -107,125 +104,99 @@ public class ConcurrentHashHeap implements Heap
                 : null
             ;
 
-            this.generators.put(node.getUid(), node.produceGenerator(argument));
+            generator = node.produceGenerator(argument);
+            this.generators.put(node.getUid(), generator);
         }
-        return this.generators.get(node.getUid());
+        return generator;
     }
 
     @Override
-    synchronized public long getNextStreamOffset(StreamGenerator node)
+    public long getNextStreamOffset(StreamGenerator node)
     {
-        this.offsets.put(node.getUid(), this.offsets.getOrDefault(node.getUid(), -1L) + 1);
-        return this.offsets.get(node.getUid());
+        return this.offsets.merge(node.getUid(), 0L, (current, initial) -> current + 1);
     }
 
     @Override
-    public Heap push(String id, long offset, Object returnValue, int counter)
+    public void closeStreamGenerators()
     {
-        try {
-            this.streamLock.write.lock();
-
-            if (!this.streamContents.containsKey(id))
-                this.streamContents.put(id, new CounterContainer());
-
-            this.streamContents.get(id).set(offset, new Counter(returnValue, counter));
+        for (Generator generator : this.generators.values())
+            Heap.closeStreamGenerator(generator);
+    }
 
-            return this;
-        }
-        finally {
-            this.streamLock.write.unlock();
-        }
+    @Override
+    public Heap push(String id, long offset, Object returnValue, int counter)
+    {
+        this.streamContents
+            .computeIfAbsent(id, i -> new ConcurrentHashMap<>())
+            .put(offset, new Counter(returnValue, counter))
+        ;
+        return this;
     }
 
     @Override
     public boolean has(String id, long offset)
     {
-        try {
-            this.streamLock.read.lock();
-            this.contentLock.read.lock();
-
-            if (this.hasStreamContent(id, offset))
-                return true;
-            return this.has(id);
-        }
-        finally {
-            this.streamLock.read.unlock();
-            this.contentLock.read.unlock();
-        }
+        return this.hasStreamContent(id, offset) || this.has(id);
     }
 
     @Override
     public Object peek(String id, long offset)
     {
-        try {
-            this.streamLock.read.lock();
-            this.contentLock.read.lock();
-
-            if (this.hasStreamContent(id, offset))
-                return this.streamContents.get(id).get(offset).getValue();
-            else if (this.contents.containsKey(id))
-                return this.contents.get(id).getValue();
-            return null;
-        }
-        finally {
-            this.streamLock.read.unlock();
-            this.contentLock.read.unlock();
-        }
+        Map<Long, Counter> container = this.streamContents.get(id);
+        Counter counter = container != null ? container.get(offset) : null;
+
+        return counter != null ? counter.getValue() : this.peek(id);
     }
 
     @Override
     public Object consume(String id, long offset)
     {
-        try {
-            this.streamLock.write.lock();
-            this.contentLock.write.lock();
-
-            if (this.hasStreamContent(id, offset))
-            {
-                CounterContainer container = this.streamContents.get(id);
-                Counter counter = container.get(offset).decrement();
-
-                if (counter.getCount() == 0)
-                    container.remove(offset);
-
-                return counter.getValue();
-            }
-            else if (this.contents.containsKey(id))
-            {
-                Counter counter = this.contents.get(id).decrement();
-
-                return counter.getValue();
-            }
-            return null;
-        }
-        finally {
-            this.streamLock.write.unlock();
-            this.contentLock.write.unlock();
+        Map<Long, Counter> container = this.streamContents.get(id);
+        Counter counter = container != null ? container.get(offset) : null;
+
+        if (counter != null)
+        {
+            if (counter.decrementAndGet() == 0)
+                container.remove(offset, counter);
+            return counter.getValue();
         }
+        /* Non-stream values consumed from within a stream are shared by every offset, the runtime consumes them once per stream node when the stream is over */
+        return this.peek(id);
     }
 
+    /**
+     * This is expected to be called once the stream is over, hence without any concurrent update to the node's stream contents.
+     *
+     * @param id
+     * @return
+     */
     @Override
     public Collection<Object> consumeAll(String id)
     {
-        try {
-            this.streamLock.write.lock();
+        Map<Long, Counter> container = this.streamContents.get(id);
 
-            if (!this.streamContents.containsKey(id))
-                return Collections.emptyList();
+        if (container == null)
+            return Collections.emptyList();
 
-            List<Object> values = this.streamContents.get(id).stream()
-                .map(c -> c.decrement().getValue())
-                .collect(Collectors.toList())
-            ;
+        List<Object> values = new ArrayList<>(container.size());
+        for (Long offset : new TreeSet<>(container.keySet()))
+        {
+            Counter counter = container.get(offset);
+            if (counter.decrementAndGet() == 0)
+                container.remove(offset, counter);
+            values.add(counter.getValue());
+        }
 
-            if (this.streamContents.get(id).removeConsumed() == 0)
-                this.streamContents.remove(id);
+        if (container.isEmpty())
+            this.streamContents.remove(id, container);
 
-            return values;
-        }
-        finally {
-            this.streamLock.write.unlock();
-        }
+        return values;
+    }
+
+    @Override
+    public Accumulation getAccumulation(StreamAccumulator node)
+    {
+        return this.accumulations.computeIfAbsent(node.getUid(), uid -> new Accumulation((FoldingAccumulator) node.getActor()));
     }
 
     @Override
@@ -264,7 +235,7 @@ public class ConcurrentHashHeap implements Heap
         var container = this.streamContents.get(id);
 
         return container != null
-            && container.get(offset) != null
+            && container.containsKey(offset)
         ;
     }
 }
@@ -0,0 +1,113 @@
+package com.noleme.flow.impl.parallel.runtime.scheduler;
+
+import com.noleme.flow.node.Node;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-node cost estimates used by the ParallelRuntime for ordering ready nodes by remaining critical-path length.
+ *
+ * Estimates are resolved in the following order:
+ * - durations observed during previous runs (or earlier in the current run, for nodes executed more than once such as stream nodes)
+ * - durations loaded from a previous process, see {@link #from(Map)} and {@link #export()}
+ * - user-provided hints
+ * - a default unit cost, which amounts to ordering nodes by their remaining depth
+ *
+ * Nodes are identified by their name when they have one, by their uid otherwise.
+ * Only named nodes can be matched across processes, as uids are generated anew upon each flow definition.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/08
+ */
+public class CostModel
+{
+    /* Default cost in nanoseconds, used for nodes without any estimate */
+    public static final long DEFAULT_COST = 1_000;
+
+    private final Map<String, Long> hints = new ConcurrentHashMap<>();
+    private final Map<String, Long> observed = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param persisted durations previously exported through {@link #export()}
+     * @return
+     */
+    public static CostModel from(Map<String, Long> persisted)
+    {
+        CostModel model = new CostModel();
+        model.observed.putAll(persisted);
+        return model;
+    }
+
+    /**
+     *
+     * @param node
+     * @param nanos the expected duration of the node in nanoseconds
+     * @return
+     */
+    public CostModel hint(Node node, long nanos)
+    {
+        this.hints.put(key(node), nanos);
+        return this;
+    }
+
+    /**
+     *
+     * @param name
+     * @param nanos the expected duration of nodes with the provided name in nanoseconds
+     * @return
+     */
+    public CostModel hint(String name, long nanos)
+    {
+        this.hints.put(name, nanos);
+        return this;
+    }
+
+    /**
+     * Registers an observed execution duration, estimates are maintained as an exponentially weighted moving average.
+     *
+     * @param node
+     * @param nanos
+     */
+    public void record(Node node, long nanos)
+    {
+        this.observed.merge(key(node), nanos, (previous, current) -> (previous * 3 + current) / 4);
+    }
+
+    /**
+     *
+     * @param node
+     * @return the estimated duration of the node in nanoseconds
+     */
+    public long estimate(Node node)
+    {
+        String key = key(node);
+
+        Long estimate = this.observed.get(key);
+        if (estimate == null)
+            estimate = this.hints.get(key);
+
+        return estimate != null ? Math.max(estimate, 1) : DEFAULT_COST;
+    }
+
+    /**
+     *
+     * @return observed durations, indexed by node name (or uid for unnamed nodes)
+     */
+    public Map<String, Long> export()
+    {
+        return new HashMap<>(this.observed);
+    }
+
+    /**
+     *
+     * @param node
+     * @return
+     */
+    private static String key(Node node)
+    {
+        return node.getName() != null ? node.getName() : node.getUid();
+    }
+}
@@ -0,0 +1,91 @@
+package com.noleme.flow.impl.parallel.runtime.scheduler;
+
+import com.noleme.flow.impl.parallel.compiler.ParallelIndexes;
+
+/**
+ * Computes the remaining critical-path length of each node, ie. the estimated cost of the most expensive chain of nodes starting from it.
+ *
+ * Both gate-level and offset-level dependencies are followed, so that a generator accounts for its stream nodes and for the nodes depending on the completion of its stream.
+ * Stream nodes are accounted for a single offset, as the number of offsets isn't known ahead of time.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/08
+ */
+public final class CriticalPath
+{
+    private static final byte UNVISITED = 0;
+    private static final byte VISITING = 1;
+    private static final byte VISITED = 2;
+
+    private CriticalPath()
+    {
+    }
+
+    /**
+     * The traversal is iterative, so that deep graphs don't result in deep recursions.
+     * Cycles (which can only occur in graphs that can't be scheduled anyway) are ignored.
+     *
+     * @param indexes
+     * @param costs
+     * @return the remaining critical-path length of each node, addressed by node index
+     */
+    public static long[] compute(ParallelIndexes indexes, CostModel costs)
+    {
+        int count = indexes.nodes.length;
+        long[] lengths = new long[count];
+        byte[] states = new byte[count];
+        int[] cursors = new int[count];
+        int[] stack = new int[count];
+
+        for (int root = 0 ; root < count ; ++root)
+        {
+            if (states[root] != UNVISITED)
+                continue;
+
+            int top = 0;
+            stack[top++] = root;
+            states[root] = VISITING;
+
+            while (top > 0)
+            {
+                int index = stack[top - 1];
+                int[] dependents = indexes.dependents[index];
+                int[] streamDependents = indexes.streamDependents[index];
+                int cursor = cursors[index]++;
+
+                if (cursor < dependents.length + streamDependents.length)
+                {
+                    int successor = cursor < dependents.length
+                        ? dependents[cursor]
+                        : streamDependents[cursor - dependents.length]
+                    ;
+
+                    if (states[successor] == UNVISITED)
+                    {
+                        states[successor] = VISITING;
+                        stack[top++] = successor;
+                    }
+                    continue;
+                }
+
+                long max = 0;
+                for (int successor : dependents)
+                {
+                    if (states[successor] == VISITED)
+                        max = Math.max(max, lengths[successor]);
+                }
+                for (int successor : streamDependents)
+                {
+                    if (states[successor] == VISITED)
+                        max = Math.max(max, lengths[successor]);
+                }
+
+                lengths[index] = costs.estimate(indexes.nodes[index]) + max;
+                states[index] = VISITED;
+                top--;
+            }
+        }
+
+        return lengths;
+    }
+}
@@ -0,0 +1,108 @@
+package com.noleme.flow.impl.parallel.runtime.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A round-robin scheduler shared by concurrent runs of a given ParallelRuntime.
+ *
+ * Each run is given its own task queue, and tasks submitted to the executor don't carry a task of their own: upon starting, they pick the next task from the run queues in turn.
+ * This way, the executor alternates between runs and a run with a large backlog can't starve the others.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/12
+ */
+public class FairScheduler
+{
+    /* Run queues with pending tasks, in the order they will be served */
+    private final Deque<RunQueue> rotation = new ArrayDeque<>();
+
+    /**
+     *
+     * @return a new queue for a given run
+     */
+    public RunQueue createQueue()
+    {
+        return new RunQueue();
+    }
+
+    /**
+     * Enqueues a task for the provided run, the caller is expected to submit one call to {@link #runNext()} to the executor for each enqueued task.
+     *
+     * @param queue
+     * @param task
+     */
+    synchronized public void enqueue(RunQueue queue, Runnable task)
+    {
+        queue.tasks.add(task);
+
+        if (!queue.scheduled)
+        {
+            queue.scheduled = true;
+            this.rotation.add(queue);
+        }
+    }
+
+    /**
+     * Withdraws a task which was enqueued but couldn't be submitted to the executor (eg. upon a rejection).
+     *
+     * @param queue
+     * @param task
+     * @return true if the task was still pending, false if it was already picked up
+     */
+    synchronized public boolean remove(RunQueue queue, Runnable task)
+    {
+        if (!queue.tasks.removeLastOccurrence(task))
+            return false;
+
+        if (queue.tasks.isEmpty() && queue.scheduled)
+        {
+            queue.scheduled = false;
+            this.rotation.remove(queue);
+        }
+        return true;
+    }
+
+    /**
+     * Runs the next task in the rotation, if any.
+     */
+    public void runNext()
+    {
+        Runnable task = this.next();
+
+        if (task != null)
+            task.run();
+    }
+
+    /**
+     *
+     * @return
+     */
+    synchronized private Runnable next()
+    {
+        RunQueue queue = this.rotation.poll();
+
+        if (queue == null)
+            return null;
+
+        Runnable task = queue.tasks.poll();
+
+        /* The run goes back to the end of the rotation if it still has pending tasks */
+        if (queue.tasks.isEmpty())
+            queue.scheduled = false;
+        else
+            this.rotation.add(queue);
+
+        return task;
+    }
+
+    public static final class RunQueue
+    {
+        private final Deque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        private RunQueue()
+        {
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.noleme.flow.impl.parallel.runtime.scheduler;
+
+import com.noleme.flow.impl.parallel.compiler.ParallelIndexes;
+import com.noleme.flow.impl.pipeline.runtime.node.OffsetNode;
+import com.noleme.flow.node.Node;
+
+import java.util.Collection;
+import java.util.PriorityQueue;
+
+/**
+ * A shared queue of ready nodes for a given ParallelRuntime run, ordered by remaining critical-path length.
+ * Ties are broken in favor of lower stream offsets, then in submission order.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/08
+ */
+public class ReadyQueue
+{
+    private final ParallelIndexes indexes;
+    private final long[] priorities;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private long sequence = 0;
+    private volatile int size = 0;
+
+    /**
+     *
+     * @param indexes
+     * @param costs
+     */
+    public ReadyQueue(ParallelIndexes indexes, CostModel costs)
+    {
+        this.indexes = indexes;
+        this.priorities = CriticalPath.compute(indexes, costs);
+    }
+
+    /**
+     *
+     * @param nodes
+     */
+    synchronized public void pushAll(Collection<Node> nodes)
+    {
+        for (Node node : nodes)
+            this.queue.add(this.createEntry(node));
+        this.size = this.queue.size();
+    }
+
+    /**
+     *
+     * @param node
+     */
+    synchronized public void push(Node node)
+    {
+        this.queue.add(this.createEntry(node));
+        this.size = this.queue.size();
+    }
+
+    /**
+     *
+     * @return the ready node with the longest remaining critical path, null if the queue is empty
+     */
+    synchronized public Node poll()
+    {
+        Entry entry = this.queue.poll();
+        this.size = this.queue.size();
+        return entry != null ? entry.node : null;
+    }
+
+    /**
+     * This check doesn't require any lock, it is meant as a fast path for avoiding the queue when it is empty.
+     *
+     * @return
+     */
+    public boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    /**
+     *
+     * @param node
+     * @return
+     */
+    private Entry createEntry(Node node)
+    {
+        if (node instanceof OffsetNode)
+        {
+            OffsetNode offsetNode = (OffsetNode) node;
+            long priority = this.priorities[this.indexes.indices.get(offsetNode.getNode())];
+            return new Entry(node, priority, offsetNode.getOffset(), this.sequence++);
+        }
+        return new Entry(node, this.priorities[this.indexes.indices.get(node)], -1, this.sequence++);
+    }
+
+    private static final class Entry implements Comparable<Entry>
+    {
+        private final Node node;
+        private final long priority;
+        private final long offset;
+        private final long sequence;
+
+        private Entry(Node node, long priority, long offset, long sequence)
+        {
+            this.node = node;
+            this.priority = priority;
+            this.offset = offset;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other)
+        {
+            if (this.priority != other.priority)
+                return Long.compare(other.priority, this.priority);
+            if (this.offset != other.offset)
+                return Long.compare(this.offset, other.offset);
+            return Long.compare(this.sequence, other.sequence);
+        }
+    }
+}
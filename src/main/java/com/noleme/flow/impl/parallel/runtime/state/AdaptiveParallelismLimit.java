@@ -0,0 +1,113 @@
+package com.noleme.flow.impl.parallel.runtime.state;
+
+import com.noleme.flow.stream.StreamGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+
+/**
+ * An AIMD (additive-increase, multiplicative-decrease) concurrency limit for a StreamGenerator, driven by the measured latency of its offsets.
+ *
+ * The limit starts at the generator's minimum parallelism and is adjusted upon each offset completion:
+ * - if the offset latency stays within a tolerance of the baseline latency while the limit is saturated, the limit grows by roughly one per limit-sized window of offsets
+ * - if the offset latency exceeds the tolerance, the limit is multiplied by a backoff ratio, at most once per limit-sized window of offsets
+ * The baseline is the lowest observed latency, it slowly drifts towards recent samples so that a lasting change in workload doesn't pin the limit to its minimum.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/05
+ */
+@SuppressWarnings("rawtypes")
+public class AdaptiveParallelismLimit
+{
+    private static final double TOLERANCE = 2.;
+    private static final double BACKOFF = .75;
+    private static final double DRIFT = .01;
+
+    private final StreamGenerator generator;
+    private final int min;
+    private final int max;
+    private double limit;
+    private volatile int current;
+    private double baseline = Double.MAX_VALUE;
+    private int samplesSinceDecrease = 0;
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveParallelismLimit.class);
+
+    /**
+     *
+     * @param generator
+     */
+    public AdaptiveParallelismLimit(StreamGenerator generator)
+    {
+        this.generator = generator;
+        this.min = generator.getMinParallelism();
+        this.max = generator.getMaxParallelism();
+        this.limit = this.min;
+        this.current = this.min;
+    }
+
+    /**
+     *
+     * @return the current parallelism limit
+     */
+    public int get()
+    {
+        return this.current;
+    }
+
+    /**
+     * Brings the limit back to its initial state, the latency baseline is learned anew.
+     */
+    synchronized public void reset()
+    {
+        this.limit = this.min;
+        this.baseline = Double.MAX_VALUE;
+        this.samplesSinceDecrease = 0;
+        this.update();
+    }
+
+    /**
+     * Registers the latency of a completed offset.
+     *
+     * @param latency the offset latency in nanoseconds
+     * @param inFlight the number of offsets still in flight
+     */
+    synchronized public void sample(long latency, int inFlight)
+    {
+        if (latency < this.baseline)
+            this.baseline = latency;
+        else
+            this.baseline += (latency - this.baseline) * DRIFT;
+
+        this.samplesSinceDecrease++;
+
+        if (latency > this.baseline * TOLERANCE)
+        {
+            if (this.samplesSinceDecrease >= this.current)
+            {
+                this.limit = Math.max(this.min, this.limit * BACKOFF);
+                this.samplesSinceDecrease = 0;
+            }
+        }
+        /* The limit only grows if it is actually reached, otherwise there is no evidence that more parallelism can be sustained */
+        else if (inFlight + 1 >= this.current)
+            this.limit = Math.min(this.max, this.limit + 1. / this.limit);
+
+        this.update();
+    }
+
+    private void update()
+    {
+        int updated = (int) this.limit;
+
+        if (updated != this.current)
+        {
+            this.current = updated;
+            logger.debug("Adaptive parallelism limit of generator #{} changed to {}", this.generator.getUid(), updated);
+
+            if (this.generator.getParallelismListener() != null)
+                this.generator.getParallelismListener().onChange(this.generator, Instant.now(), updated);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.noleme.flow.impl.parallel.runtime.state;
+
+import com.noleme.flow.node.Node;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Runtime state of a single stream offset, nodes are addressed by their position within the stream.
+ *
+ * Counters are atomic so that offsets can be advanced by worker threads without any locking.
+ * Blocked flags don't need to be: a position is always blocked by the thread that subsequently releases it, and it is only read by the thread releasing it last.
+ *
+ * OffsetState instances are recycled by their StreamState once their offset is terminated, along with the StreamOffsetNode of each position.
+ * At that point every node of the offset has been reported back, so none of them is referenced anymore.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2020/12/14
+ */
+public class OffsetState
+{
+    private final AtomicIntegerArray pending;
+    private final boolean[] blocked;
+    private final AtomicInteger remaining = new AtomicInteger(0);
+    private final StreamOffsetNode[] nodes;
+    private long start;
+
+    /**
+     *
+     * @param members stream nodes by position
+     * @param indexes node index of each position
+     */
+    OffsetState(Node[] members, int[] indexes)
+    {
+        this.pending = new AtomicIntegerArray(members.length);
+        this.blocked = new boolean[members.length];
+        this.nodes = new StreamOffsetNode[members.length];
+
+        for (int position = 0 ; position < members.length ; ++position)
+            this.nodes[position] = new StreamOffsetNode(members[position], indexes[position], this);
+    }
+
+    /**
+     * Prepares the state for a new offset.
+     *
+     * @param offset
+     * @param pending
+     * @param blocked
+     * @return
+     */
+    OffsetState reset(long offset, int[] pending, boolean[] blocked)
+    {
+        for (int position = 0 ; position < pending.length ; ++position)
+        {
+            this.pending.set(position, pending[position]);
+            this.nodes[position].moveTo(offset);
+        }
+        System.arraycopy(blocked, 0, this.blocked, 0, blocked.length);
+        this.remaining.set(pending.length);
+        this.start = System.nanoTime();
+
+        return this;
+    }
+
+    /**
+     *
+     * @param position
+     * @return the node at the given position, for the current offset
+     */
+    public StreamOffsetNode node(int position)
+    {
+        return this.nodes[position];
+    }
+
+    /**
+     *
+     * @param position
+     * @return true if the node at the given position has no more pending requirement
+     */
+    public boolean release(int position)
+    {
+        return this.pending.decrementAndGet(position) == 0;
+    }
+
+    public void block(int position)
+    {
+        this.blocked[position] = true;
+    }
+
+    public boolean isBlocked(int position)
+    {
+        return this.blocked[position];
+    }
+
+    /**
+     *
+     * @return the time elapsed since the offset was initiated, in nanoseconds
+     */
+    public long elapsed()
+    {
+        return System.nanoTime() - this.start;
+    }
+
+    /**
+     *
+     * @return true if every node at this offset was resolved
+     */
+    public boolean resolve()
+    {
+        return this.remaining.decrementAndGet() == 0;
+    }
+}
@@ -4,8 +4,12 @@ import com.noleme.flow.stream.StreamGenerator;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Keeps track of the number of offsets being processed for each generator, counters are atomic and can be updated without locking.
+ * Generators with an adaptive parallelism are given an AdaptiveParallelismLimit, which is fed with the latency of each completed offset.
+ *
  * @author Pierre LECERF (pierre@noleme.com)
  * Created on 20/06/2021
  */
@@ -14,7 +18,15 @@ public class ParallelismState
 {
     /* Parallelism is evaluated with regards to the generators themselves */
     private final Map<StreamGenerator, ParallelismCounter> counters = new ConcurrentHashMap<>();
-    private final RRWLock lock = new RRWLock();
+
+    /**
+     * Resets every counter in place, adaptive limits are learned anew.
+     */
+    public void reset()
+    {
+        for (ParallelismCounter counter : this.counters.values())
+            counter.reset();
+    }
 
     /**
      *
@@ -23,13 +35,7 @@ public class ParallelismState
      */
     public boolean has(StreamGenerator generator)
     {
-        try {
-            this.lock.read.lock();
-            return this.counters.containsKey(generator);
-        }
-        finally {
-            this.lock.read.unlock();
-        }
+        return this.counters.containsKey(generator);
     }
 
     /**
@@ -39,16 +45,18 @@ public class ParallelismState
      */
     public boolean hasReachedMax(StreamGenerator generator)
     {
-        try {
-            this.lock.read.lock();
+        ParallelismCounter counter = this.counters.get(generator);
+        return counter != null && counter.count.get() >= counter.limit();
+    }
 
-            return this.counters.containsKey(generator)
-                && this.counters.get(generator).count() >= generator.getMaxParallelism()
-            ;
-        }
-        finally {
-            this.lock.read.unlock();
-        }
+    /**
+     *
+     * @param generator
+     * @return the current parallelism limit for the provided generator
+     */
+    public int getLimit(StreamGenerator generator)
+    {
+        return this.getOrCreateParallelism(generator).limit();
     }
 
     /**
@@ -58,16 +66,8 @@ public class ParallelismState
      */
     public boolean isIdle(StreamGenerator generator)
     {
-        try {
-            this.lock.read.lock();
-
-            return this.counters.containsKey(generator)
-                && this.counters.get(generator).count() == 0
-            ;
-        }
-        finally {
-            this.lock.read.unlock();
-        }
+        ParallelismCounter counter = this.counters.get(generator);
+        return counter != null && counter.count.get() == 0;
     }
 
     /**
@@ -77,29 +77,24 @@ public class ParallelismState
      */
     public int increase(StreamGenerator generator)
     {
-        try {
-            this.lock.write.lock();
-            return this.getOrCreateParallelism(generator).increment();
-        }
-        finally {
-            this.lock.write.unlock();
-        }
+        return this.getOrCreateParallelism(generator).count.incrementAndGet();
     }
 
     /**
      *
      * @param generator
+     * @param latency the latency of the completed offset in nanoseconds
      * @return
      */
-    public int decrease(StreamGenerator generator)
+    public int decrease(StreamGenerator generator, long latency)
     {
-        try {
-            this.lock.write.lock();
-            return this.getOrCreateParallelism(generator).decrement();
-        }
-        finally {
-            this.lock.write.unlock();
-        }
+        ParallelismCounter counter = this.getOrCreateParallelism(generator);
+        int count = counter.count.decrementAndGet();
+
+        if (counter.adaptive != null)
+            counter.adaptive.sample(latency, count);
+
+        return count;
     }
 
     /**
@@ -109,27 +104,31 @@ public class ParallelismState
      */
     private ParallelismCounter getOrCreateParallelism(StreamGenerator generator)
     {
-        if (!this.counters.containsKey(generator))
-            this.counters.put(generator, new ParallelismCounter());
-        return this.counters.get(generator);
+        return this.counters.computeIfAbsent(generator, ParallelismCounter::new);
     }
 
-    private static class ParallelismCounter
+    private static final class ParallelismCounter
     {
-        private int counter = 0;
+        private final StreamGenerator generator;
+        private final AtomicInteger count = new AtomicInteger(0);
+        private final AdaptiveParallelismLimit adaptive;
 
-        public int count() { return this.counter; }
-        public int increment()
+        private ParallelismCounter(StreamGenerator generator)
         {
-            synchronized (this) {
-                return ++this.counter;
-            }
+            this.generator = generator;
+            this.adaptive = generator.isAdaptiveParallelism() ? new AdaptiveParallelismLimit(generator) : null;
         }
-        public int decrement()
+
+        private void reset()
+        {
+            this.count.set(0);
+            if (this.adaptive != null)
+                this.adaptive.reset();
+        }
+
+        private int limit()
         {
-            synchronized (this) {
-                return --this.counter;
-            }
+            return this.adaptive != null ? this.adaptive.get() : this.generator.getMaxParallelism();
         }
     }
 }
@@ -1,18 +1,29 @@
 package com.noleme.flow.impl.parallel.runtime.state;
 
 import com.noleme.flow.impl.parallel.compiler.ParallelIndexes;
-import com.noleme.flow.impl.pipeline.PipelineRuntime;
+import com.noleme.flow.impl.pipeline.runtime.heap.Heap;
 import com.noleme.flow.impl.pipeline.runtime.node.OffsetNode;
 import com.noleme.flow.node.Node;
-import com.noleme.flow.stream.StreamAccumulator;
 import com.noleme.flow.stream.StreamGenerator;
-import com.noleme.flow.stream.StreamNode;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * The RuntimeState keeps track of pending-dependency counters for a given ParallelRuntime run.
+ * Upon completion, a node only decrements the counters of its dependents, nodes are handed over to the caller once their counter reaches zero.
+ *
+ * Nodes which become ready are handed over to the caller as the return value of each state update, the caller is then responsible for either running them or dispatching them to other workers.
+ * The RuntimeState also keeps track of dispatched nodes, the run is considered done once every dispatched node has been reported back.
+ *
+ * State updates are performed by worker threads upon completion of a node, with the following locking scheme:
+ * - gate-level updates (non-stream nodes, generator activation and stream completion) are synchronized on the RuntimeState instance
+ * - stream lifecycle updates (generator reservation, offset initiation and termination) are synchronized on the relevant StreamState instance
+ * - offset-level updates (stream nodes within an offset) and parallelism counters rely on atomics and don't require any lock
+ * The RuntimeState monitor may be held while acquiring a StreamState monitor, never the other way around.
+ *
+ * Upon the completion of a stream, the non-stream values its nodes were consuming at every offset (eg. the flow joined by a StreamJoin) are consumed from the heap once per consuming node, so that they are released as soon as the stream no longer needs them.
+ *
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
  * Created on 2020/12/14
  */
@@ -20,259 +31,436 @@ import java.util.stream.Collectors;
 public class RuntimeState
 {
     private final ParallelismState parallelism = new ParallelismState();
-    /* Each stream generation offset has its own checklist (hence why we index by the offset generator, and not the generator itself) */
-    private final Map<OffsetNode, Set<OffsetNode>> streamChecklist = new HashMap<>();
-    private final Set<Node> waiting = new HashSet<>();
-    private final Set<Node> submitted = new HashSet<>();
-    private final Set<Node> completed = new HashSet<>();
-    private final Set<Node> blocked = new HashSet<>();
-    private final Set<StreamGenerator> submittedGenerators = new HashSet<>();
     private final ParallelIndexes indexes;
-    private final RRWLock blockLock = new RRWLock();
-    private final RRWLock streamLock = new RRWLock();
+    private Heap heap;
+    private final StreamState[] streams;
+    /* Gate-level counters and flags, guarded by the RuntimeState monitor */
+    private final int[] pending;
+    private final boolean[] blocked;
+    /* Blocked nodes which counter reached zero, they are resolved without being executed */
+    private final Deque<Integer> blockedQueue = new ArrayDeque<>();
+    /* Gate-level nodes (non-stream nodes and generators) that still have to be resolved */
+    private int unresolved;
+    private final int gates;
+    /* Nodes that were handed over to the caller and haven't been reported back yet */
+    private final AtomicInteger dispatched = new AtomicInteger(0);
 
-    public RuntimeState(ParallelIndexes indexes)
+    /**
+     *
+     * @param indexes
+     * @param heap
+     */
+    public RuntimeState(ParallelIndexes indexes, Heap heap)
     {
-        this.indexes = indexes.copy();
+        this.indexes = indexes;
+        this.heap = heap;
+        this.pending = indexes.requirements.clone();
+        this.blocked = new boolean[indexes.nodes.length];
+        this.streams = new StreamState[indexes.nodes.length];
+
+        int gates = 0;
+        for (int i = 0 ; i < indexes.nodes.length ; ++i)
+        {
+            if (indexes.isGenerator(i))
+                this.streams[i] = new StreamState((StreamGenerator) indexes.nodes[i], i, indexes.offsetRequirements[i], members(indexes, i), indexes.streamMembers[i]);
+            if (!indexes.isStreamNode(i))
+                gates++;
+        }
+        this.gates = gates;
+        this.unresolved = gates;
     }
 
-    public RuntimeState queue(Node node)
+    /**
+     * Brings the state back to its initial counters for another run, which spares the allocation of its tables and stream states.
+     * The caller is expected to ensure that every dispatched node of the previous run was reported back.
+     *
+     * @param heap the heap of the new run
+     * @return
+     */
+    synchronized public RuntimeState reset(Heap heap)
     {
-        this.waiting.add(node);
-        return this;
-    }
+        this.heap = heap;
+        System.arraycopy(this.indexes.requirements, 0, this.pending, 0, this.pending.length);
+        Arrays.fill(this.blocked, false);
+        this.blockedQueue.clear();
+        this.unresolved = this.gates;
+        this.dispatched.set(0);
+        this.parallelism.reset();
+
+        for (StreamState stream : this.streams)
+        {
+            if (stream != null)
+                stream.reset();
+        }
 
-    public RuntimeState queueAll(Collection<Node> nodes)
-    {
-        this.waiting.addAll(nodes);
         return this;
     }
 
-    public RuntimeState submit(Node node)
+    /**
+     *
+     * @param startNodes
+     * @return nodes without any pending requirement
+     */
+    public List<Node> initiate(Collection<Node> startNodes)
     {
-        if (node instanceof OffsetNode && ((OffsetNode) node).getNode() instanceof StreamGenerator)
-            this.submittedGenerators.add((StreamGenerator) ((OffsetNode) node).getNode());
+        List<Node> ready = new ArrayList<>();
+
+        synchronized (this) {
+            for (Node node : startNodes)
+            {
+                int index = this.indexes.indices.get(node);
+                if (this.pending[index] == 0)
+                    this.activate(index, ready);
+            }
+            this.resolveBlocked(ready);
+        }
 
-        this.submitted.add(node);
-        return this;
+        return this.handOver(ready, 0, 0);
     }
 
-    public RuntimeState unsubmit(Node node)
+    /**
+     *
+     * @return true if every dispatched node has been reported back
+     */
+    public boolean isDone()
     {
-        if (node instanceof OffsetNode && ((OffsetNode) node).getNode() instanceof StreamGenerator)
-            this.submittedGenerators.remove(((OffsetNode) node).getNode());
-
-        this.submitted.remove(node);
-        return this;
+        return this.dispatched.get() == 0;
     }
 
-    public RuntimeState complete(Node node)
+    /**
+     *
+     * @return true if every non-stream node and stream was either completed or blocked
+     */
+    synchronized public boolean isResolved()
     {
-        this.completed.add(node);
-        return this;
+        return this.unresolved == 0;
     }
 
-    public RuntimeState block(Node node)
+    /**
+     * Registers the completion of a previously dispatched node.
+     * Stream nodes are identified by their node index and OffsetState, so that offset-level resolution doesn't require any lookup.
+     *
+     * @param node the node that was executed
+     * @param success whether the execution was successful, an unsuccessful execution results in the blocking of downstream nodes
+     * @param ready a list to which nodes which became ready are appended, it is expected to be reused by the caller
+     * @return the ready list
+     */
+    public List<Node> complete(Node node, boolean success, List<Node> ready)
     {
-        try {
-            this.blockLock.write.lock();
-            this.blocked.add(node);
-            return this;
-        }
-        finally {
-            this.blockLock.write.unlock();
+        int from = ready.size();
+
+        if (node instanceof StreamOffsetNode)
+        {
+            StreamOffsetNode offsetNode = (StreamOffsetNode) node;
+            int index = offsetNode.getIndex();
+            StreamState stream = this.streams[this.indexes.streams[index]];
+            boolean isGenerator = this.indexes.isGenerator(index);
+
+            if (isGenerator)
+                stream.release();
+
+            this.resolveOffset(stream, offsetNode.getState(), index, success, ready);
+
+            if (isGenerator)
+                this.queueGenerator(stream, ready);
         }
+        else
+            this.resolve(this.indexes.indices.get(node), success, ready);
+
+        return this.handOver(ready, from, 1);
     }
 
-    public RuntimeState blockAll(Collection<Node> nodes)
+    /**
+     * Attempts to reserve the provided generator for producing a new offset.
+     * Generators can't be ran concurrently (as they are expected to be stateful and generated once per run), so at most one offset is generated at a time.
+     * If the reservation fails, the generator node is considered as reported back, it will be dispatched again upon the completion of its current offsets.
+     *
+     * @param generator
+     * @return true if the generator was reserved
+     */
+    public boolean reserveGenerator(StreamGenerator generator)
     {
-        try {
-            this.blockLock.write.lock();
-            for (Node node : nodes)
-                PipelineRuntime.blockBranch(node, this.blocked);
-            return this;
-        }
-        finally {
-            this.blockLock.write.unlock();
-        }
+        if (this.getStream(generator).reserve(this.parallelism))
+            return true;
+
+        this.dispatched.decrementAndGet();
+        return false;
     }
 
-    public Iterator<Node> waitingIterator()
+    /**
+     * Attempts to hold back a previously reserved generator, eg. when the heap is over budget.
+     * If the deferral succeeds, the generator node is considered as reported back, it will be dispatched again upon the termination of the stream's offsets in flight.
+     *
+     * @param generator
+     * @return true if the generator was deferred, false if it has to proceed in order for its stream to make progress
+     */
+    public boolean deferGenerator(StreamGenerator generator)
     {
-        return this.waiting.iterator();
+        if (!this.getStream(generator).defer())
+            return false;
+
+        this.dispatched.decrementAndGet();
+        return true;
     }
 
-    public boolean isWaiting(Node node)
+    /**
+     * Registers a new offset for a previously reserved generator.
+     *
+     * @param generator
+     * @param offset
+     * @return the OffsetNode to be executed for generating the provided offset
+     */
+    public OffsetNode initiateStreamItem(StreamGenerator generator, long offset)
     {
-        return this.waiting.contains(node);
+        OffsetState state = this.getStream(generator).initiate(offset);
+        this.parallelism.increase(generator);
+
+        /* Generators are at position 0 of their stream */
+        return state.node(0);
     }
 
-    public boolean isSubmitted(Node node)
+    /**
+     * Flags a previously reserved generator as exhausted, the stream will be completed as soon as all its offsets are.
+     *
+     * @param generator
+     * @param ready a list to which nodes which became ready are appended
+     * @return the ready list
+     */
+    public List<Node> exhaust(StreamGenerator generator, List<Node> ready)
     {
-        if (node instanceof StreamGenerator)
-            return this.submittedGenerators.contains(node);
+        int from = ready.size();
+        StreamState stream = this.getStream(generator);
 
-        return this.submitted.contains(node);
+        if (stream.exhaust())
+            this.completeStream(stream, ready);
+
+        return this.handOver(ready, from, 1);
     }
 
-    public boolean isCompleted(Node node)
+    /**
+     * Hands over ready nodes to the caller.
+     * The dispatch counter is updated in a single atomic operation, so that it can't reach zero while nodes are still being handed over.
+     *
+     * @param ready
+     * @param from the position from which nodes were appended to the ready list
+     * @param reported the number of previously dispatched nodes being reported back
+     * @return
+     */
+    private List<Node> handOver(List<Node> ready, int from, int reported)
     {
-        if (node instanceof StreamNode)
-            return this.isStreamComplete((StreamNode) node);
+        int added = ready.size() - from;
 
-        return this.completed.contains(node);
+        if (added != reported)
+            this.dispatched.addAndGet(added - reported);
+
+        return ready;
     }
 
-    public boolean isBlocked(Node node)
+    /**
+     *
+     * @param index
+     * @param success
+     * @param ready
+     */
+    synchronized private void resolve(int index, boolean success, List<Node> ready)
     {
-        try {
-            this.blockLock.read.lock();
-            return this.blocked.contains(node);
-        }
-        finally {
-            this.blockLock.read.unlock();
+        this.resolveGate(index, success, ready);
+        this.resolveBlocked(ready);
+    }
+
+    /**
+     *
+     * @param index
+     * @param success
+     * @param ready
+     */
+    private void resolveGate(int index, boolean success, List<Node> ready)
+    {
+        if (!success)
+        {
+            for (int ds : this.indexes.downstream[index])
+                this.block(ds);
         }
+
+        this.unresolved--;
+
+        for (int dependent : this.indexes.dependents[index])
+            this.release(dependent, ready);
+    }
+
+    /**
+     * Resolves blocked nodes iteratively, so that long blocked branches don't result in deep recursions.
+     *
+     * @param ready
+     */
+    private void resolveBlocked(List<Node> ready)
+    {
+        while (!this.blockedQueue.isEmpty())
+            this.resolveGate(this.blockedQueue.poll(), false, ready);
     }
 
-    public boolean hasWaiting()
+    /**
+     *
+     * @param index
+     */
+    private void block(int index)
     {
-        return !this.waiting.isEmpty();
+        if (this.indexes.isStreamNode(index))
+            this.streams[this.indexes.streams[index]].block(this.indexes.positions[index]);
+        else
+            this.blocked[index] = true;
     }
 
-    public boolean hasSubmitted()
+    /**
+     *
+     * @param index
+     * @param ready
+     */
+    private void release(int index, List<Node> ready)
     {
-        return !this.submitted.isEmpty();
+        if (--this.pending[index] == 0)
+            this.activate(index, ready);
     }
 
     /**
      *
-     * @param node
-     * @return
+     * @param index
+     * @param ready
      */
-    private StreamGenerator<?, ?> getGenerator(Node node)
+    private void activate(int index, List<Node> ready)
     {
-        return node instanceof StreamGenerator
-            ? (StreamGenerator<?, ?>) node
-            : this.indexes.generators.get(node)
-        ;
+        if (this.indexes.isGenerator(index))
+        {
+            StreamState stream = this.streams[index];
+
+            /* A blocked generator results in an empty stream */
+            if (!this.blocked[index])
+                this.queueGenerator(stream, ready);
+            else if (stream.complete())
+                this.completeStream(stream, ready);
+        }
+        else if (this.blocked[index])
+            this.blockedQueue.add(index);
+        else
+            ready.add(this.indexes.nodes[index]);
     }
 
     /**
+     * Offset-level resolution doesn't require any lock, unless the offset termination results in the completion of the stream.
      *
-     * @param offsetGenerator
+     * @param stream
+     * @param offsetState
+     * @param index
+     * @param success
+     * @param ready
      */
-    public void initiateStream(OffsetNode offsetGenerator)
+    private void resolveOffset(StreamState stream, OffsetState offsetState, int index, boolean success, List<Node> ready)
     {
-        try {
-            this.streamLock.write.lock();
-            StreamGenerator generator = (StreamGenerator) offsetGenerator.getNode();
+        if (!success)
+        {
+            for (int ds : this.indexes.downstream[index])
+                offsetState.block(this.indexes.positions[ds]);
+        }
 
-            this.streamChecklist.put(offsetGenerator, this.indexes.streamNodes.get(generator).stream()
-                .map(sn -> new OffsetNode(sn, offsetGenerator.getOffset()))
-                .collect(Collectors.toCollection(ConcurrentSkipListSet::new))
-            );
+        for (int dependent : this.indexes.dependents[index])
+        {
+            int position = this.indexes.positions[dependent];
 
-            this.parallelism.increase(generator);
+            if (!offsetState.release(position))
+                continue;
+
+            if (offsetState.isBlocked(position))
+            {
+                this.releaseOffsetInputs(dependent, offsetState.node(position).getOffset());
+                this.resolveOffset(stream, offsetState, dependent, false, ready);
+            }
+            else
+                ready.add(offsetState.node(position));
         }
-        finally {
-            this.streamLock.write.unlock();
+
+        if (offsetState.resolve())
+        {
+            this.parallelism.decrease(stream.getGenerator(), offsetState.elapsed());
+
+            /* The OffsetState is recycled upon termination, it mustn't be used past this point */
+            if (stream.terminate(offsetState))
+                this.completeStream(stream, ready);
+            else
+                this.queueGenerator(stream, ready);
         }
     }
 
     /**
+     * A blocked stream node still has to let go of the values it was expected to consume at its offset, otherwise they would hold their stream buffer slot until the end of the run.
+     * Every upstream was resolved by then, so values which are still there can only be waiting for this node.
      *
-     * @param node
+     * @param index
+     * @param offset
      */
-    public void completeStreamItem(OffsetNode node)
+    private void releaseOffsetInputs(int index, long offset)
     {
-        try {
-            this.streamLock.write.lock();
-            StreamGenerator generator = this.getGenerator(node.getNode());
-            Set<OffsetNode> checklist = this.streamChecklist.get(new OffsetNode(generator, node.getOffset()));
-            checklist.remove(node);
-
-            if (checklist.isEmpty())
-                this.parallelism.decrease(generator);
-        }
-        finally {
-            this.streamLock.write.unlock();
+        for (int upstream : this.indexes.streamUpstreams[index])
+        {
+            Node node = this.indexes.nodes[upstream];
+            if (this.heap.has(node.getUid(), offset))
+                this.heap.consume(node, offset);
         }
     }
 
     /**
      *
-     * @param node
+     * @param stream
+     * @param ready
      */
-    public void terminateStream(OffsetNode node)
+    private void queueGenerator(StreamState stream, List<Node> ready)
     {
-        try {
-            this.streamLock.write.lock();
-            StreamGenerator generator = this.getGenerator(node.getNode());
-            OffsetNode key = new OffsetNode(generator, node.getOffset());
-            if (!this.streamChecklist.containsKey(key))
-                return;
-            this.streamChecklist.put(key, new HashSet<>());
-            this.parallelism.decrease(generator);
-        }
-        finally {
-            this.streamLock.write.unlock();
-        }
+        if (stream.queue())
+            ready.add(stream.getGenerator());
     }
 
     /**
+     * Releases nodes depending on the completion of the provided stream, the caller is expected to have flagged the stream as completed.
      *
-     * @param accumulator
-     * @return
+     * @param stream
+     * @param ready
      */
-    public boolean isStreamComplete(StreamAccumulator<?, ?> accumulator)
+    synchronized private void completeStream(StreamState stream, List<Node> ready)
     {
-        try {
-            this.streamLock.read.lock();
-            StreamGenerator generator = this.getGenerator(accumulator.getSimpleUpstream());
+        this.unresolved--;
 
-            if (this.isWaiting(generator))
-                return false;
+        for (int sideInput : this.indexes.streamSideInputs[stream.getIndex()])
+            this.heap.consume(this.indexes.nodes[sideInput]);
 
-            return this.parallelism.isIdle(generator);
-        }
-        finally {
-            this.streamLock.read.unlock();
-        }
+        for (int dependent : this.indexes.streamDependents[stream.getIndex()])
+            this.release(dependent, ready);
+
+        this.resolveBlocked(ready);
     }
 
     /**
      *
-     * @param node
+     * @param generator
      * @return
      */
-    public boolean isStreamComplete(StreamNode node)
+    private StreamState getStream(StreamGenerator generator)
     {
-        try {
-            this.streamLock.read.lock();
-            StreamGenerator generator = this.indexes.generators.get(node);
-
-            /* If the stream was never started, it cannot be completed */
-            if (!this.parallelism.has(generator))
-                return false;
-            /* If the generator is still in waiting, it cannot be completed */
-            if (this.isWaiting(generator))
-                return false;
-
-            /* If the generator is not in waiting and parallelism count is set to 0, all downstream stream nodes should be completed */
-            return this.parallelism.isIdle(generator);
-        }
-        finally {
-            this.streamLock.read.unlock();
-        }
+        return this.streams[this.indexes.indices.get(generator)];
     }
 
     /**
      *
-     * @param generatorNode
-     * @return
+     * @param indexes
+     * @param generator
+     * @return the nodes of the provided generator's stream, by position
      */
-    public boolean hasReachedMaxParallelism(StreamGenerator generatorNode)
+    private static Node[] members(ParallelIndexes indexes, int generator)
     {
-        return this.parallelism.hasReachedMax(generatorNode);
+        int[] members = indexes.streamMembers[generator];
+        Node[] nodes = new Node[members.length];
+
+        for (int position = 0 ; position < members.length ; ++position)
+            nodes[position] = indexes.nodes[members[position]];
+
+        return nodes;
     }
 }
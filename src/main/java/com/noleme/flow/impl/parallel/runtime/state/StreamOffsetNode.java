@@ -0,0 +1,50 @@
+package com.noleme.flow.impl.parallel.runtime.state;
+
+import com.noleme.flow.impl.pipeline.runtime.node.OffsetNode;
+import com.noleme.flow.node.Node;
+
+/**
+ * An OffsetNode addressed by its dense node index, which also references the state of its offset.
+ *
+ * StreamOffsetNode instances are owned by an OffsetState and recycled along with it, so that stream offsets don't allocate any node.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/19
+ */
+public final class StreamOffsetNode extends OffsetNode
+{
+    private final int index;
+    private final OffsetState state;
+
+    /**
+     *
+     * @param node
+     * @param index
+     * @param state
+     */
+    StreamOffsetNode(Node node, int index, OffsetState state)
+    {
+        super(node, -1);
+        this.index = index;
+        this.state = state;
+    }
+
+    public int getIndex()
+    {
+        return this.index;
+    }
+
+    OffsetState getState()
+    {
+        return this.state;
+    }
+
+    /**
+     *
+     * @param offset
+     */
+    void moveTo(long offset)
+    {
+        this.setOffset(offset);
+    }
+}
@@ -0,0 +1,201 @@
+package com.noleme.flow.impl.parallel.runtime.state;
+
+import com.noleme.flow.node.Node;
+import com.noleme.flow.stream.StreamGenerator;
+
+import java.util.Arrays;
+
+/**
+ * Runtime state of a stream, ie. a StreamGenerator and its downstream stream nodes, for a given run.
+ *
+ * Lifecycle transitions (generator reservation, offset initiation and termination, exhaustion) are synchronized on the StreamState instance, so that concurrent streams don't contend with each other.
+ * Offset-level counters are maintained by the OffsetState instances themselves, which are referenced by the nodes of their offset and don't require any lookup.
+ * Terminated OffsetState instances are kept in a pool for subsequent offsets, the pool is bounded by the maximum number of offsets in flight.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2020/12/14
+ */
+@SuppressWarnings("rawtypes")
+public class StreamState
+{
+    private final StreamGenerator generator;
+    private final int index;
+    /* Offset-level pending-dependency counters, indexed by position within the stream */
+    private final int[] requirements;
+    /* Stream-level blocked positions, these are applied to every offset initiated after the blocking occurred */
+    private final boolean[] blocked;
+    /* Stream nodes and their node index by position, used for building OffsetState instances */
+    private final Node[] members;
+    private final int[] memberIndexes;
+    private OffsetState[] pool = new OffsetState[4];
+    private int pooled = 0;
+    private int inFlight = 0;
+    private boolean generating = false;
+    private boolean queued = false;
+    private boolean exhausted = false;
+    private boolean completed = false;
+
+    /**
+     *
+     * @param generator
+     * @param index
+     * @param requirements
+     * @param members
+     * @param memberIndexes
+     */
+    public StreamState(StreamGenerator generator, int index, int[] requirements, Node[] members, int[] memberIndexes)
+    {
+        this.generator = generator;
+        this.index = index;
+        this.requirements = requirements;
+        this.blocked = new boolean[requirements.length];
+        this.members = members;
+        this.memberIndexes = memberIndexes;
+    }
+
+    /**
+     * Brings the stream back to its initial state for another run, pooled OffsetState instances are kept.
+     * The caller is expected to ensure that no offset of the previous run is still in flight.
+     */
+    synchronized public void reset()
+    {
+        Arrays.fill(this.blocked, false);
+        this.inFlight = 0;
+        this.generating = false;
+        this.queued = false;
+        this.exhausted = false;
+        this.completed = false;
+    }
+
+    public StreamGenerator getGenerator()
+    {
+        return this.generator;
+    }
+
+    public int getIndex()
+    {
+        return this.index;
+    }
+
+    /**
+     *
+     * @param position
+     */
+    synchronized public void block(int position)
+    {
+        this.blocked[position] = true;
+    }
+
+    /**
+     * Attempts to reserve the generator for producing a new offset, at most one offset is generated at a time.
+     *
+     * @param parallelism
+     * @return true if the generator was reserved
+     */
+    synchronized public boolean reserve(ParallelismState parallelism)
+    {
+        this.queued = false;
+
+        if (this.exhausted || this.generating || parallelism.hasReachedMax(this.generator))
+            return false;
+
+        this.generating = true;
+        return true;
+    }
+
+    /**
+     * Releases a previously reserved generator.
+     */
+    synchronized public void release()
+    {
+        this.generating = false;
+    }
+
+    /**
+     * Releases a previously reserved generator without generating, provided the stream has offsets in flight.
+     * The termination of these offsets will queue the generator again, a stream without any offset in flight can't be deferred as nothing would resume it.
+     *
+     * @return true if the generator was released
+     */
+    synchronized public boolean defer()
+    {
+        if (this.inFlight == 0)
+            return false;
+
+        this.generating = false;
+        return true;
+    }
+
+    /**
+     * Flags the generator as queued for dispatch, unless it already is or it is exhausted.
+     *
+     * @return true if the generator should be dispatched
+     */
+    synchronized public boolean queue()
+    {
+        if (this.queued || this.exhausted)
+            return false;
+
+        this.queued = true;
+        return true;
+    }
+
+    /**
+     *
+     * @param offset
+     * @return
+     */
+    synchronized public OffsetState initiate(long offset)
+    {
+        OffsetState state = this.pooled > 0
+            ? this.pool[--this.pooled]
+            : new OffsetState(this.members, this.memberIndexes)
+        ;
+        this.inFlight++;
+
+        return state.reset(offset, this.requirements, this.blocked);
+    }
+
+    /**
+     * The OffsetState is returned to the pool, the caller is expected not to use it afterwards.
+     *
+     * @param state
+     * @return true if the stream was completed as a consequence
+     */
+    synchronized public boolean terminate(OffsetState state)
+    {
+        this.inFlight--;
+
+        if (this.pooled == this.pool.length)
+            this.pool = Arrays.copyOf(this.pool, this.pool.length * 2);
+        this.pool[this.pooled++] = state;
+
+        return this.exhausted && this.inFlight == 0 && this.complete();
+    }
+
+    /**
+     * Flags a previously reserved generator as exhausted.
+     *
+     * @return true if the stream was completed as a consequence
+     */
+    synchronized public boolean exhaust()
+    {
+        this.generating = false;
+        this.exhausted = true;
+
+        return this.inFlight == 0 && this.complete();
+    }
+
+    /**
+     *
+     * @return true if the stream wasn't already completed
+     */
+    synchronized public boolean complete()
+    {
+        if (this.completed)
+            return false;
+
+        this.completed = true;
+        return true;
+    }
+}
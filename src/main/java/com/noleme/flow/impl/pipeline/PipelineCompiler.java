@@ -2,9 +2,15 @@ package com.noleme.flow.impl.pipeline;
 
 import com.noleme.flow.compiler.CompilationException;
 import com.noleme.flow.compiler.FlowCompiler;
+import com.noleme.flow.impl.pipeline.compiler.BlockIndex;
+import com.noleme.flow.impl.pipeline.compiler.pass.PipeFusionPass;
 import com.noleme.flow.impl.pipeline.compiler.pass.PipelineCompilerPass;
 import com.noleme.flow.impl.pipeline.compiler.pass.StreamAggregationPass;
+import com.noleme.flow.impl.pipeline.compiler.pass.StreamFusionPass;
 import com.noleme.flow.impl.pipeline.compiler.pass.TopologicalSortPass;
+import com.noleme.flow.impl.pipeline.runtime.heap.SlotIndex;
+import com.noleme.flow.impl.pipeline.runtime.heap.accounting.AccountingConfig;
+import com.noleme.flow.impl.pipeline.runtime.heap.spill.SpillConfig;
 import com.noleme.flow.node.Node;
 
 import java.util.ArrayList;
@@ -21,13 +27,78 @@ public class PipelineCompiler implements FlowCompiler<PipelineRuntime>
         new TopologicalSortPass(),
         new StreamAggregationPass()
     );
+    private final List<PipelineCompilerPass> fusionPasses = List.of(
+        new TopologicalSortPass(),
+        new StreamAggregationPass(),
+        new StreamFusionPass(),
+        new PipeFusionPass()
+    );
+    private SpillConfig spillConfig = null;
+    private AccountingConfig accountingConfig = null;
+    private boolean hot = false;
+    private boolean fusion = false;
+
+    /**
+     * Enables spilling: once the estimated footprint of heap values exceeds the configured budget, or for values exceeding the configured threshold, values are spilled to disk and loaded back upon consumption.
+     * Spilling is disabled by default (ie. with a null configuration).
+     *
+     * @param spillConfig
+     * @return
+     */
+    public PipelineCompiler setSpillConfig(SpillConfig spillConfig)
+    {
+        this.spillConfig = spillConfig;
+        return this;
+    }
+
+    /**
+     * Enables heap accounting: the estimated footprint of heap values is tracked per node and per stream, and reported through Output#heapReport().
+     * Accounting is disabled by default (ie. with a null configuration).
+     *
+     * @param accountingConfig
+     * @return
+     */
+    public PipelineCompiler setAccountingConfig(AccountingConfig accountingConfig)
+    {
+        this.accountingConfig = accountingConfig;
+        return this;
+    }
+
+    /**
+     * Enables hot mode, which is meant for small graphs being ran at a high frequency (eg. from a request handler).
+     * Per-run heaps and blocking states are pooled and reset instead of being allocated anew, and run summaries are logged at the debug level.
+     * Hot mode is disabled by default.
+     *
+     * @param hot
+     * @return
+     */
+    public PipelineCompiler setHotMode(boolean hot)
+    {
+        this.hot = hot;
+        return this;
+    }
+
+    /**
+     * Enables operator fusion: linear chains of pipes and of stream pipes are executed as single nodes, without intermediate heap values.
+     * Logs and errors still refer to the individual stages of a chain.
+     * Fusion is disabled by default.
+     *
+     * @param fusion
+     * @return
+     */
+    public PipelineCompiler setFusion(boolean fusion)
+    {
+        this.fusion = fusion;
+        return this;
+    }
 
     @Override
     public PipelineRuntime compile(Collection<Node> inputNodes) throws CompilationException
     {
-        List<Node> compiledNodes = compile(inputNodes, this.passes);
+        SlotIndex slots = SlotIndex.of(inputNodes);
+        List<Node> compiledNodes = compile(inputNodes, this.fusion ? this.fusionPasses : this.passes);
 
-        return new PipelineRuntime(compiledNodes);
+        return new PipelineRuntime(compiledNodes, slots, new BlockIndex(slots), this.spillConfig, this.accountingConfig, this.hot);
     }
 
     /**
@@ -3,13 +3,20 @@ package com.noleme.flow.impl.pipeline;
 import com.noleme.flow.actor.generator.Generator;
 import com.noleme.flow.compiler.FlowRuntime;
 import com.noleme.flow.compiler.RunException;
+import com.noleme.flow.impl.pipeline.compiler.BlockIndex;
+import com.noleme.flow.impl.pipeline.compiler.stream.FusedStreamPipe;
 import com.noleme.flow.impl.pipeline.compiler.stream.StreamPipeline;
 import com.noleme.flow.impl.pipeline.runtime.execution.Execution;
-import com.noleme.flow.impl.pipeline.runtime.heap.HashHeap;
 import com.noleme.flow.impl.pipeline.runtime.heap.Heap;
-import com.noleme.flow.impl.pipeline.runtime.node.OffsetNode;
+import com.noleme.flow.impl.pipeline.runtime.heap.SlotHeap;
+import com.noleme.flow.impl.pipeline.runtime.heap.SlotIndex;
+import com.noleme.flow.impl.pipeline.runtime.heap.accounting.AccountingConfig;
+import com.noleme.flow.impl.pipeline.runtime.heap.accounting.AccountingHeap;
+import com.noleme.flow.impl.pipeline.runtime.heap.spill.SpillConfig;
+import com.noleme.flow.impl.pipeline.runtime.heap.spill.SpillingHeap;
 import com.noleme.flow.io.input.Input;
 import com.noleme.flow.io.output.Output;
+import com.noleme.flow.io.output.WriteableOutput;
 import com.noleme.flow.node.Node;
 import com.noleme.flow.stream.StreamAccumulator;
 import com.noleme.flow.stream.StreamGenerator;
@@ -18,8 +25,12 @@ import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
+ * In hot mode, the runtime is tuned for frequent runs of small graphs: per-run heaps and blocking states are pooled and reset instead of being allocated anew, and run summaries are logged at the debug level.
+ *
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
  * Created on 2020/03/02
  */
@@ -27,61 +38,128 @@ public class PipelineRuntime implements FlowRuntime
 {
     protected final Execution execution;
     private final List<Node> compiledNodes;
+    private final SlotIndex slots;
+    private final BlockIndex blocks;
+    private final SpillConfig spillConfig;
+    private final AccountingConfig accountingConfig;
+    private final boolean hot;
+    /* Recycled per-run resources, only used in hot mode */
+    private final BlockingQueue<Resources> resources = new ArrayBlockingQueue<>(RESOURCE_POOL_SIZE);
+    /* Precomputed position tables for each stream, so that stream items can be executed without any per-item allocation */
+    private final Map<StreamPipeline, StreamPlan> streamPlans = new IdentityHashMap<>();
+
+    /* Maximum number of recycled per-run resources, ie. of concurrent runs which can be served without any allocation */
+    private static final int RESOURCE_POOL_SIZE = 16;
 
     private static final Logger logger = LoggerFactory.getLogger(PipelineRuntime.class);
 
     /**
      *
      * @param compiledNodes
+     * @param slots
+     * @param blocks
+     * @param spillConfig spilling configuration for the heap, if null every value remains in memory
+     * @param accountingConfig accounting configuration for the heap, if null the heap footprint isn't tracked
+     * @param hot whether the runtime should be tuned for frequent runs of small graphs
      */
-    protected PipelineRuntime(List<Node> compiledNodes)
+    protected PipelineRuntime(List<Node> compiledNodes, SlotIndex slots, BlockIndex blocks, SpillConfig spillConfig, AccountingConfig accountingConfig, boolean hot)
     {
         this.execution = new Execution();
         this.compiledNodes = compiledNodes;
+        this.slots = slots;
+        this.blocks = blocks;
+        this.spillConfig = spillConfig;
+        this.accountingConfig = accountingConfig;
+        this.hot = hot;
+
+        for (Node node : compiledNodes)
+        {
+            if (node instanceof StreamPipeline)
+                this.streamPlans.put((StreamPipeline) node, new StreamPlan((StreamPipeline) node, slots));
+        }
     }
 
     @Override
     public Output run(Input input) throws RunException
     {
-        LinkedList<Node> runQueue = new LinkedList<>(this.compiledNodes);
-        Set<Node> blocked = new HashSet<>();
-        var heap = new HashHeap(input);
+        Resources resources = this.hot ? this.acquireResources(input) : null;
+        SlotHeap slotHeap = resources != null ? resources.heap : new SlotHeap(this.slots, input);
+        BitSet blocked = resources != null ? resources.blocked : this.blocks.createState();
+        AccountingHeap accounting = this.accountingConfig != null
+            ? new AccountingHeap(slotHeap, this.accountingConfig)
+            : null
+        ;
+        Heap baseHeap = accounting != null ? accounting : slotHeap;
+        Heap heap = this.spillConfig != null
+            ? new SpillingHeap(baseHeap, this.spillConfig)
+            : baseHeap
+        ;
+        /* Heap decorators only expose a read-only output, the runtime writes to the one held by the slot heap */
+        WriteableOutput output = slotHeap.getOutput();
+
+        boolean succeeded = false;
 
         try {
-            heap.getOutput().setStartTime(Instant.now());
+            output.setStartTime(Instant.now());
 
             /*
              * Fires the whole running queue and discards dead branches resulting from failed executions.
              * Upon a successful run, the outbounds that haven't been added yet are pushed to the waiting queue.
              */
-            while (!runQueue.isEmpty())
+            for (Node n : this.compiledNodes)
             {
-                Node n = runQueue.poll();
-
-                if (blocked.contains(n))
-                    continue;
-
-                /* If the node is a StreamPipelineNode we need to register a stream round */
+                /* If the node is a StreamPipelineNode we run the whole stream, unless its generator was blocked */
                 if (n instanceof StreamPipeline)
-                    registerStream((StreamPipeline) n, runQueue, heap);
+                {
+                    StreamPipeline stream = (StreamPipeline) n;
+
+                    if (!this.blocks.isBlocked(blocked, stream.getGeneratorNode()))
+                        this.runStream(stream, heap, blocked);
+                    /* A blocked stream still has to let go of the side inputs it was expected to consume */
+                    else
+                        this.releaseSideInputs(stream, heap);
+                }
                 /* Otherwise we handle it as a standard node */
-                else if (!this.execution.launch(n, heap))
-                    blockBranch(n, blocked);
+                else if (!this.blocks.isBlocked(blocked, n) && !this.execution.launch(n, heap))
+                    this.blocks.block(blocked, n);
             }
 
-            return heap.getOutput();
+            succeeded = true;
+            return output;
         }
         finally {
-            heap.getOutput().setEndTime(Instant.now());
-            logger.info("Ran pipeline in {}", heap.getOutput().elapsedTimeString());
+            output.setEndTime(Instant.now());
+            if (this.hot && logger.isDebugEnabled())
+                logger.debug("Ran pipeline in {}", output.elapsedTimeString());
+            else if (!this.hot && logger.isInfoEnabled())
+                logger.info("Ran pipeline in {}", output.elapsedTimeString());
+
+            if (accounting != null)
+            {
+                output.setHeapReport(accounting.getReport());
+                logger.debug("Heap footprint: {}", output.heapReport());
+            }
+
+            /* Generators abandoned by a failed run (eg. prefetching ones) mustn't keep running past it */
+            heap.closeStreamGenerators();
+
+            if (heap instanceof SpillingHeap)
+                ((SpillingHeap) heap).close();
+
+            /* Resources of a failed run are left to the exception, which exposes their heap */
+            if (resources != null && succeeded)
+                this.resources.offer(resources);
         }
     }
 
     /**
+     * Blocks the provided node along with every node downstream from it, stream accumulators excepted.
      *
      * @param n
      * @param blocked
+     * @deprecated the runtime now blocks branches through the closures precomputed by a {@link BlockIndex}, this breadth-first traversal is only kept for existing callers
      */
+    @Deprecated
     public static void blockBranch(Node n, Set<Node> blocked)
     {
         Queue<Node> q = new LinkedList<>();
@@ -100,33 +178,175 @@ public class PipelineRuntime implements FlowRuntime
     }
 
     /**
+     *
+     * @param input
+     * @return pooled resources reset for a new run, or newly allocated ones if the pool is empty
+     */
+    private Resources acquireResources(Input input)
+    {
+        Resources resources = this.resources.poll();
+
+        if (resources == null)
+            return new Resources(new SlotHeap(this.slots, input), this.blocks.createState());
+
+        resources.heap.reset(input);
+        resources.blocked.clear();
+        return resources;
+    }
+
+    /**
+     * Runs the stream offset by offset, each offset going through the generator then each stream node in order.
+     * An interruption within an offset blocks the downstream stream nodes for that offset only.
+     * Stream nodes blocked at the run level (eg. by an interrupted side input) are blocked for every offset.
      *
      * @param node
-     * @param runQueue
      * @param heap
+     * @param runBlocked
+     * @throws PipelineRunException
      */
-    private static void registerStream(StreamPipeline node, LinkedList<Node> runQueue, Heap heap)
+    private void runStream(StreamPipeline node, Heap heap, BitSet runBlocked) throws PipelineRunException
     {
+        StreamPlan plan = this.streamPlans.get(node);
         StreamGenerator<?, ?> generatorNode = node.getGeneratorNode();
         Generator<?> generator = heap.getStreamGenerator(generatorNode);
+        BitSet initial = new BitSet(plan.nodes.length);
+        BitSet blocked = new BitSet(plan.nodes.length);
 
-        if (generator.hasNext())
+        for (int position = 1 ; position < plan.nodes.length ; ++position)
+        {
+            if (runBlocked.get(plan.slots[position]))
+                initial.set(position);
+        }
+
+        while (generator.hasNext())
         {
             long offset = heap.getNextStreamOffset(generatorNode);
 
-            /* We add the stream pipeline to the top of the queue, in case it will still have to iterate further */
-            runQueue.push(node);
+            blocked.clear();
+            blocked.or(initial);
+
+            for (int position = 0 ; position < plan.nodes.length ; ++position)
+            {
+                if (blocked.get(position))
+                    releaseOffsetInputs(plan.upstreams[position], offset, heap);
+                else if (!this.execution.launch(plan.nodes[position], offset, heap))
+                    blocked.or(plan.closures[position]);
+            }
+        }
+
+        this.releaseSideInputs(node, heap);
+    }
+
+    /**
+     * A blocked stream node still has to let go of the values it was expected to consume at the offset, otherwise they would hold their stream buffer slot until the end of the run.
+     *
+     * @param upstreams
+     * @param offset
+     * @param heap
+     */
+    private static void releaseOffsetInputs(Node[] upstreams, long offset, Heap heap)
+    {
+        for (Node upstream : upstreams)
+        {
+            if (heap.has(upstream.getUid(), offset))
+                heap.consume(upstream, offset);
+        }
+    }
+
+    /**
+     * Non-stream values consumed by stream nodes are shared by every offset, each stream node consumes them once when the stream is over.
+     *
+     * @param node
+     * @param heap
+     */
+    private void releaseSideInputs(StreamPipeline node, Heap heap)
+    {
+        for (Node sideInput : this.streamPlans.get(node).sideInputs)
+            heap.consume(sideInput);
+    }
+
+    /**
+     * Per-run heap and blocking state which can be recycled between runs in hot mode.
+     */
+    private static final class Resources
+    {
+        private final SlotHeap heap;
+        private final BitSet blocked;
 
-            /* Add stream nodes to the top of the queue, note that we need to do in reverse order as we push to the top */
-            var reverseIterator = node.getNodes().listIterator(node.getNodes().size());
-            while (reverseIterator.hasPrevious())
+        private Resources(SlotHeap heap, BitSet blocked)
+        {
+            this.heap = heap;
+            this.blocked = blocked;
+        }
+    }
+
+    /**
+     * Nodes of a stream by position, the generator being at position 0, along with the blocking closure of each position over the stream's positions.
+     * Side inputs are the non-stream upstream nodes of stream nodes (eg. the flow joined by a StreamJoin), listed once per consuming stream node.
+     */
+    private static final class StreamPlan
+    {
+        private final Node[] nodes;
+        private final int[] slots;
+        private final BitSet[] closures;
+        /* Upstream nodes within the stream, for each position */
+        private final Node[][] upstreams;
+        private final Node[] sideInputs;
+
+        private StreamPlan(StreamPipeline pipeline, SlotIndex slotIndex)
+        {
+            List<Node> members = new ArrayList<>(pipeline.getNodes().size() + 1);
+            members.add(pipeline.getGeneratorNode());
+            members.addAll(pipeline.getNodes());
+
+            /* The stages of a fused chain are all found at the position of the chain */
+            Map<Node, Integer> positions = new IdentityHashMap<>();
+            for (int position = 0 ; position < members.size() ; ++position)
             {
-                Node streamNode = reverseIterator.previous();
-                runQueue.push(new OffsetNode(streamNode, offset));
+                positions.put(members.get(position), position);
+                if (members.get(position) instanceof FusedStreamPipe)
+                {
+                    for (Node stage : ((FusedStreamPipe) members.get(position)).getStages())
+                        positions.put(stage, position);
+                }
             }
 
-            /* We add the generator to the top of the queue so it can generate the input required by previously added stream nodes */
-            runQueue.push(new OffsetNode(generatorNode, offset));
+            this.nodes = members.toArray(new Node[0]);
+            this.slots = new int[this.nodes.length];
+            this.closures = new BitSet[this.nodes.length];
+
+            /* Stream nodes are in topological order, so closures can be built backwards from the closures of downstream positions */
+            for (int position = this.nodes.length - 1 ; position >= 0 ; --position)
+            {
+                this.slots[position] = slotIndex.indexOf(this.nodes[position]);
+                this.closures[position] = new BitSet(this.nodes.length);
+
+                for (Node downstream : this.nodes[position].getDownstream())
+                {
+                    Integer ds = positions.get(downstream);
+                    if (ds == null)
+                        continue;
+
+                    this.closures[position].set(ds);
+                    this.closures[position].or(this.closures[ds]);
+                }
+            }
+
+            this.upstreams = new Node[this.nodes.length][];
+            List<Node> sideInputs = new ArrayList<>();
+            for (int position = 0 ; position < this.nodes.length ; ++position)
+            {
+                List<Node> upstreams = new ArrayList<>();
+                for (Node upstream : this.nodes[position].getUpstream())
+                {
+                    if (positions.containsKey(upstream))
+                        upstreams.add(upstream);
+                    else if (position > 0)
+                        sideInputs.add(upstream);
+                }
+                this.upstreams[position] = upstreams.toArray(new Node[0]);
+            }
+            this.sideInputs = sideInputs.toArray(new Node[0]);
         }
     }
 }
@@ -0,0 +1,119 @@
+package com.noleme.flow.impl.pipeline.compiler;
+
+import com.noleme.flow.impl.pipeline.runtime.heap.SlotIndex;
+import com.noleme.flow.node.Node;
+import com.noleme.flow.stream.StreamAccumulator;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Compiled blocking closures used by the PipelineRuntime, addressed by the dense node indexes of a SlotIndex.
+ *
+ * The closure of a node is the set of nodes which have to be blocked when it is interrupted, ie. the node itself and every node downstream from it.
+ * Stream accumulators are left out of closures, as they are expected to accumulate any stream that did complete, and return an empty list if none did.
+ * Closures are computed once at compile time, blocking a branch at runtime then boils down to a single bitset union, and checking a node to a single bit test.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/20
+ */
+public final class BlockIndex
+{
+    private final SlotIndex slots;
+    private final BitSet[] closures;
+
+    /**
+     *
+     * @param slots
+     */
+    public BlockIndex(SlotIndex slots)
+    {
+        this.slots = slots;
+        this.closures = new BitSet[slots.size()];
+
+        /* Closures are built in reverse topological order, so that each node can reuse the closures of its downstream nodes */
+        for (int slot : reverseTopologicalOrder(slots))
+        {
+            BitSet closure = new BitSet(slots.size());
+            Node node = slots.getNode(slot);
+
+            if (!(node instanceof StreamAccumulator))
+            {
+                closure.set(slot);
+                for (Node downstream : node.getDownstream())
+                    closure.or(this.closures[slots.indexOf(downstream)]);
+            }
+
+            this.closures[slot] = closure;
+        }
+    }
+
+    /**
+     *
+     * @return an empty blocking state for a run
+     */
+    public BitSet createState()
+    {
+        return new BitSet(this.slots.size());
+    }
+
+    /**
+     *
+     * @param state
+     * @param node
+     * @return true if the provided node was blocked within the provided state
+     */
+    public boolean isBlocked(BitSet state, Node node)
+    {
+        return state.get(this.slots.indexOf(node));
+    }
+
+    /**
+     * Blocks the provided node along with every node downstream from it.
+     *
+     * @param state
+     * @param node
+     */
+    public void block(BitSet state, Node node)
+    {
+        state.or(this.closures[this.slots.indexOf(node)]);
+    }
+
+    /**
+     * Kahn's algorithm over downstream relationships, requirements are irrelevant to blocking.
+     *
+     * @param slots
+     * @return slots in reverse topological order
+     */
+    private static int[] reverseTopologicalOrder(SlotIndex slots)
+    {
+        int[] pending = new int[slots.size()];
+        for (int slot = 0 ; slot < slots.size() ; ++slot)
+            pending[slot] = slots.getNode(slot).getDownstream().size();
+
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int slot = 0 ; slot < slots.size() ; ++slot)
+        {
+            if (pending[slot] == 0)
+                queue.add(slot);
+        }
+
+        int[] order = new int[slots.size()];
+        int count = 0;
+        while (!queue.isEmpty())
+        {
+            int slot = queue.poll();
+            order[count++] = slot;
+
+            for (Node upstream : slots.getNode(slot).getUpstream())
+            {
+                int index = slots.indexOf(upstream);
+                if (--pending[index] == 0)
+                    queue.add(index);
+            }
+        }
+
+        return order;
+    }
+}
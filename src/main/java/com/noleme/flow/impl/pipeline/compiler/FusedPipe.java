@@ -0,0 +1,67 @@
+package com.noleme.flow.impl.pipeline.compiler;
+
+import com.noleme.flow.Pipe;
+import com.noleme.flow.node.Node;
+import com.noleme.flow.node.NodeDecorator;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A linear chain of Pipe nodes executed as a single node, the transformers of each stage being ran back-to-back without intermediate heap values.
+ *
+ * As with a FusedStreamPipe, the composite node stands for the last stage of the chain (uid, heap slot and downstream nodes) while its upstream relationships are the ones of the first stage.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public class FusedPipe extends NodeDecorator
+{
+    private final List<Pipe<?, ?>> stages;
+
+    /**
+     *
+     * @param stages
+     */
+    public FusedPipe(List<Pipe<?, ?>> stages)
+    {
+        super(stages.get(stages.size() - 1));
+        this.stages = Collections.unmodifiableList(stages);
+    }
+
+    /**
+     *
+     * @return the fused stages in execution order
+     */
+    public List<Pipe<?, ?>> getStages()
+    {
+        return this.stages;
+    }
+
+    /**
+     *
+     * @return the upstream node of the first stage
+     */
+    public Node getSimpleUpstream()
+    {
+        return this.stages.get(0).getSimpleUpstream();
+    }
+
+    @Override
+    public String getName()
+    {
+        return this.getNode().getName();
+    }
+
+    @Override
+    public List<Node> getUpstream()
+    {
+        return this.stages.get(0).getUpstream();
+    }
+
+    @Override
+    public List<Node> getRequirements()
+    {
+        return this.stages.get(0).getRequirements();
+    }
+}
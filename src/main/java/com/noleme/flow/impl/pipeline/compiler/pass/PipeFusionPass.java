@@ -0,0 +1,98 @@
+package com.noleme.flow.impl.pipeline.compiler.pass;
+
+import com.noleme.flow.Pipe;
+import com.noleme.flow.actor.transformer.AsyncTransformer;
+import com.noleme.flow.compiler.CompilationException;
+import com.noleme.flow.impl.pipeline.compiler.FusedPipe;
+import com.noleme.flow.node.Node;
+
+import java.util.*;
+
+/**
+ * Fuses maximal linear chains of Pipe nodes into FusedPipe nodes, it is expected to run on a topologically sorted node list.
+ *
+ * Chains follow the same rules as the ones of the StreamFusionPass: a pipe can be fused with the next one when it is only consumed by it, and the next one only depends on it.
+ * Collected or sampled pipes thus end chains, as their Recipient is an additional downstream node, and pipes with an AsyncTransformer are never fused.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public class PipeFusionPass implements PipelineCompilerPass
+{
+    @Override
+    public Collection<Node> run(Collection<Node> nodes) throws CompilationException
+    {
+        Map<Node, FusedPipe> chains = computeChains(nodes);
+
+        if (chains.isEmpty())
+            return nodes;
+
+        /* Each chain takes the place of its last stage */
+        List<Node> fused = new ArrayList<>(nodes.size());
+        for (Node node : nodes)
+        {
+            FusedPipe chain = chains.get(node);
+
+            if (chain == null)
+                fused.add(node);
+            else if (chain.getNode() == node)
+                fused.add(chain);
+        }
+
+        return fused;
+    }
+
+    /**
+     *
+     * @param nodes
+     * @return a map of each fused pipe to the chain it belongs to
+     */
+    public static Map<Node, FusedPipe> computeChains(Collection<Node> nodes)
+    {
+        Map<Node, FusedPipe> chains = new IdentityHashMap<>();
+
+        for (Node node : nodes)
+        {
+            /* Chains are built from their first stage */
+            if (!(node instanceof Pipe) || isFusable(((Pipe<?, ?>) node).getSimpleUpstream(), node))
+                continue;
+
+            List<Pipe<?, ?>> stages = new ArrayList<>();
+            stages.add((Pipe<?, ?>) node);
+
+            Node current = node;
+            while (current.getDownstream().size() == 1 && isFusable(current, current.getDownstream().get(0)))
+            {
+                current = current.getDownstream().get(0);
+                stages.add((Pipe<?, ?>) current);
+            }
+
+            if (stages.size() < 2)
+                continue;
+
+            FusedPipe chain = new FusedPipe(stages);
+            for (Pipe<?, ?> stage : stages)
+                chains.put(stage, chain);
+        }
+
+        return chains;
+    }
+
+    /**
+     *
+     * @param node
+     * @param next
+     * @return true if the next node can be fused after the provided node
+     */
+    private static boolean isFusable(Node node, Node next)
+    {
+        return node instanceof Pipe
+            && next instanceof Pipe
+            && node.getDownstream().size() == 1
+            && node.getRequiredBy().size() == 1
+            && next.getRequirements().size() == 1
+            && !(((Pipe<?, ?>) node).getActor() instanceof AsyncTransformer)
+            && !(((Pipe<?, ?>) next).getActor() instanceof AsyncTransformer)
+        ;
+    }
+}
@@ -0,0 +1,110 @@
+package com.noleme.flow.impl.pipeline.compiler.pass;
+
+import com.noleme.flow.actor.transformer.AsyncTransformer;
+import com.noleme.flow.compiler.CompilationException;
+import com.noleme.flow.impl.pipeline.compiler.stream.FusedStreamPipe;
+import com.noleme.flow.impl.pipeline.compiler.stream.StreamPipeline;
+import com.noleme.flow.node.Node;
+import com.noleme.flow.stream.StreamPipe;
+
+import java.util.*;
+
+/**
+ * Fuses maximal linear chains of StreamPipe nodes into FusedStreamPipe nodes, it is expected to run after the StreamAggregationPass.
+ *
+ * Two consecutive stream pipes can be fused when the first one is only consumed by the second one, and the second one only depends on the first one.
+ * Stream joins, sinks, accumulators and nodes depending on several nodes thus end chains, as do additional requirements declared through after().
+ * Stream pipes with an AsyncTransformer are never fused, as a fused chain can only run its stages synchronously.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public class StreamFusionPass implements PipelineCompilerPass
+{
+    @Override
+    public Collection<Node> run(Collection<Node> nodes) throws CompilationException
+    {
+        for (Node node : nodes)
+        {
+            if (!(node instanceof StreamPipeline))
+                continue;
+
+            List<Node> streamNodes = ((StreamPipeline) node).getNodes();
+            Map<Node, FusedStreamPipe> chains = computeChains(streamNodes);
+
+            if (chains.isEmpty())
+                continue;
+
+            /* Stream nodes are in topological order, each chain takes the place of its last stage */
+            var iterator = streamNodes.listIterator();
+            while (iterator.hasNext())
+            {
+                Node streamNode = iterator.next();
+                FusedStreamPipe chain = chains.get(streamNode);
+
+                if (chain == null)
+                    continue;
+                if (chain.getNode() == streamNode)
+                    iterator.set(chain);
+                else
+                    iterator.remove();
+            }
+        }
+
+        return nodes;
+    }
+
+    /**
+     *
+     * @param nodes
+     * @return a map of each fused stream pipe to the chain it belongs to
+     */
+    public static Map<Node, FusedStreamPipe> computeChains(Collection<Node> nodes)
+    {
+        Map<Node, FusedStreamPipe> chains = new IdentityHashMap<>();
+
+        for (Node node : nodes)
+        {
+            /* Chains are built from their first stage */
+            if (!(node instanceof StreamPipe) || isFusable(((StreamPipe<?, ?>) node).getSimpleUpstream(), node))
+                continue;
+
+            List<StreamPipe<?, ?>> stages = new ArrayList<>();
+            stages.add((StreamPipe<?, ?>) node);
+
+            Node current = node;
+            while (current.getDownstream().size() == 1 && isFusable(current, current.getDownstream().get(0)))
+            {
+                current = current.getDownstream().get(0);
+                stages.add((StreamPipe<?, ?>) current);
+            }
+
+            if (stages.size() < 2)
+                continue;
+
+            FusedStreamPipe chain = new FusedStreamPipe(stages);
+            for (StreamPipe<?, ?> stage : stages)
+                chains.put(stage, chain);
+        }
+
+        return chains;
+    }
+
+    /**
+     *
+     * @param node
+     * @param next
+     * @return true if the next node can be fused after the provided node
+     */
+    private static boolean isFusable(Node node, Node next)
+    {
+        return node instanceof StreamPipe
+            && next instanceof StreamPipe
+            && node.getDownstream().size() == 1
+            && node.getRequiredBy().size() == 1
+            && next.getRequirements().size() == 1
+            && !(((StreamPipe<?, ?>) node).getActor() instanceof AsyncTransformer)
+            && !(((StreamPipe<?, ?>) next).getActor() instanceof AsyncTransformer)
+        ;
+    }
+}
@@ -2,6 +2,8 @@ package com.noleme.flow.impl.pipeline.compiler.pass;
 
 import com.noleme.flow.compiler.CompilationException;
 import com.noleme.flow.node.Node;
+import com.noleme.flow.stream.StreamGenerator;
+import com.noleme.flow.stream.StreamNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,7 +65,20 @@ public class TopologicalSortPass implements PipelineCompilerPass
         {
             temp.add(n.getUid());
             for (Node dsn : n.getRequiredBy())
+            {
                 this.checkEdgeIntegrity(dsn, temp, perm, sorted);
+
+                /*
+                 * Requirements of stream nodes from outside their stream are lifted to their generator, as streams are executed as a whole.
+                 * Otherwise, a stream could be sorted after a side input (eg. the flow joined by a StreamJoin) which itself is sorted after consumers of the stream.
+                 */
+                if (!(n instanceof StreamNode) && !(n instanceof StreamGenerator) && dsn instanceof StreamNode)
+                {
+                    StreamGenerator<?, ?> generator = StreamAggregationPass.searchGenerator(dsn);
+                    if (generator != null)
+                        this.checkEdgeIntegrity(generator, temp, perm, sorted);
+                }
+            }
             perm.add(n.getUid());
             temp.remove(n.getUid());
             sorted.addFirst(n);
@@ -0,0 +1,69 @@
+package com.noleme.flow.impl.pipeline.compiler.stream;
+
+import com.noleme.flow.node.Node;
+import com.noleme.flow.node.NodeDecorator;
+import com.noleme.flow.stream.StreamNode;
+import com.noleme.flow.stream.StreamPipe;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A linear chain of StreamPipe nodes executed as a single node, the transformers of each stage being ran back-to-back without intermediate heap values.
+ *
+ * The composite node stands for the last stage of the chain: it shares its uid (and thus its heap slot) and its downstream nodes, so that downstream nodes consume its result as they would the last stage's.
+ * Upstream relationships are the ones of the first stage of the chain.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public class FusedStreamPipe extends NodeDecorator implements StreamNode
+{
+    private final List<StreamPipe<?, ?>> stages;
+
+    /**
+     *
+     * @param stages
+     */
+    public FusedStreamPipe(List<StreamPipe<?, ?>> stages)
+    {
+        super(stages.get(stages.size() - 1));
+        this.stages = Collections.unmodifiableList(stages);
+    }
+
+    /**
+     *
+     * @return the fused stages in execution order
+     */
+    public List<StreamPipe<?, ?>> getStages()
+    {
+        return this.stages;
+    }
+
+    /**
+     *
+     * @return the upstream node of the first stage
+     */
+    public Node getSimpleUpstream()
+    {
+        return this.stages.get(0).getSimpleUpstream();
+    }
+
+    @Override
+    public String getName()
+    {
+        return this.getNode().getName();
+    }
+
+    @Override
+    public List<Node> getUpstream()
+    {
+        return this.stages.get(0).getUpstream();
+    }
+
+    @Override
+    public List<Node> getRequirements()
+    {
+        return this.stages.get(0).getRequirements();
+    }
+}
@@ -5,13 +5,21 @@ import com.noleme.flow.Pipe;
 import com.noleme.flow.Sink;
 import com.noleme.flow.Source;
 import com.noleme.flow.actor.accumulator.Accumulator;
+import com.noleme.flow.actor.accumulator.FoldingAccumulator;
 import com.noleme.flow.actor.extractor.ExtractionException;
 import com.noleme.flow.actor.extractor.Extractor;
+import com.noleme.flow.actor.generator.AsyncGenerator;
+import com.noleme.flow.actor.generator.BulkGenerator;
 import com.noleme.flow.actor.generator.Generator;
+import com.noleme.flow.actor.loader.AsyncLoader;
 import com.noleme.flow.actor.loader.Loader;
+import com.noleme.flow.actor.transformer.AsyncTransformer;
 import com.noleme.flow.actor.transformer.BiTransformer;
 import com.noleme.flow.actor.transformer.Transformer;
 import com.noleme.flow.impl.pipeline.PipelineRunException;
+import com.noleme.flow.impl.pipeline.compiler.FusedPipe;
+import com.noleme.flow.impl.pipeline.compiler.stream.FusedStreamPipe;
+import com.noleme.flow.impl.pipeline.runtime.heap.Accumulation;
 import com.noleme.flow.impl.pipeline.runtime.heap.Heap;
 import com.noleme.flow.impl.pipeline.runtime.node.OffsetNode;
 import com.noleme.flow.interruption.InterruptionException;
@@ -19,11 +27,19 @@ import com.noleme.flow.io.input.InputExtractor;
 import com.noleme.flow.io.input.Key;
 import com.noleme.flow.io.output.Recipient;
 import com.noleme.flow.node.Node;
+import com.noleme.flow.node.SimpleNode;
 import com.noleme.flow.stream.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 /**
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
@@ -60,6 +76,8 @@ public class Execution
                 return this.launchSource((Source<?>) node, heap);
             else if (node instanceof Pipe)
                 return this.launchPipe((Pipe<?, ?>) node, heap);
+            else if (node instanceof FusedPipe)
+                return this.launchFusedPipe((FusedPipe) node, heap);
             else if (node instanceof Join)
                 return this.launchJoin((Join<?, ?, ?>) node, heap);
             else if (node instanceof Sink)
@@ -83,10 +101,128 @@ public class Execution
             return false;
         }
         catch (Exception e) {
-            logger.error("Flow node {}#{} has thrown an error: {}", getName(node), node.getUid(), e.getMessage());
+            /* Failures within fused nodes are reported against the failing stage */
+            Node failed = StageException.failedNode(node, e);
+            Exception failure = StageException.failure(e);
 
-            throw new PipelineRunException("Node " + node.getClass().getName() + " " + getName(node) + "#" + node.getUid() + " has thrown an exception. (" + e.getClass() + ")", e, heap);
+            logger.error("Flow node {}#{} has thrown an error: {}", getName(failed), failed.getUid(), failure.getMessage());
+
+            throw new PipelineRunException("Node " + failed.getClass().getName() + " " + getName(failed) + "#" + failed.getUid() + " has thrown an exception. (" + failure.getClass() + ")", failure, heap);
+        }
+    }
+
+    /**
+     * Executes a stream node at the provided offset, this is equivalent to launching an OffsetNode without requiring one.
+     *
+     * @param node Target stream node
+     * @param offset Stream offset
+     * @param heap Heap object used for retrieving module parameters
+     * @return true upon a successful execution, false otherwise
+     * @throws PipelineRunException
+     */
+    public boolean launch(Node node, long offset, Heap heap) throws PipelineRunException
+    {
+        try {
+            return this.launchOffset(node, offset, heap);
+        }
+        catch (InterruptionException e) {
+            logger.debug("Flow node {}#{} has requested an interruption at offset {}, blocking downstream nodes.", getName(node), node.getUid(), offset);
+
+            return false;
+        }
+        catch (Exception e) {
+            /* Failures within fused nodes are reported against the failing stage */
+            Node failed = StageException.failedNode(node, e);
+            Exception failure = StageException.failure(e);
+
+            logger.error("Flow node {}#{} has thrown an error at offset {}: {}", getName(failed), failed.getUid(), offset, failure.getMessage());
+
+            throw new PipelineRunException("Node " + failed.getClass().getName() + " " + getName(failed) + "#" + failed.getUid() + "#" + offset + " has thrown an exception. (" + failure.getClass() + ")", failure, heap);
+        }
+    }
+
+    /**
+     * Asynchronous nodes are pipes and stream pipes with an AsyncTransformer, sinks and stream sinks with an AsyncLoader, and stream generators with an AsyncGenerator.
+     * Runtimes which don't support asynchronous execution can simply ignore this, asynchronous actors then block through their synchronous contract.
+     *
+     * @param node Target node, or OffsetNode for stream nodes
+     * @param heap Heap object used for retrieving stream generators
+     * @return true if the node can be launched through launchAsync
+     */
+    public boolean isAsync(Node node, Heap heap)
+    {
+        Node actual = node instanceof OffsetNode ? ((OffsetNode) node).getNode() : node;
+
+        if (actual instanceof Pipe)
+            return ((Pipe<?, ?>) actual).getActor() instanceof AsyncTransformer;
+        else if (actual instanceof StreamPipe)
+            return ((StreamPipe<?, ?>) actual).getActor() instanceof AsyncTransformer;
+        else if (actual instanceof Sink)
+            return !(actual instanceof Recipient) && ((Sink<?>) actual).getActor() instanceof AsyncLoader;
+        else if (actual instanceof StreamSink)
+            return ((StreamSink<?>) actual).getActor() instanceof AsyncLoader;
+        else if (actual instanceof StreamGenerator)
+            return node instanceof OffsetNode && heap.getStreamGenerator((StreamGenerator<?, ?>) actual) instanceof AsyncGenerator;
+
+        return false;
+    }
+
+    /**
+     * Asynchronous counterpart to launch, for nodes identified by isAsync.
+     * The node's input is consumed from the heap by the calling thread, its result is pushed to the heap by whichever thread completes the actor's future.
+     *
+     * The returned future is completed with the same value launch would have returned, or exceptionally with a PipelineRunException.
+     *
+     * Calls back into the actor which are chained after one of its futures (eg. when a generator fills a chunk) are made from the provided executor, never from the thread which completed the future.
+     *
+     * @param node Target node, or OffsetNode for stream nodes
+     * @param heap Heap object used for retrieving module parameters
+     * @param executor Executor used for calling back into the node's actor upon the completion of one of its futures
+     * @return a future completed once the node's execution is over
+     */
+    public CompletableFuture<Boolean> launchAsync(Node node, Heap heap, Executor executor)
+    {
+        Node actual = node instanceof OffsetNode ? ((OffsetNode) node).getNode() : node;
+        long offset = node instanceof OffsetNode ? ((OffsetNode) node).getOffset() : -1;
+        CompletableFuture<Boolean> future;
+
+        try {
+            if (actual instanceof Pipe)
+                future = this.launchAsyncPipe((Pipe<?, ?>) actual, heap);
+            else if (actual instanceof Sink)
+                future = this.launchAsyncSink((Sink<?>) actual, heap);
+            else if (actual instanceof StreamGenerator)
+                future = this.launchAsyncStreamGenerator((StreamGenerator<?, ?>) actual, offset, heap, executor);
+            else if (actual instanceof StreamPipe)
+                future = this.launchAsyncStreamPipe((StreamPipe<?, ?>) actual, offset, heap);
+            else if (actual instanceof StreamSink)
+                future = this.launchAsyncStreamSink((StreamSink<?>) actual, offset, heap);
+            else
+                throw new PipelineRunException("Node type " + actual.getClass().getName() + " doesn't support asynchronous execution", heap);
+        }
+        catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
         }
+
+        return future.handle((success, failure) -> {
+            if (failure == null)
+                return success;
+
+            Throwable cause = unwrap(failure);
+
+            if (cause instanceof InterruptionException)
+            {
+                logger.debug("Flow node {}#{} has requested an interruption, blocking downstream nodes.", getName(actual), actual.getUid());
+                return false;
+            }
+            if (cause instanceof PipelineRunException || !(cause instanceof Exception))
+                throw new CompletionException(cause);
+
+            String position = offset >= 0 ? "#" + offset : "";
+            logger.error("Flow node {}#{}{} has thrown an error: {}", getName(actual), actual.getUid(), position, cause.getMessage());
+
+            throw new CompletionException(new PipelineRunException("Node " + actual.getClass().getName() + " " + getName(actual) + "#" + actual.getUid() + position + " has thrown an exception. (" + cause.getClass() + ")", cause, heap));
+        });
     }
 
     /**
@@ -100,7 +236,8 @@ public class Execution
     {
         Extractor extractor = source.getActor();
 
-        logger.debug("Launching flow source {}#{} of extractor {}", getName(source), source.getUid(), extractor.getClass().getName());
+        if (logger.isDebugEnabled())
+            logger.debug("Launching flow source {}#{} of extractor {}", getName(source), source.getUid(), extractor.getClass().getName());
 
         /* If the extractor is an InputExtractor, the output value comes from the provided input instead of the extractor itself ; the extractor only holds a reference to the expected input */
         if (extractor instanceof InputExtractor)
@@ -109,11 +246,11 @@ public class Execution
             if (!heap.hasInput(key))
                 throw new ExtractionException("The InputExtractor in node #" + source.getUid() + " couldn't find its expected input");
 
-            heap.push(source.getUid(), heap.getInput(key), source.getDownstream().size());
+            heap.push(source, heap.getInput(key), source.getDownstream().size());
         }
         /* Otherwise normal rules apply */
         else
-            heap.push(source.getUid(), extractor.extract(), source.getDownstream().size());
+            heap.push(source, extractor.extract(), source.getDownstream().size());
 
         return true;
     }
@@ -130,10 +267,29 @@ public class Execution
     {
         Transformer transformer = pipe.getActor();
 
-        logger.debug("Launching flow pipe {}#{} of transformer {}", getName(pipe), pipe.getUid(), transformer.getClass().getName());
+        if (logger.isDebugEnabled())
+            logger.debug("Launching flow pipe {}#{} of transformer {}", getName(pipe), pipe.getUid(), transformer.getClass().getName());
 
-        Object input = heap.consume(pipe.getSimpleUpstream().getUid());
-        heap.push(pipe.getUid(), transformer.transform(input), pipe.getDownstream().size());
+        Object input = heap.consume(pipe.getSimpleUpstream());
+        heap.push(pipe, transformer.transform(input), pipe.getDownstream().size());
+        return true;
+    }
+
+    /**
+     * Stages are ran back-to-back without pushing intermediate values to the heap, only the result of the last stage is pushed.
+     *
+     * @param fused
+     * @param heap
+     * @return
+     * @throws Exception
+     */
+    private boolean launchFusedPipe(FusedPipe fused, Heap heap) throws Exception
+    {
+        if (logger.isDebugEnabled())
+            logger.debug("Launching fused flow pipes {}", describeStages(fused.getStages()));
+
+        Object input = heap.consume(fused.getSimpleUpstream());
+        heap.push(fused, transformStages(fused.getStages(), input), fused.getDownstream().size());
         return true;
     }
 
@@ -149,19 +305,22 @@ public class Execution
     {
         BiTransformer transformer = join.getActor();
 
-        logger.debug(
-            "Launching flow join {}#{} of upstream flows {}#{} and {}#{}",
-            getName(join),
-            join.getUid(),
-            getName(join.getUpstream1()),
-            join.getUpstream1().getUid(),
-            getName(join.getUpstream2()),
-            join.getUpstream2().getUid()
-        );
-
-        Object input1 = heap.consume(join.getUpstream1().getUid());
-        Object input2 = heap.consume(join.getUpstream2().getUid());
-        heap.push(join.getUid(), transformer.transform(input1, input2), join.getDownstream().size());
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(
+                "Launching flow join {}#{} of upstream flows {}#{} and {}#{}",
+                getName(join),
+                join.getUid(),
+                getName(join.getUpstream1()),
+                join.getUpstream1().getUid(),
+                getName(join.getUpstream2()),
+                join.getUpstream2().getUid()
+            );
+        }
+
+        Object input1 = heap.consume(join.getUpstream1());
+        Object input2 = heap.consume(join.getUpstream2());
+        heap.push(join, transformer.transform(input1, input2), join.getDownstream().size());
         return true;
     }
 
@@ -177,9 +336,10 @@ public class Execution
     {
         Loader loader = sink.getActor();
 
-        logger.debug("Launching flow sink {}#{} of loader {}", getName(sink), sink.getUid(), loader.getClass().getName());
+        if (logger.isDebugEnabled())
+            logger.debug("Launching flow sink {}#{} of loader {}", getName(sink), sink.getUid(), loader.getClass().getName());
 
-        Object input = heap.consume(sink.getSimpleUpstream().getUid());
+        Object input = heap.consume(sink.getSimpleUpstream());
 
         /* If the sink is a Recipient, the output value comes from the provided input instead of the extractor itself ; the extractor only holds a reference to the expected input */
         if (sink instanceof Recipient)
@@ -203,13 +363,26 @@ public class Execution
      */
     private boolean launchOffset(OffsetNode offsetNode, Heap heap) throws Exception, PipelineRunException
     {
-        Node node = offsetNode.getNode();
-        long offset = offsetNode.getOffset();
+        return this.launchOffset(offsetNode.getNode(), offsetNode.getOffset(), heap);
+    }
 
+    /**
+     *
+     * @param node
+     * @param offset
+     * @param heap
+     * @return
+     * @throws Exception
+     * @throws PipelineRunException
+     */
+    private boolean launchOffset(Node node, long offset, Heap heap) throws Exception, PipelineRunException
+    {
         if (node instanceof StreamGenerator)
             return this.launchStreamGenerator((StreamGenerator<?, ?>) node, offset, heap);
         else if (node instanceof StreamPipe)
             return this.launchStreamPipe((StreamPipe<?, ?>) node, offset, heap);
+        else if (node instanceof FusedStreamPipe)
+            return this.launchFusedStreamPipe((FusedStreamPipe) node, offset, heap);
         else if (node instanceof StreamJoin)
             return this.launchStreamJoin((StreamJoin<?, ?, ?>) node, offset, heap);
         else if (node instanceof StreamSink)
@@ -232,12 +405,46 @@ public class Execution
     {
         Generator generator = heap.getStreamGenerator(generatorNode);
 
-        logger.debug("Launching flow stream generator {}#{} at offset {} with generator {}", getName(generatorNode), generatorNode.getUid(), offset, generator.getClass().getName());
+        if (logger.isDebugEnabled())
+            logger.debug("Launching flow stream generator {}#{} at offset {} with generator {}", getName(generatorNode), generatorNode.getUid(), offset, generator.getClass().getName());
 
-        heap.push(generatorNode.getUid(), offset, generator.generate(), generatorNode.getDownstream().size());
+        if (generatorNode.getBatchSize() > 1)
+            return this.pushStreamBatch(generatorNode, offset, generateBatch(generatorNode, generator, offset), heap);
+
+        this.pushStreamResult(generatorNode, offset, generator.generate(), heap);
         return true;
     }
 
+    /**
+     * The runtime only checks the generator before launching the offset, so the first item is generated unconditionally.
+     * A BulkGenerator provides the whole chunk in a single call.
+     *
+     * @param generatorNode
+     * @param generator
+     * @param offset
+     * @return
+     * @throws Exception
+     */
+    private static StreamBatch generateBatch(StreamGenerator<?, ?> generatorNode, Generator generator, long offset) throws Exception
+    {
+        if (generator instanceof BulkGenerator)
+            return new StreamBatch(((BulkGenerator<?>) generator).generateBatch(generatorNode.getBatchSize()));
+
+        StreamBatch batch = new StreamBatch(generatorNode.getBatchSize());
+
+        for (int i = 0 ; i < generatorNode.getBatchSize() && (i == 0 || generator.hasNext()) ; ++i)
+        {
+            try {
+                batch.add(generator.generate());
+            }
+            catch (InterruptionException e) {
+                logItemInterruption(generatorNode, offset);
+            }
+        }
+
+        return batch;
+    }
+
     /**
      *
      * @param pipe
@@ -251,13 +458,102 @@ public class Execution
     {
         Transformer transformer = pipe.getActor();
 
-        logger.debug("Launching flow stream pipe {}#{} at offset {} of transformer {}", getName(pipe), pipe.getUid(), offset, transformer.getClass().getName());
+        if (logger.isDebugEnabled())
+            logger.debug("Launching flow stream pipe {}#{} at offset {} of transformer {}", getName(pipe), pipe.getUid(), offset, transformer.getClass().getName());
+
+        Object input = heap.consume(pipe.getSimpleUpstream(), offset);
+
+        if (input instanceof StreamBatch)
+        {
+            StreamBatch batch = (StreamBatch) input;
+            StreamBatch results = new StreamBatch(batch.size());
+
+            for (int i = 0 ; i < batch.size() ; ++i)
+            {
+                try {
+                    results.add(transformer.transform(batch.get(i)));
+                }
+                catch (InterruptionException e) {
+                    logItemInterruption(pipe, offset);
+                }
+            }
+            return this.pushStreamBatch(pipe, offset, results, heap);
+        }
+
+        this.pushStreamResult(pipe, offset, transformer.transform(input), heap);
+        return true;
+    }
+
+    /**
+     * Stages are ran back-to-back without pushing intermediate values to the heap, an interruption from any stage interrupts the item for the rest of the chain.
+     *
+     * @param fused
+     * @param offset
+     * @param heap
+     * @return
+     * @throws Exception
+     */
+    private boolean launchFusedStreamPipe(FusedStreamPipe fused, long offset, Heap heap) throws Exception
+    {
+        List<StreamPipe<?, ?>> stages = fused.getStages();
+
+        if (logger.isDebugEnabled())
+            logger.debug("Launching fused flow stream pipes {} at offset {}", describeStages(stages), offset);
+
+        Object input = heap.consume(fused.getSimpleUpstream(), offset);
+
+        if (input instanceof StreamBatch)
+        {
+            StreamBatch batch = (StreamBatch) input;
+            StreamBatch results = new StreamBatch(batch.size());
+
+            for (int i = 0 ; i < batch.size() ; ++i)
+            {
+                try {
+                    results.add(transformStages(stages, batch.get(i)));
+                }
+                catch (InterruptionException e) {
+                    logItemInterruption(fused, offset);
+                }
+            }
+            return this.pushStreamBatch(fused, offset, results, heap);
+        }
 
-        Object input = heap.consume(pipe.getSimpleUpstream().getUid(), offset);
-        heap.push(pipe.getUid(), offset, transformer.transform(input), pipe.getDownstream().size());
+        this.pushStreamResult(fused, offset, transformStages(stages, input), heap);
         return true;
     }
 
+    /**
+     *
+     * @param stages
+     * @param input
+     * @return the output of the last stage
+     * @throws StageException
+     */
+    @SuppressWarnings("unchecked")
+    private static Object transformStages(List<? extends SimpleNode<? extends Transformer>> stages, Object input) throws StageException
+    {
+        Object value = input;
+
+        /* This runs for every stream item, hence the indexed loop which spares an iterator */
+        for (int i = 0 ; i < stages.size() ; ++i)
+        {
+            try {
+                value = stages.get(i).getActor().transform(value);
+            }
+            catch (InterruptionException e) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Fused flow stage {}#{} has requested an interruption.", getName(stages.get(i)), stages.get(i).getUid());
+                throw e;
+            }
+            catch (Exception e) {
+                throw new StageException(stages.get(i), e);
+            }
+        }
+
+        return value;
+    }
+
     /**
      *
      * @param join
@@ -271,20 +567,42 @@ public class Execution
     {
         BiTransformer transformer = join.getActor();
 
-        logger.debug(
-            "Launching flow stream join {}#{} at offset {} of upstream flows {}#{} and {}#{}",
-            getName(join),
-            join.getUid(),
-            offset,
-            getName(join.getUpstream1()),
-            join.getUpstream1().getUid(),
-            getName(join.getUpstream2()),
-            join.getUpstream2().getUid()
-        );
-
-        Object input1 = heap.consume(join.getUpstream1().getUid(), offset);
-        Object input2 = heap.consume(join.getUpstream2().getUid(), offset);
-        heap.push(join.getUid(), offset, transformer.transform(input1, input2), join.getDownstream().size());
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(
+                "Launching flow stream join {}#{} at offset {} of upstream flows {}#{} and {}#{}",
+                getName(join),
+                join.getUid(),
+                offset,
+                getName(join.getUpstream1()),
+                join.getUpstream1().getUid(),
+                getName(join.getUpstream2()),
+                join.getUpstream2().getUid()
+            );
+        }
+
+        Object input1 = heap.consume(join.getUpstream1(), offset);
+        Object input2 = heap.consume(join.getUpstream2(), offset);
+
+        /* Only the stream side of a join can be batched, the other side is a non-stream value shared by every item */
+        if (input1 instanceof StreamBatch)
+        {
+            StreamBatch batch = (StreamBatch) input1;
+            StreamBatch results = new StreamBatch(batch.size());
+
+            for (int i = 0 ; i < batch.size() ; ++i)
+            {
+                try {
+                    results.add(transformer.transform(batch.get(i), input2));
+                }
+                catch (InterruptionException e) {
+                    logItemInterruption(join, offset);
+                }
+            }
+            return this.pushStreamBatch(join, offset, results, heap);
+        }
+
+        this.pushStreamResult(join, offset, transformer.transform(input1, input2), heap);
         return true;
     }
 
@@ -301,9 +619,27 @@ public class Execution
     {
         Loader loader = sink.getActor();
 
-        logger.debug("Launching flow stream sink {}#{} at offset {} of loader {}", getName(sink), sink.getUid(), offset, loader.getClass().getName());
+        if (logger.isDebugEnabled())
+            logger.debug("Launching flow stream sink {}#{} at offset {} of loader {}", getName(sink), sink.getUid(), offset, loader.getClass().getName());
+
+        Object input = heap.consume(sink.getSimpleUpstream(), offset);
+
+        if (input instanceof StreamBatch)
+        {
+            StreamBatch batch = (StreamBatch) input;
+
+            for (int i = 0 ; i < batch.size() ; ++i)
+            {
+                try {
+                    loader.load(batch.get(i));
+                }
+                catch (InterruptionException e) {
+                    logItemInterruption(sink, offset);
+                }
+            }
+            return true;
+        }
 
-        Object input = heap.consume(sink.getSimpleUpstream().getUid(), offset);
         loader.load(input);
         return true;
     }
@@ -320,13 +656,404 @@ public class Execution
     {
         Accumulator accumulator = node.getActor();
 
-        logger.debug("Launching flow stream accumulator {}#{} of accumulator {}", getName(node), node.getUid(), node.getClass().getName());
+        if (logger.isDebugEnabled())
+            logger.debug("Launching flow stream accumulator {}#{} of accumulator {}", getName(node), node.getUid(), node.getClass().getName());
 
-        Collection<Object> input = heap.consumeAll(node.getSimpleUpstream().getUid());
-        heap.push(node.getUid(), accumulator.accumulate(input), node.getDownstream().size());
+        /* Folding accumulators were fed as the stream went, only their final state remains to be computed */
+        if (accumulator instanceof FoldingAccumulator)
+        {
+            heap.push(node, heap.getAccumulation(node).finish(), node.getDownstream().size());
+            return true;
+        }
+
+        Collection<Object> input = unbatch(heap.consumeAll(node.getSimpleUpstream()));
+        heap.push(node, accumulator.accumulate(input), node.getDownstream().size());
         return true;
     }
 
+    /**
+     *
+     * @param pipe
+     * @param heap
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Boolean> launchAsyncPipe(Pipe<?, ?> pipe, Heap heap) throws Exception
+    {
+        AsyncTransformer transformer = (AsyncTransformer) pipe.getActor();
+
+        if (logger.isDebugEnabled())
+            logger.debug("Launching asynchronous flow pipe {}#{} of transformer {}", getName(pipe), pipe.getUid(), transformer.getClass().getName());
+
+        Object input = heap.consume(pipe.getSimpleUpstream());
+        return then(transformer.transformAsync(input), result -> {
+            heap.push(pipe, result, pipe.getDownstream().size());
+            return true;
+        });
+    }
+
+    /**
+     *
+     * @param sink
+     * @param heap
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Boolean> launchAsyncSink(Sink<?> sink, Heap heap) throws Exception
+    {
+        AsyncLoader loader = (AsyncLoader) sink.getActor();
+
+        if (logger.isDebugEnabled())
+            logger.debug("Launching asynchronous flow sink {}#{} of loader {}", getName(sink), sink.getUid(), loader.getClass().getName());
+
+        Object input = heap.consume(sink.getSimpleUpstream());
+        return then(loader.loadAsync(input), result -> true);
+    }
+
+    /**
+     *
+     * @param generatorNode
+     * @param offset
+     * @param heap
+     * @param executor
+     * @return
+     */
+    private CompletableFuture<Boolean> launchAsyncStreamGenerator(StreamGenerator<?, ?> generatorNode, long offset, Heap heap, Executor executor)
+    {
+        AsyncGenerator<?> generator = (AsyncGenerator<?>) heap.getStreamGenerator(generatorNode);
+
+        if (logger.isDebugEnabled())
+            logger.debug("Launching asynchronous flow stream generator {}#{} at offset {} with generator {}", getName(generatorNode), generatorNode.getUid(), offset, generator.getClass().getName());
+
+        if (generatorNode.getBatchSize() > 1)
+        {
+            StreamBatch batch = new StreamBatch(generatorNode.getBatchSize());
+            return then(generateBatchAsync(generatorNode, generator, offset, batch, 0, executor), result -> this.pushStreamBatch(generatorNode, offset, batch, heap));
+        }
+
+        return then(invoke(generator::generateAsync), result -> {
+            this.pushStreamResult(generatorNode, offset, result, heap);
+            return true;
+        });
+    }
+
+    /**
+     * Items of a chunk are generated one after the other, each one being requested upon the completion of the previous one.
+     * Items which are already available are added in a loop by the calling thread, so that a large chunk of completed futures doesn't result in a deep recursion.
+     * Generators aren't expected to be thread-safe, so an item completed by a foreign thread (eg. an I/O library's) has the next one requested from the executor instead.
+     *
+     * @param generatorNode
+     * @param generator
+     * @param offset
+     * @param batch
+     * @param generated the number of items requested so far
+     * @param executor
+     * @return
+     */
+    private static CompletableFuture<StreamBatch> generateBatchAsync(StreamGenerator<?, ?> generatorNode, AsyncGenerator<?> generator, long offset, StreamBatch batch, int generated, Executor executor)
+    {
+        int requested = generated;
+
+        while (true)
+        {
+            CompletableFuture<StreamBatch> item = collect(generatorNode, offset, invoke(generator::generateAsync), batch);
+            int count = ++requested;
+
+            if (!item.isDone())
+            {
+                return item.thenComposeAsync(b -> {
+                    if (count < generatorNode.getBatchSize() && generator.hasNext())
+                        return generateBatchAsync(generatorNode, generator, offset, batch, count, executor);
+                    return CompletableFuture.completedFuture(batch);
+                }, executor);
+            }
+
+            if (item.isCompletedExceptionally() || count >= generatorNode.getBatchSize() || !generator.hasNext())
+                return item;
+        }
+    }
+
+    /**
+     * Every item of a chunk is submitted right away, the chunk is pushed once all of them have completed.
+     *
+     * @param pipe
+     * @param offset
+     * @param heap
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Boolean> launchAsyncStreamPipe(StreamPipe<?, ?> pipe, long offset, Heap heap) throws Exception
+    {
+        AsyncTransformer transformer = (AsyncTransformer) pipe.getActor();
+
+        if (logger.isDebugEnabled())
+            logger.debug("Launching asynchronous flow stream pipe {}#{} at offset {} of transformer {}", getName(pipe), pipe.getUid(), offset, transformer.getClass().getName());
+
+        Object input = heap.consume(pipe.getSimpleUpstream(), offset);
+
+        if (input instanceof StreamBatch)
+        {
+            StreamBatch batch = (StreamBatch) input;
+            List<CompletableFuture<?>> items = new ArrayList<>(batch.size());
+
+            for (int i = 0 ; i < batch.size() ; ++i)
+            {
+                Object item = batch.get(i);
+                items.add(invoke(() -> transformer.transformAsync(item)));
+            }
+
+            StreamBatch results = new StreamBatch(batch.size());
+            return then(collectAll(pipe, offset, items, results), result -> this.pushStreamBatch(pipe, offset, results, heap));
+        }
+
+        return then(transformer.transformAsync(input), result -> {
+            this.pushStreamResult(pipe, offset, result, heap);
+            return true;
+        });
+    }
+
+    /**
+     *
+     * @param sink
+     * @param offset
+     * @param heap
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Boolean> launchAsyncStreamSink(StreamSink<?> sink, long offset, Heap heap) throws Exception
+    {
+        AsyncLoader loader = (AsyncLoader) sink.getActor();
+
+        if (logger.isDebugEnabled())
+            logger.debug("Launching asynchronous flow stream sink {}#{} at offset {} of loader {}", getName(sink), sink.getUid(), offset, loader.getClass().getName());
+
+        Object input = heap.consume(sink.getSimpleUpstream(), offset);
+
+        if (input instanceof StreamBatch)
+        {
+            StreamBatch batch = (StreamBatch) input;
+            List<CompletableFuture<?>> items = new ArrayList<>(batch.size());
+
+            for (int i = 0 ; i < batch.size() ; ++i)
+            {
+                Object item = batch.get(i);
+                items.add(invoke(() -> loader.loadAsync(item)));
+            }
+
+            return then(collectAll(sink, offset, items, new StreamBatch(batch.size())), result -> true);
+        }
+
+        return then(loader.loadAsync(input), result -> true);
+    }
+
+    /**
+     * Gathers the results of a chunk's items in their original order, items which were interrupted are dropped.
+     *
+     * @param node
+     * @param offset
+     * @param items
+     * @param results
+     * @return
+     */
+    private static CompletableFuture<StreamBatch> collectAll(Node node, long offset, List<CompletableFuture<?>> items, StreamBatch results)
+    {
+        return CompletableFuture.allOf(items.toArray(new CompletableFuture[0])).handle((v, failure) -> {
+            for (CompletableFuture<?> item : items)
+            {
+                try {
+                    results.add(item.join());
+                }
+                catch (CompletionException e) {
+                    if (!(unwrap(e) instanceof InterruptionException))
+                        throw e;
+                    logItemInterruption(node, offset);
+                }
+            }
+            return results;
+        });
+    }
+
+    /**
+     *
+     * @param node
+     * @param offset
+     * @param item
+     * @param results
+     * @return a future completed with the results once the item was either added or dropped
+     */
+    private static CompletableFuture<StreamBatch> collect(Node node, long offset, CompletableFuture<?> item, StreamBatch results)
+    {
+        return item.handle((result, failure) -> {
+            if (failure == null)
+                results.add(result);
+            else if (unwrap(failure) instanceof InterruptionException)
+                logItemInterruption(node, offset);
+            else
+                throw new CompletionException(unwrap(failure));
+            return results;
+        });
+    }
+
+    /**
+     * Chains the provided completion step after the stage, exceptions thrown by the step complete the returned future exceptionally.
+     *
+     * @param stage
+     * @param step
+     * @return
+     */
+    private static <T> CompletableFuture<Boolean> then(CompletionStage<T> stage, AsyncStep<? super T> step)
+    {
+        return stage.toCompletableFuture().thenApply(result -> {
+            try {
+                return step.apply(result);
+            }
+            catch (RuntimeException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Calls an asynchronous actor, exceptions thrown before the actor has returned a stage are reported through a failed future.
+     *
+     * @param call
+     * @return
+     */
+    private static <T> CompletableFuture<T> invoke(Callable<? extends CompletionStage<T>> call)
+    {
+        try {
+            return call.call().toCompletableFuture();
+        }
+        catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     *
+     * @param failure
+     * @return the failure a future was completed with, unwrapped from its CompletionException if any
+     */
+    private static Throwable unwrap(Throwable failure)
+    {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    /**
+     * A completion step for an asynchronous actor's result.
+     */
+    @FunctionalInterface
+    private interface AsyncStep<T>
+    {
+        boolean apply(T result) throws Exception;
+    }
+
+    /**
+     * Pushes the result of a stream node to the heap, the result is then immediately folded into any downstream FoldingAccumulator.
+     * This way, the result is released as soon as the other downstream nodes have consumed it, instead of remaining on the heap until the end of the stream.
+     *
+     * @param node
+     * @param offset
+     * @param result
+     * @param heap
+     * @throws Exception
+     */
+    private void pushStreamResult(Node node, long offset, Object result, Heap heap) throws Exception
+    {
+        List<Node> downstreams = node.getDownstream();
+        heap.push(node, offset, result, downstreams.size());
+
+        /* This runs for every stream item, hence the indexed loop which spares an iterator */
+        for (int i = 0 ; i < downstreams.size() ; ++i)
+        {
+            Node downstream = downstreams.get(i);
+            if (downstream instanceof StreamAccumulator && ((StreamAccumulator<?, ?>) downstream).getActor() instanceof FoldingAccumulator)
+            {
+                Accumulation accumulation = heap.getAccumulation((StreamAccumulator) downstream);
+                Object value = heap.consume(node, offset);
+
+                if (value instanceof StreamBatch)
+                    accumulation.foldAll((StreamBatch) value);
+                else
+                    accumulation.fold(value);
+            }
+        }
+    }
+
+    /**
+     * A chunk whose items were all dropped by interruptions isn't pushed, the offset is then interrupted as a whole.
+     *
+     * @param node
+     * @param offset
+     * @param batch
+     * @param heap
+     * @return true if the chunk still holds items, false otherwise
+     * @throws Exception
+     */
+    private boolean pushStreamBatch(Node node, long offset, StreamBatch batch, Heap heap) throws Exception
+    {
+        if (batch.isEmpty())
+        {
+            logger.debug("Flow node {}#{} has interrupted every item at offset {}, blocking downstream nodes.", getName(node), node.getUid(), offset);
+            return false;
+        }
+
+        this.pushStreamResult(node, offset, batch, heap);
+        return true;
+    }
+
+    /**
+     * Stream accumulators are expected to receive items, so the chunks of a batched stream are unpacked in offset order.
+     *
+     * @param values
+     * @return
+     */
+    private static Collection<Object> unbatch(Collection<Object> values)
+    {
+        if (values.isEmpty() || !(values.iterator().next() instanceof StreamBatch))
+            return values;
+
+        List<Object> items = new ArrayList<>();
+        for (Object value : values)
+            items.addAll((StreamBatch) value);
+        return items;
+    }
+
+    /**
+     *
+     * @param node
+     * @param offset
+     */
+    private static void logItemInterruption(Node node, long offset)
+    {
+        if (logger.isDebugEnabled())
+            logger.debug("Flow node {}#{} has requested an interruption for an item at offset {}, dropping it.", getName(node), node.getUid(), offset);
+    }
+
+    /**
+     *
+     * @param stages
+     * @return
+     */
+    private static String describeStages(List<? extends Node> stages)
+    {
+        StringBuilder description = new StringBuilder();
+        for (Node stage : stages)
+        {
+            if (description.length() > 0)
+                description.append(" > ");
+            description.append(getName(stage)).append("#").append(stage.getUid());
+        }
+        return description.toString();
+    }
+
     /**
      *
      * @param node
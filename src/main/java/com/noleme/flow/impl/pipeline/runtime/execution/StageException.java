@@ -0,0 +1,54 @@
+package com.noleme.flow.impl.pipeline.runtime.execution;
+
+import com.noleme.flow.node.Node;
+
+/**
+ * Wraps an exception thrown by a stage of a fused node, so that failures can be reported against the stage which actually failed.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+final class StageException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    /* Nodes aren't serializable, a deserialized StageException no longer knows its stage */
+    private final transient Node stage;
+
+    /**
+     *
+     * @param stage
+     * @param cause
+     */
+    StageException(Node stage, Exception cause)
+    {
+        super(cause.getMessage(), cause);
+        this.stage = stage;
+    }
+
+    public Node getStage()
+    {
+        return this.stage;
+    }
+
+    /**
+     *
+     * @param node
+     * @param e
+     * @return the node which actually failed, ie. the failing stage for fused nodes
+     */
+    static Node failedNode(Node node, Exception e)
+    {
+        return e instanceof StageException ? ((StageException) e).getStage() : node;
+    }
+
+    /**
+     *
+     * @param e
+     * @return the actual failure, unwrapped from its StageException if any
+     */
+    static Exception failure(Exception e)
+    {
+        return e instanceof StageException ? (Exception) e.getCause() : e;
+    }
+}
@@ -0,0 +1,61 @@
+package com.noleme.flow.impl.pipeline.runtime.execution;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * A chunk of stream items held under a single offset, as produced by a StreamGenerator with a batch size larger than 1.
+ *
+ * Each stream node of a batched stream runs its actor over every item of the chunk and pushes a chunk of its own, so that actors keep their per-item signatures.
+ * Items are never exposed to actors as a batch: stream accumulators receive them unpacked, in generation order.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+final class StreamBatch extends AbstractList<Object> implements RandomAccess
+{
+    private final Object[] items;
+    private int size;
+
+    /**
+     *
+     * @param capacity
+     */
+    StreamBatch(int capacity)
+    {
+        this.items = new Object[capacity];
+        this.size = 0;
+    }
+
+    /**
+     *
+     * @param items
+     */
+    StreamBatch(Collection<?> items)
+    {
+        this.items = items.toArray();
+        this.size = this.items.length;
+    }
+
+    @Override
+    public boolean add(Object item)
+    {
+        this.items[this.size++] = item;
+        return true;
+    }
+
+    @Override
+    public Object get(int index)
+    {
+        if (index >= this.size)
+            throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for a stream batch of size " + this.size);
+        return this.items[index];
+    }
+
+    @Override
+    public int size()
+    {
+        return this.size;
+    }
+}
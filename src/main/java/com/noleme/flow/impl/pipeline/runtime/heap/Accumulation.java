@@ -0,0 +1,158 @@
+package com.noleme.flow.impl.pipeline.runtime.heap;
+
+import com.noleme.flow.actor.accumulator.CombiningAccumulator;
+import com.noleme.flow.actor.accumulator.FoldingAccumulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Intermediate state of a FoldingAccumulator for a given run, stream results are folded into it as soon as they are produced.
+ *
+ * Folds are serialized on a partial state, as results of a parallel stream may be produced concurrently.
+ * A plain FoldingAccumulator has a single partial state, while a CombiningAccumulator has partial states striped by thread, which are combined pairwise upon completion.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/15
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public final class Accumulation
+{
+    /* Number of partial states for combining accumulators, so that concurrent workers rarely share one */
+    private static final int STRIPES = stripes();
+
+    private final FoldingAccumulator accumulator;
+    private final Partial[] partials;
+
+    /**
+     *
+     * @param accumulator
+     */
+    public Accumulation(FoldingAccumulator accumulator)
+    {
+        this.accumulator = accumulator;
+        this.partials = new Partial[accumulator instanceof CombiningAccumulator ? STRIPES : 1];
+
+        for (int i = 0 ; i < this.partials.length ; ++i)
+            this.partials[i] = new Partial();
+    }
+
+    /**
+     *
+     * @param input
+     * @throws Exception
+     */
+    public void fold(Object input) throws Exception
+    {
+        Partial partial = this.partial();
+
+        synchronized (partial)
+        {
+            if (!partial.initialized)
+            {
+                partial.state = this.accumulator.init();
+                partial.initialized = true;
+            }
+            partial.state = this.accumulator.accumulate(partial.state, input);
+        }
+    }
+
+    /**
+     * Folds a chunk of inputs in order, the partial state is locked once for the whole chunk.
+     *
+     * @param inputs
+     * @throws Exception
+     */
+    public void foldAll(List<?> inputs) throws Exception
+    {
+        Partial partial = this.partial();
+
+        synchronized (partial)
+        {
+            if (!partial.initialized)
+            {
+                partial.state = this.accumulator.init();
+                partial.initialized = true;
+            }
+            for (int i = 0 ; i < inputs.size() ; ++i)
+                partial.state = this.accumulator.accumulate(partial.state, inputs.get(i));
+        }
+    }
+
+    /**
+     * This is expected to be called once the stream is over, hence without any concurrent fold.
+     *
+     * @return
+     * @throws Exception
+     */
+    synchronized public Object finish() throws Exception
+    {
+        List<Object> states = new ArrayList<>(this.partials.length);
+        for (Partial partial : this.partials)
+        {
+            synchronized (partial)
+            {
+                if (partial.initialized)
+                    states.add(partial.state);
+            }
+        }
+
+        if (states.isEmpty())
+            return this.accumulator.finish(this.accumulator.init());
+
+        /* Partial states are combined pairwise, as a balanced tree */
+        while (states.size() > 1)
+        {
+            List<Object> combined = new ArrayList<>((states.size() + 1) / 2);
+            for (int i = 0 ; i < states.size() ; i += 2)
+            {
+                combined.add(i + 1 < states.size()
+                    ? ((CombiningAccumulator) this.accumulator).combine(states.get(i), states.get(i + 1))
+                    : states.get(i)
+                );
+            }
+            states = combined;
+        }
+
+        return this.accumulator.finish(states.get(0));
+    }
+
+    /**
+     *
+     * @return the partial state assigned to the current thread
+     */
+    private Partial partial()
+    {
+        return this.partials.length == 1
+            ? this.partials[0]
+            : this.partials[stripe(Thread.currentThread()) & (this.partials.length - 1)]
+        ;
+    }
+
+    /**
+     *
+     * @param thread
+     * @return
+     */
+    private static int stripe(Thread thread)
+    {
+        long id = thread.getId();
+        return (int) (id ^ (id >>> 16));
+    }
+
+    /**
+     *
+     * @return the smallest power of two greater than or equal to twice the number of available processors
+     */
+    private static int stripes()
+    {
+        int target = Runtime.getRuntime().availableProcessors() * 2;
+        return target <= 1 ? 1 : Integer.highestOneBit(target - 1) << 1;
+    }
+
+    private static final class Partial
+    {
+        private Object state;
+        private boolean initialized = false;
+    }
+}
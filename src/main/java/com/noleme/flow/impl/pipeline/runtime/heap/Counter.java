@@ -1,13 +1,32 @@
 package com.noleme.flow.impl.pipeline.runtime.heap;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 /**
+ * A heap value along with the number of consumers it is still awaiting.
+ *
+ * The count is updated through compare-and-set operations, so that concurrent consumers don't have to lock the counter.
+ * Callers deciding upon the removal of a value are expected to rely on the return value of decrementAndGet(), which is the only way to know which consumer was the last one.
+ *
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
  * Created on 2020/03/03
  */
 public class Counter
 {
+    private static final VarHandle COUNT;
+
+    static {
+        try {
+            COUNT = MethodHandles.lookup().findVarHandle(Counter.class, "count", int.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private final Object value;
-    private int count;
+    private volatile int count;
 
     public Counter(Object value, int counter)
     {
@@ -19,13 +38,30 @@ public class Counter
      *
      * @return
      */
-    synchronized public Counter decrement()
+    public Counter decrement()
     {
-        if (this.count > 0)
-            this.count--;
+        this.decrementAndGet();
         return this;
     }
 
+    /**
+     * Decrements the count unless it already reached zero.
+     *
+     * @return the updated count
+     */
+    public int decrementAndGet()
+    {
+        int count;
+        do {
+            count = this.count;
+            if (count == 0)
+                return 0;
+        }
+        while (!COUNT.compareAndSet(this, count, count - 1));
+
+        return count - 1;
+    }
+
     /**
      *
      * @return
@@ -1,24 +1,32 @@
 package com.noleme.flow.impl.pipeline.runtime.heap;
 
+import com.noleme.flow.actor.accumulator.FoldingAccumulator;
 import com.noleme.flow.actor.generator.Generator;
 import com.noleme.flow.io.input.Input;
 import com.noleme.flow.io.input.Key;
 import com.noleme.flow.io.output.OutputMap;
 import com.noleme.flow.io.output.WriteableOutput;
+import com.noleme.flow.stream.StreamAccumulator;
 import com.noleme.flow.stream.StreamGenerator;
 
 import java.util.*;
 import java.util.stream.Collectors;
 
 /**
+ * A Heap backed by hash maps keyed by node uid, it isn't thread-safe.
+ *
+ * @deprecated compiled runtimes use a {@link SlotHeap}, this implementation isn't used by the library anymore and will be removed in a future release.
  * @author Pierre Lecerf (pierre.lecerf@gmail.com) on 23/01/15.
  */
+@Deprecated
+@SuppressWarnings("rawtypes")
 public class HashHeap implements Heap
 {
     private final Map<String, Counter> contents;
     private final Map<String, Generator<?>> generators;
     private final Map<String, CounterContainer> streamContents;
     private final Map<String, Long> offsets;
+    private final Map<String, Accumulation> accumulations;
     private final Input input;
     private final WriteableOutput output;
 
@@ -29,6 +37,7 @@ public class HashHeap implements Heap
         this.streamContents = new HashMap<>();
         this.generators = new HashMap<>();
         this.offsets = new HashMap<>();
+        this.accumulations = new HashMap<>();
         this.input = input;
         this.output = new OutputMap();
     }
@@ -57,14 +66,13 @@ public class HashHeap implements Heap
     @Override
     public Object consume(String id)
     {
-        if (this.contents.containsKey(id))
-        {
-            Counter counter = this.contents.get(id).decrement();
-            if (counter.getCount() == 0)
-                this.contents.remove(id);
-            return counter.getValue();
-        }
-        return null;
+        Counter counter = this.contents.get(id);
+
+        if (counter == null)
+            return null;
+        if (counter.decrementAndGet() == 0)
+            this.contents.remove(id);
+        return counter.getValue();
     }
 
     @Override
@@ -91,6 +99,13 @@ public class HashHeap implements Heap
         return this.offsets.get(node.getUid());
     }
 
+    @Override
+    public void closeStreamGenerators()
+    {
+        for (Generator<?> generator : this.generators.values())
+            Heap.closeStreamGenerator(generator);
+    }
+
     @Override
     public Heap push(String id, long offset, Object returnValue, int counter)
     {
@@ -124,16 +139,15 @@ public class HashHeap implements Heap
         if (this.hasStreamContent(id, offset))
         {
             CounterContainer container = this.streamContents.get(id);
-            Counter counter = container.get(offset).decrement();
+            Counter counter = container.get(offset);
 
-            if (counter.getCount() == 0)
+            if (counter.decrementAndGet() == 0)
                 container.remove(offset);
 
             return counter.getValue();
         }
-        else if (this.has(id))
-            return this.contents.get(id).decrement().getValue();
-        return null;
+        /* Non-stream values consumed from within a stream are shared by every offset, the runtime consumes them once per stream node when the stream is over */
+        return this.peek(id);
     }
 
     @Override
@@ -153,6 +167,12 @@ public class HashHeap implements Heap
         return values;
     }
 
+    @Override
+    public Accumulation getAccumulation(StreamAccumulator node)
+    {
+        return this.accumulations.computeIfAbsent(node.getUid(), uid -> new Accumulation((FoldingAccumulator) node.getActor()));
+    }
+
     @Override
     public boolean hasInput(Key<?> key)
     {
@@ -3,7 +3,10 @@ package com.noleme.flow.impl.pipeline.runtime.heap;
 import com.noleme.flow.actor.generator.Generator;
 import com.noleme.flow.io.input.Key;
 import com.noleme.flow.io.output.Output;
+import com.noleme.flow.node.Node;
+import com.noleme.flow.stream.StreamAccumulator;
 import com.noleme.flow.stream.StreamGenerator;
+import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
 
@@ -42,6 +45,29 @@ public interface Heap
      */
     Object consume(String id);
 
+    /**
+     * Node-based variants are used by the Execution, heaps with compiled slots can override them in order to resolve nodes without going through their uid.
+     *
+     * @param node
+     * @param returnValue
+     * @param counter
+     * @return
+     */
+    default Heap push(Node node, Object returnValue, int counter)
+    {
+        return this.push(node.getUid(), returnValue, counter);
+    }
+
+    /**
+     *
+     * @param node
+     * @return
+     */
+    default Object consume(Node node)
+    {
+        return this.consume(node.getUid());
+    }
+
     /* Stream related methods */
 
     /**
@@ -58,6 +84,31 @@ public interface Heap
      */
     long getNextStreamOffset(StreamGenerator node);
 
+    /**
+     * Closes the stream generators produced by the heap which are AutoCloseable (eg. a PrefetchingGenerator).
+     * Runtimes call it at the end of each run regardless of its outcome, so that generators abandoned by a failed run don't keep running.
+     */
+    default void closeStreamGenerators()
+    {
+    }
+
+    /**
+     *
+     * @param generator
+     */
+    static void closeStreamGenerator(Generator generator)
+    {
+        if (!(generator instanceof AutoCloseable))
+            return;
+
+        try {
+            ((AutoCloseable) generator).close();
+        }
+        catch (Exception e) {
+            LoggerFactory.getLogger(Heap.class).warn("Stream generator {} could not be closed: {}", generator.getClass().getName(), e.getMessage());
+        }
+    }
+
     /**
      *
      * @param id
@@ -99,6 +150,54 @@ public interface Heap
      */
     Collection<Object> consumeAll(String id);
 
+    /**
+     *
+     * @param node
+     * @param offset
+     * @param returnValue
+     * @param counter
+     * @return
+     */
+    default Heap push(Node node, long offset, Object returnValue, int counter)
+    {
+        return this.push(node.getUid(), offset, returnValue, counter);
+    }
+
+    /**
+     *
+     * @param node
+     * @param offset
+     * @return
+     */
+    default Object consume(Node node, long offset)
+    {
+        return this.consume(node.getUid(), offset);
+    }
+
+    /**
+     *
+     * @param node
+     * @return
+     */
+    default Collection<Object> consumeAll(Node node)
+    {
+        return this.consumeAll(node.getUid());
+    }
+
+    /**
+     * Returns the accumulation state of the provided accumulator node, which is expected to have a FoldingAccumulator actor.
+     * The state is created upon the first call for a given run.
+     *
+     * Heaps which don't keep accumulation states can't run flows with folding accumulators, which is what the default implementation reports.
+     *
+     * @param node
+     * @return
+     */
+    default Accumulation getAccumulation(StreamAccumulator node)
+    {
+        throw new UnsupportedOperationException("Heap implementation " + this.getClass().getName() + " doesn't support folding accumulators (node #" + node.getUid() + ")");
+    }
+
     /**
      *
      * @param key
@@ -0,0 +1,62 @@
+package com.noleme.flow.impl.pipeline.runtime.heap;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Estimates the memory footprint of values held by a Heap, in bytes.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/17
+ */
+@FunctionalInterface
+public interface Sizer
+{
+    /**
+     *
+     * @param value
+     * @return the estimated footprint of the value in bytes
+     */
+    long sizeOf(Object value);
+
+    /**
+     * A rough estimator which only accounts for arrays, strings and the number of entries in collections and maps.
+     * It doesn't inspect object graphs, a Sizer aware of the actual value types should be provided whenever accuracy matters.
+     *
+     * @return
+     */
+    static Sizer shallow()
+    {
+        return Sizer::shallowSizeOf;
+    }
+
+    /**
+     *
+     * @param value
+     * @return
+     */
+    private static long shallowSizeOf(Object value)
+    {
+        if (value == null)
+            return 0;
+        if (value instanceof byte[])
+            return 16 + ((byte[]) value).length;
+        if (value instanceof char[])
+            return 16 + ((char[]) value).length * 2L;
+        if (value instanceof int[])
+            return 16 + ((int[]) value).length * 4L;
+        if (value instanceof long[])
+            return 16 + ((long[]) value).length * 8L;
+        if (value instanceof double[])
+            return 16 + ((double[]) value).length * 8L;
+        if (value instanceof Object[])
+            return 16 + ((Object[]) value).length * 8L;
+        if (value instanceof CharSequence)
+            return 40 + ((CharSequence) value).length() * 2L;
+        if (value instanceof Collection)
+            return 40 + ((Collection<?>) value).size() * 32L;
+        if (value instanceof Map)
+            return 48 + ((Map<?, ?>) value).size() * 64L;
+        return 16;
+    }
+}
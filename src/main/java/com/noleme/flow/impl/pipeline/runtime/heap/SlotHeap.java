@@ -0,0 +1,412 @@
+package com.noleme.flow.impl.pipeline.runtime.heap;
+
+import com.noleme.flow.actor.accumulator.FoldingAccumulator;
+import com.noleme.flow.actor.generator.Generator;
+import com.noleme.flow.io.input.Input;
+import com.noleme.flow.io.input.Key;
+import com.noleme.flow.io.output.OutputMap;
+import com.noleme.flow.io.output.WriteableOutput;
+import com.noleme.flow.node.Node;
+import com.noleme.flow.stream.StreamAccumulator;
+import com.noleme.flow.stream.StreamGenerator;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A Heap implementation backed by pre-sized arrays of slots, addressed by the dense node indexes of a SlotIndex.
+ *
+ * Values and their remaining consumer counts are stored in parallel arrays, which spares both the uid hashing and the Counter allocation of map-based heaps for non-stream nodes.
+ * Slots are atomic so that the heap can be shared between worker threads without locking, stream contents rely on per-slot StreamBuffer instances sized from the parallelism of their stream.
+ * A SlotHeap can be recycled for another run of the same graph through reset(), which spares the allocation of its arrays.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/13
+ */
+@SuppressWarnings("rawtypes")
+public class SlotHeap implements Heap
+{
+    /* Placeholder for null values, so that an empty slot can be told apart from a pushed null */
+    private static final Object NULL = new Object();
+
+    private final SlotIndex index;
+    private final AtomicReferenceArray<Object> values;
+    private final AtomicIntegerArray counts;
+    private final AtomicReferenceArray<Generator> generators;
+    private final AtomicReferenceArray<StreamBuffer> streamContents;
+    private final AtomicLongArray offsets;
+    private final AtomicReferenceArray<Accumulation> accumulations;
+    private Input input;
+    private WriteableOutput output;
+
+    /**
+     *
+     * @param index
+     * @param input
+     */
+    public SlotHeap(SlotIndex index, Input input)
+    {
+        this.index = index;
+        this.values = new AtomicReferenceArray<>(index.size());
+        this.counts = new AtomicIntegerArray(index.size());
+        this.generators = new AtomicReferenceArray<>(index.size());
+        this.streamContents = new AtomicReferenceArray<>(index.size());
+        this.offsets = new AtomicLongArray(index.size());
+        this.accumulations = new AtomicReferenceArray<>(index.size());
+        this.input = input;
+        this.output = new OutputMap();
+    }
+
+    /**
+     * Empties every slot and binds the heap to a new input, the output of the previous run is left to its owner and replaced by a new one.
+     * The caller is expected to ensure that no worker is still operating on the heap, and to hand the heap over to the next run through a synchronized channel (eg. a concurrent queue), which is why plain writes are sufficient here.
+     *
+     * @param input
+     * @return
+     */
+    public SlotHeap reset(Input input)
+    {
+        for (int slot = 0 ; slot < this.index.size() ; ++slot)
+        {
+            this.values.setPlain(slot, null);
+            this.counts.setPlain(slot, 0);
+            this.generators.setPlain(slot, null);
+            this.streamContents.setPlain(slot, null);
+            this.offsets.setPlain(slot, 0);
+            this.accumulations.setPlain(slot, null);
+        }
+        this.input = input;
+        this.output = new OutputMap();
+        return this;
+    }
+
+    @Override
+    public Heap push(String id, Object returnValue, int counter)
+    {
+        return this.push(this.slot(id), returnValue, counter);
+    }
+
+    @Override
+    public Heap push(Node node, Object returnValue, int counter)
+    {
+        return this.push(this.slot(node), returnValue, counter);
+    }
+
+    @Override
+    public boolean has(String id)
+    {
+        int slot = this.index.indexOf(id);
+        return slot >= 0 && this.values.get(slot) != null;
+    }
+
+    @Override
+    public Object peek(String id)
+    {
+        int slot = this.index.indexOf(id);
+        return slot >= 0 ? unwrap(this.values.get(slot)) : null;
+    }
+
+    @Override
+    public Object consume(String id)
+    {
+        int slot = this.index.indexOf(id);
+        return slot >= 0 ? this.consume(slot) : null;
+    }
+
+    @Override
+    public Object consume(Node node)
+    {
+        int slot = this.index.indexOf(node);
+        return slot >= 0 ? this.consume(slot) : null;
+    }
+
+    /**
+     * Generator creation isn't synchronized on the heap, the runtimes guarantee that a given generator is only ever reserved by one worker at a time.
+     *
+     * @param node
+     * @return
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Generator getStreamGenerator(StreamGenerator node)
+    {
+        int slot = this.slot(node);
+        Generator generator = this.generators.get(slot);
+
+        if (generator == null)
+        {
+            /* If the node has an upstream node, we recover its output, otherwise the generator has a null input */
+            var argument = node.getSimpleUpstream() != null
+                ? this.consume(node.getSimpleUpstream())
+                : null
+            ;
+
+            generator = node.produceGenerator(argument);
+            this.generators.set(slot, generator);
+        }
+        return generator;
+    }
+
+    @Override
+    public long getNextStreamOffset(StreamGenerator node)
+    {
+        return this.offsets.getAndIncrement(this.slot(node));
+    }
+
+    @Override
+    public void closeStreamGenerators()
+    {
+        for (int slot = 0 ; slot < this.generators.length() ; ++slot)
+        {
+            Generator generator = this.generators.get(slot);
+            if (generator != null)
+                Heap.closeStreamGenerator(generator);
+        }
+    }
+
+    @Override
+    public Heap push(String id, long offset, Object returnValue, int counter)
+    {
+        return this.push(this.slot(id), offset, returnValue, counter);
+    }
+
+    @Override
+    public Heap push(Node node, long offset, Object returnValue, int counter)
+    {
+        return this.push(this.slot(node), offset, returnValue, counter);
+    }
+
+    @Override
+    public boolean has(String id, long offset)
+    {
+        int slot = this.index.indexOf(id);
+        return slot >= 0 && (this.hasStreamContent(slot, offset) || this.values.get(slot) != null);
+    }
+
+    @Override
+    public Object peek(String id, long offset)
+    {
+        int slot = this.index.indexOf(id);
+
+        if (slot < 0)
+            return null;
+
+        StreamBuffer buffer = this.streamContents.get(slot);
+        if (buffer != null && buffer.has(offset))
+            return buffer.peek(offset);
+        return unwrap(this.values.get(slot));
+    }
+
+    @Override
+    public Object consume(String id, long offset)
+    {
+        int slot = this.index.indexOf(id);
+        return slot >= 0 ? this.consume(slot, offset) : null;
+    }
+
+    @Override
+    public Object consume(Node node, long offset)
+    {
+        int slot = this.index.indexOf(node);
+        return slot >= 0 ? this.consume(slot, offset) : null;
+    }
+
+    @Override
+    public Collection<Object> consumeAll(String id)
+    {
+        int slot = this.index.indexOf(id);
+        return slot >= 0 ? this.consumeAll(slot) : Collections.emptyList();
+    }
+
+    @Override
+    public Collection<Object> consumeAll(Node node)
+    {
+        int slot = this.index.indexOf(node);
+        return slot >= 0 ? this.consumeAll(slot) : Collections.emptyList();
+    }
+
+    @Override
+    public Accumulation getAccumulation(StreamAccumulator node)
+    {
+        int slot = this.slot(node);
+        Accumulation accumulation = this.accumulations.get(slot);
+
+        if (accumulation == null)
+        {
+            this.accumulations.compareAndSet(slot, null, new Accumulation((FoldingAccumulator) node.getActor()));
+            accumulation = this.accumulations.get(slot);
+        }
+        return accumulation;
+    }
+
+    @Override
+    public boolean hasInput(Key<?> key)
+    {
+        return this.input.has(key);
+    }
+
+    @Override
+    public <T> T getInput(Key<T> key)
+    {
+        return this.input.get(key);
+    }
+
+    @Override
+    synchronized public Heap setOutput(String identifier, Object value)
+    {
+        this.output.set(identifier, value);
+        return this;
+    }
+
+    @Override
+    public WriteableOutput getOutput()
+    {
+        return this.output;
+    }
+
+    /**
+     *
+     * @param slot
+     * @param returnValue
+     * @param counter
+     * @return
+     */
+    private Heap push(int slot, Object returnValue, int counter)
+    {
+        this.counts.set(slot, counter);
+        this.values.set(slot, returnValue != null ? returnValue : NULL);
+        return this;
+    }
+
+    /**
+     * The value is read before the count is decremented, so that a concurrent consumer emptying the slot can't make it disappear from under us.
+     *
+     * @param slot
+     * @return
+     */
+    private Object consume(int slot)
+    {
+        Object value = this.values.get(slot);
+
+        if (value == null)
+            return null;
+
+        if (this.counts.updateAndGet(slot, c -> c > 0 ? c - 1 : 0) == 0)
+            this.values.compareAndSet(slot, value, null);
+
+        return unwrap(value);
+    }
+
+    /**
+     *
+     * @param slot
+     * @param offset
+     * @param returnValue
+     * @param counter
+     * @return
+     */
+    private Heap push(int slot, long offset, Object returnValue, int counter)
+    {
+        StreamBuffer buffer = this.streamContents.get(slot);
+
+        if (buffer == null)
+        {
+            this.streamContents.compareAndSet(slot, null, new StreamBuffer(this.index.getStreamBound(slot)));
+            buffer = this.streamContents.get(slot);
+        }
+
+        buffer.set(offset, returnValue, counter);
+
+        return this;
+    }
+
+    /**
+     *
+     * @param slot
+     * @param offset
+     * @return
+     */
+    private Object consume(int slot, long offset)
+    {
+        StreamBuffer buffer = this.streamContents.get(slot);
+
+        if (buffer != null && buffer.has(offset))
+            return buffer.consume(offset);
+        /* Non-stream values consumed from within a stream are shared by every offset, the runtime consumes them once per stream node when the stream is over */
+        return unwrap(this.values.get(slot));
+    }
+
+    /**
+     *
+     * @param slot
+     * @return
+     */
+    private Collection<Object> consumeAll(int slot)
+    {
+        StreamBuffer buffer = this.streamContents.get(slot);
+
+        if (buffer == null)
+            return Collections.emptyList();
+
+        List<Object> values = buffer.consumeAll();
+
+        if (buffer.isEmpty())
+            this.streamContents.compareAndSet(slot, buffer, null);
+
+        return values;
+    }
+
+    /**
+     *
+     * @param slot
+     * @param offset
+     * @return
+     */
+    private boolean hasStreamContent(int slot, long offset)
+    {
+        StreamBuffer buffer = this.streamContents.get(slot);
+        return buffer != null && buffer.has(offset);
+    }
+
+    /**
+     *
+     * @param node
+     * @return
+     */
+    private int slot(Node node)
+    {
+        int slot = this.index.indexOf(node);
+
+        if (slot < 0)
+            throw new IllegalArgumentException("Flow node #" + node.getUid() + " has no slot in the heap, it wasn't part of the compiled graph.");
+        return slot;
+    }
+
+    /**
+     *
+     * @param id
+     * @return
+     */
+    private int slot(String id)
+    {
+        int slot = this.index.indexOf(id);
+
+        if (slot < 0)
+            throw new IllegalArgumentException("Flow node #" + id + " has no slot in the heap, it wasn't part of the compiled graph.");
+        return slot;
+    }
+
+    /**
+     *
+     * @param value
+     * @return
+     */
+    private static Object unwrap(Object value)
+    {
+        return value == NULL ? null : value;
+    }
+}
@@ -0,0 +1,151 @@
+package com.noleme.flow.impl.pipeline.runtime.heap;
+
+import com.noleme.flow.node.Node;
+import com.noleme.flow.stream.StreamGenerator;
+import com.noleme.flow.stream.StreamNode;
+
+import java.util.*;
+
+/**
+ * Compiled slot assignment for a SlotHeap: each node of the graph is given a dense integer index, which addresses its slot in the heap.
+ *
+ * Slots are resolved by node identity, so that heap accesses don't have to hash or compare node uids.
+ * Resolution by uid remains available for the String-keyed Heap methods, and for nodes which are not the instances that were indexed (eg. decorators).
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/13
+ */
+public final class SlotIndex
+{
+    private final Node[] nodes;
+    private final Map<Node, Integer> identities;
+    private final Map<String, Integer> uids;
+    /* Maximum number of offsets in flight for the stream each node belongs to, 1 for non-stream nodes */
+    private final int[] streamBounds;
+
+    /**
+     *
+     * @param nodes every node of the graph, in slot order
+     */
+    public SlotIndex(Node[] nodes)
+    {
+        this.nodes = nodes;
+        this.identities = new IdentityHashMap<>(nodes.length);
+        this.uids = new HashMap<>(nodes.length * 2);
+
+        for (int i = 0 ; i < nodes.length ; ++i)
+        {
+            this.identities.put(nodes[i], i);
+            this.uids.put(nodes[i].getUid(), i);
+        }
+
+        this.streamBounds = new int[nodes.length];
+        Arrays.fill(this.streamBounds, 1);
+        for (Node node : nodes)
+        {
+            if (node instanceof StreamGenerator)
+                this.indexStreamBounds(node, ((StreamGenerator<?, ?>) node).getMaxParallelism());
+        }
+    }
+
+    /**
+     * Builds an index over every node connected to the provided ones, be it through data or requirement relationships.
+     *
+     * @param startNodes
+     * @return
+     */
+    public static SlotIndex of(Collection<Node> startNodes)
+    {
+        Set<Node> nodes = new LinkedHashSet<>();
+        Queue<Node> queue = new LinkedList<>(startNodes);
+
+        while (!queue.isEmpty())
+        {
+            Node node = queue.poll();
+
+            if (!nodes.add(node))
+                continue;
+
+            queue.addAll(node.getUpstream());
+            queue.addAll(node.getDownstream());
+            queue.addAll(node.getRequirements());
+            queue.addAll(node.getRequiredBy());
+        }
+
+        return new SlotIndex(nodes.toArray(new Node[0]));
+    }
+
+    /**
+     *
+     * @return the number of slots
+     */
+    public int size()
+    {
+        return this.uids.size();
+    }
+
+    /**
+     *
+     * @param node
+     * @return the slot of the provided node, -1 if it isn't indexed
+     */
+    public int indexOf(Node node)
+    {
+        Integer index = this.identities.get(node);
+        return index != null ? index : this.indexOf(node.getUid());
+    }
+
+    /**
+     *
+     * @param slot
+     * @return the node indexed at the provided slot
+     */
+    public Node getNode(int slot)
+    {
+        return this.nodes[slot];
+    }
+
+    /**
+     *
+     * @param slot
+     * @return the maximum number of offsets in flight for the stream the node at the given slot belongs to
+     */
+    public int getStreamBound(int slot)
+    {
+        return this.streamBounds[slot];
+    }
+
+    /**
+     *
+     * @param uid
+     * @return the slot of the node with the provided uid, -1 if it isn't indexed
+     */
+    public int indexOf(String uid)
+    {
+        Integer index = this.uids.get(uid);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Stream nodes are given the bound of their generator, nodes shared by several streams keep the largest one.
+     * Nodes without a slot (eg. inner stages of a fused chain) are walked through.
+     *
+     * @param node
+     * @param bound
+     */
+    private void indexStreamBounds(Node node, int bound)
+    {
+        int slot = this.indexOf(node);
+
+        if (slot >= 0 && this.streamBounds[slot] >= bound)
+            return;
+        if (slot >= 0)
+            this.streamBounds[slot] = bound;
+
+        for (Node downstream : node.getDownstream())
+        {
+            if (downstream instanceof StreamNode)
+                this.indexStreamBounds(downstream, bound);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.noleme.flow.impl.pipeline.runtime.heap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Storage for the values produced by a stream node, indexed by offset.
+ *
+ * Values are kept in a ring buffer addressed by {@code offset & mask}, which is expected to be sized from the maximum number of offsets in flight for the stream.
+ * Slots are claimed and released with atomic operations, so that workers operating on different offsets don't have to lock anything.
+ *
+ * A value may outlive its offset, eg. when it awaits an accumulator, whereas values without any consumer aren't stored at all.
+ * Values left over by an interrupted offset are expected to be released by the runtime, through a consume on behalf of each consumer that was blocked.
+ * When a value still occupies the slot of a new offset, the new value is stored in an overflow map instead, which is only ever allocated in that situation.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/14
+ */
+public class StreamBuffer
+{
+    private static final long EMPTY = -1;
+    /* Upper bound for the ring capacity, larger streams rely on the overflow map for their extra offsets */
+    private static final int MAX_CAPACITY = 1 << 12;
+    /* Lower bound for the ring capacity, workers can run ahead of a straggling offset by more than the parallelism bound and each overflowing value costs a few allocations */
+    private static final int MIN_CAPACITY = 1 << 6;
+
+    private final int mask;
+    private final AtomicLongArray offsets;
+    private final AtomicReferenceArray<Object> values;
+    private final AtomicIntegerArray counts;
+    private volatile Map<Long, Counter> overflow;
+
+    /**
+     * Offsets don't complete in order, the ring is given twice the expected bound (and at least MIN_CAPACITY slots) so that a straggling offset doesn't immediately collide with newer ones.
+     *
+     * @param bound the expected maximum number of offsets in flight
+     */
+    public StreamBuffer(int bound)
+    {
+        int capacity = capacityFor(bound >= MAX_CAPACITY ? MAX_CAPACITY : Math.max(bound * 2, MIN_CAPACITY));
+
+        this.mask = capacity - 1;
+        this.offsets = new AtomicLongArray(capacity);
+        this.values = new AtomicReferenceArray<>(capacity);
+        this.counts = new AtomicIntegerArray(capacity);
+
+        for (int i = 0 ; i < capacity ; ++i)
+            this.offsets.set(i, EMPTY);
+    }
+
+    /**
+     *
+     * @param offset
+     * @param value
+     * @param counter
+     */
+    public void set(long offset, Object value, int counter)
+    {
+        int slot = (int) (offset & this.mask);
+
+        /* A value without any consumer would hold its slot until the end of the run, any previous value for the offset is let go instead */
+        if (counter <= 0)
+        {
+            if (this.offsets.get(slot) == offset)
+            {
+                this.values.set(slot, null);
+                this.offsets.set(slot, EMPTY);
+            }
+            else if (this.overflow != null)
+                this.overflow.remove(offset);
+            return;
+        }
+
+        if (this.offsets.get(slot) == offset || this.offsets.compareAndSet(slot, EMPTY, offset))
+        {
+            this.values.set(slot, value);
+            this.counts.set(slot, counter);
+        }
+        else
+            this.getOverflow().put(offset, new Counter(value, counter));
+    }
+
+    /**
+     *
+     * @param offset
+     * @return
+     */
+    public boolean has(long offset)
+    {
+        if (this.offsets.get((int) (offset & this.mask)) == offset)
+            return true;
+
+        Map<Long, Counter> overflow = this.overflow;
+        return overflow != null && !overflow.isEmpty() && overflow.containsKey(offset);
+    }
+
+    /**
+     *
+     * @param offset
+     * @return
+     */
+    public Object peek(long offset)
+    {
+        int slot = (int) (offset & this.mask);
+
+        if (this.offsets.get(slot) == offset)
+            return this.values.get(slot);
+
+        Map<Long, Counter> overflow = this.overflow;
+        Counter counter = overflow != null && !overflow.isEmpty() ? overflow.get(offset) : null;
+        return counter != null ? counter.getValue() : null;
+    }
+
+    /**
+     * The value is read before the count is decremented, so that a concurrent consumer releasing the slot can't make it disappear from under us.
+     *
+     * @param offset
+     * @return
+     */
+    public Object consume(long offset)
+    {
+        int slot = (int) (offset & this.mask);
+
+        if (this.offsets.get(slot) == offset)
+        {
+            Object value = this.values.get(slot);
+
+            if (this.counts.updateAndGet(slot, c -> c > 0 ? c - 1 : 0) == 0)
+            {
+                this.values.set(slot, null);
+                this.offsets.set(slot, EMPTY);
+            }
+
+            return value;
+        }
+
+        Map<Long, Counter> overflow = this.overflow;
+        Counter counter = overflow != null && !overflow.isEmpty() ? overflow.get(offset) : null;
+
+        if (counter == null)
+            return null;
+        if (counter.decrementAndGet() == 0)
+            overflow.remove(offset, counter);
+
+        return counter.getValue();
+    }
+
+    /**
+     * Consumes every value in the buffer, in offset order.
+     * This is expected to be called once the stream is over, hence without any concurrent update.
+     *
+     * @return
+     */
+    public List<Object> consumeAll()
+    {
+        SortedMap<Long, Object> contents = new TreeMap<>();
+
+        for (int slot = 0 ; slot <= this.mask ; ++slot)
+        {
+            long offset = this.offsets.get(slot);
+
+            if (offset != EMPTY)
+                contents.put(offset, this.consume(offset));
+        }
+
+        Map<Long, Counter> overflow = this.overflow;
+        if (overflow != null)
+        {
+            for (Long offset : new ArrayList<>(overflow.keySet()))
+                contents.put(offset, this.consume(offset));
+        }
+
+        return new ArrayList<>(contents.values());
+    }
+
+    /**
+     *
+     * @return true if the buffer holds no value
+     */
+    public boolean isEmpty()
+    {
+        for (int slot = 0 ; slot <= this.mask ; ++slot)
+        {
+            if (this.offsets.get(slot) != EMPTY)
+                return false;
+        }
+
+        Map<Long, Counter> overflow = this.overflow;
+        return overflow == null || overflow.isEmpty();
+    }
+
+    /**
+     *
+     * @return
+     */
+    private Map<Long, Counter> getOverflow()
+    {
+        if (this.overflow == null)
+        {
+            synchronized (this)
+            {
+                if (this.overflow == null)
+                    this.overflow = new ConcurrentHashMap<>();
+            }
+        }
+        return this.overflow;
+    }
+
+    /**
+     *
+     * @param bound
+     * @return the smallest power of two greater than or equal to the provided bound, within [1, MAX_CAPACITY]
+     */
+    private static int capacityFor(int bound)
+    {
+        if (bound >= MAX_CAPACITY)
+            return MAX_CAPACITY;
+        if (bound <= 1)
+            return 1;
+        return Integer.highestOneBit(bound - 1) << 1;
+    }
+}
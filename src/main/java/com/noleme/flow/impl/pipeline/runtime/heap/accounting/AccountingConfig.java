@@ -0,0 +1,59 @@
+package com.noleme.flow.impl.pipeline.runtime.heap.accounting;
+
+import com.noleme.flow.impl.pipeline.runtime.heap.Sizer;
+
+/**
+ * Configuration of an AccountingHeap.
+ *
+ * Unless a Sizer is provided, values are measured by an InstrumentationSizer when the instrumentation agent is available, and by Sizer.shallow() otherwise.
+ * The budget is optional, when set a ParallelRuntime stops admitting new stream offsets for as long as the heap holds more than the budget.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/18
+ */
+public class AccountingConfig
+{
+    private Sizer sizer = null;
+    private long budget = 0;
+
+    /**
+     *
+     * @return
+     */
+    public Sizer getSizer()
+    {
+        if (this.sizer != null)
+            return this.sizer;
+        return InstrumentationSizer.isAvailable() ? new InstrumentationSizer() : Sizer.shallow();
+    }
+
+    /**
+     *
+     * @param sizer
+     * @return
+     */
+    public AccountingConfig setSizer(Sizer sizer)
+    {
+        this.sizer = sizer;
+        return this;
+    }
+
+    public long getBudget()
+    {
+        return this.budget;
+    }
+
+    /**
+     *
+     * @param budget the memory budget for heap values in bytes, 0 for no budget
+     * @return
+     */
+    public AccountingConfig setBudget(long budget)
+    {
+        if (budget < 0)
+            throw new IllegalArgumentException("The heap budget cannot be negative.");
+
+        this.budget = budget;
+        return this;
+    }
+}
@@ -0,0 +1,434 @@
+package com.noleme.flow.impl.pipeline.runtime.heap.accounting;
+
+import com.noleme.flow.actor.generator.Generator;
+import com.noleme.flow.impl.pipeline.runtime.heap.Accumulation;
+import com.noleme.flow.impl.pipeline.runtime.heap.Heap;
+import com.noleme.flow.impl.pipeline.runtime.heap.Sizer;
+import com.noleme.flow.io.input.Key;
+import com.noleme.flow.io.output.HeapReport;
+import com.noleme.flow.io.output.Output;
+import com.noleme.flow.node.Node;
+import com.noleme.flow.stream.StreamAccumulator;
+import com.noleme.flow.stream.StreamGenerator;
+import com.noleme.flow.stream.StreamNode;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Heap decorator which keeps track of the estimated footprint of the values held by the underlying heap.
+ *
+ * Live bytes are tracked overall, per node and per stream, along with their respective peaks.
+ * A value is accounted for when it is pushed, and released once the underlying heap no longer holds it, ie. after its last consumer.
+ * Only values pushed through the Node-based methods are accounted for, as these are the ones used by the Execution.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/18
+ */
+@SuppressWarnings("rawtypes")
+public class AccountingHeap implements Heap
+{
+    private final Heap heap;
+    private final Sizer sizer;
+    private final long budget;
+    private final Map<String, NodeFootprint> nodes = new ConcurrentHashMap<>();
+    private final Map<String, Footprint> streams = new ConcurrentHashMap<>();
+    private final Footprint total = new Footprint(null, null);
+    private final AtomicLong deferredOffsets = new AtomicLong(0);
+
+    /**
+     *
+     * @param heap
+     * @param config
+     */
+    public AccountingHeap(Heap heap, AccountingConfig config)
+    {
+        this.heap = heap;
+        this.sizer = config.getSizer();
+        this.budget = config.getBudget();
+    }
+
+    @Override
+    public Heap push(String id, Object returnValue, int counter)
+    {
+        this.heap.push(id, returnValue, counter);
+        return this;
+    }
+
+    /**
+     * The value is accounted for before it is handed to the underlying heap, so that a concurrent consumer can't release it before it is recorded.
+     */
+    @Override
+    public Heap push(Node node, Object returnValue, int counter)
+    {
+        NodeFootprint footprint = this.footprint(node);
+        long size = this.sizer.sizeOf(returnValue);
+
+        long previous = footprint.value.getAndSet(size);
+        this.add(footprint, previous < 0 ? size : size - previous);
+
+        this.heap.push(node, returnValue, counter);
+        return this;
+    }
+
+    @Override
+    public boolean has(String id)
+    {
+        return this.heap.has(id);
+    }
+
+    @Override
+    public Object peek(String id)
+    {
+        return this.heap.peek(id);
+    }
+
+    @Override
+    public Object consume(String id)
+    {
+        Object value = this.heap.consume(id);
+        this.releaseValue(id);
+        return value;
+    }
+
+    @Override
+    public Object consume(Node node)
+    {
+        Object value = this.heap.consume(node);
+        this.releaseValue(node.getUid());
+        return value;
+    }
+
+    /**
+     * The generator input is consumed by the underlying heap, hence the release check on the upstream node.
+     */
+    @Override
+    public Generator getStreamGenerator(StreamGenerator node)
+    {
+        Generator generator = this.heap.getStreamGenerator(node);
+
+        if (node.getSimpleUpstream() != null)
+            this.releaseValue(node.getSimpleUpstream().getUid());
+
+        return generator;
+    }
+
+    @Override
+    public long getNextStreamOffset(StreamGenerator node)
+    {
+        return this.heap.getNextStreamOffset(node);
+    }
+
+    @Override
+    public void closeStreamGenerators()
+    {
+        this.heap.closeStreamGenerators();
+    }
+
+    @Override
+    public Heap push(String id, long offset, Object returnValue, int counter)
+    {
+        this.heap.push(id, offset, returnValue, counter);
+        return this;
+    }
+
+    @Override
+    public Heap push(Node node, long offset, Object returnValue, int counter)
+    {
+        /* Values without any consumer aren't kept by the underlying heap, so they aren't accounted for */
+        if (counter <= 0)
+        {
+            this.heap.push(node, offset, returnValue, counter);
+            return this;
+        }
+
+        NodeFootprint footprint = this.footprint(node);
+        long size = this.sizer.sizeOf(returnValue);
+
+        Long previous = footprint.offsets.put(offset, size);
+        this.add(footprint, previous == null ? size : size - previous);
+
+        this.heap.push(node, offset, returnValue, counter);
+        return this;
+    }
+
+    @Override
+    public boolean has(String id, long offset)
+    {
+        return this.heap.has(id, offset);
+    }
+
+    @Override
+    public Object peek(String id, long offset)
+    {
+        return this.heap.peek(id, offset);
+    }
+
+    @Override
+    public Object consume(String id, long offset)
+    {
+        Object value = this.heap.consume(id, offset);
+        this.releaseOffset(id, offset);
+        return value;
+    }
+
+    @Override
+    public Object consume(Node node, long offset)
+    {
+        Object value = this.heap.consume(node, offset);
+        this.releaseOffset(node.getUid(), offset);
+        return value;
+    }
+
+    @Override
+    public Collection<Object> consumeAll(String id)
+    {
+        Collection<Object> values = this.heap.consumeAll(id);
+        this.releaseOffsets(id);
+        return values;
+    }
+
+    @Override
+    public Collection<Object> consumeAll(Node node)
+    {
+        Collection<Object> values = this.heap.consumeAll(node);
+        this.releaseOffsets(node.getUid());
+        return values;
+    }
+
+    @Override
+    public Accumulation getAccumulation(StreamAccumulator node)
+    {
+        return this.heap.getAccumulation(node);
+    }
+
+    @Override
+    public boolean hasInput(Key<?> key)
+    {
+        return this.heap.hasInput(key);
+    }
+
+    @Override
+    public <T> T getInput(Key<T> key)
+    {
+        return this.heap.getInput(key);
+    }
+
+    @Override
+    public Heap setOutput(String identifier, Object value)
+    {
+        this.heap.setOutput(identifier, value);
+        return this;
+    }
+
+    @Override
+    public Output getOutput()
+    {
+        return this.heap.getOutput();
+    }
+
+    /**
+     *
+     * @return the number of bytes currently held by the heap
+     */
+    public long getLiveBytes()
+    {
+        return this.total.live.get();
+    }
+
+    /**
+     *
+     * @return true if a budget was set and the heap currently holds more than the budget
+     */
+    public boolean isOverBudget()
+    {
+        return this.budget > 0 && this.total.live.get() > this.budget;
+    }
+
+    /**
+     * Records a stream offset being held back because of the budget, for reporting purposes.
+     */
+    public void recordDeferral()
+    {
+        this.deferredOffsets.incrementAndGet();
+    }
+
+    /**
+     *
+     * @return a snapshot of the heap footprint
+     */
+    public HeapReport getReport()
+    {
+        return new HeapReport(
+            this.total.peak.get(),
+            this.total.live.get(),
+            this.budget,
+            this.deferredOffsets.get(),
+            report(this.nodes.values()),
+            report(this.streams.values())
+        );
+    }
+
+    /**
+     *
+     * @param footprint
+     * @param delta
+     */
+    private void add(NodeFootprint footprint, long delta)
+    {
+        footprint.add(delta);
+        if (footprint.stream != null)
+            footprint.stream.add(delta);
+        this.total.add(delta);
+    }
+
+    /**
+     * The footprint is released at most once, as the first caller observing the value's removal from the underlying heap is the only one to reset it.
+     *
+     * @param uid
+     */
+    private void releaseValue(String uid)
+    {
+        NodeFootprint footprint = this.nodes.get(uid);
+
+        if (footprint == null || footprint.value.get() < 0 || this.heap.has(uid))
+            return;
+
+        long size = footprint.value.getAndSet(-1);
+        if (size >= 0)
+            this.add(footprint, -size);
+    }
+
+    /**
+     * Non-stream values consumed from within a stream aren't tracked by offset, their release is checked as for any other value.
+     *
+     * @param uid
+     * @param offset
+     */
+    private void releaseOffset(String uid, long offset)
+    {
+        NodeFootprint footprint = this.nodes.get(uid);
+
+        if (footprint == null)
+            return;
+        if (!footprint.offsets.containsKey(offset))
+        {
+            this.releaseValue(uid);
+            return;
+        }
+        if (this.heap.has(uid, offset))
+            return;
+
+        Long size = footprint.offsets.remove(offset);
+        if (size != null)
+            this.add(footprint, -size);
+    }
+
+    /**
+     *
+     * @param uid
+     */
+    private void releaseOffsets(String uid)
+    {
+        NodeFootprint footprint = this.nodes.get(uid);
+
+        if (footprint == null)
+            return;
+
+        for (Long offset : new ArrayList<>(footprint.offsets.keySet()))
+            this.releaseOffset(uid, offset);
+    }
+
+    /**
+     *
+     * @param node
+     * @return
+     */
+    private NodeFootprint footprint(Node node)
+    {
+        NodeFootprint footprint = this.nodes.get(node.getUid());
+
+        if (footprint == null)
+        {
+            Node generator = generatorOf(node);
+            Footprint stream = generator != null
+                ? this.streams.computeIfAbsent(generator.getUid(), uid -> new Footprint(uid, generator.getName()))
+                : null
+            ;
+            footprint = this.nodes.computeIfAbsent(node.getUid(), uid -> new NodeFootprint(uid, node.getName(), stream));
+        }
+        return footprint;
+    }
+
+    /**
+     *
+     * @param node
+     * @return the generator of the stream the node belongs to, null if it isn't a stream node
+     */
+    private static Node generatorOf(Node node)
+    {
+        if (node instanceof StreamGenerator)
+            return node;
+        if (!(node instanceof StreamNode))
+            return null;
+
+        for (Node upstream : node.getUpstream())
+        {
+            Node generator = generatorOf(upstream);
+            if (generator != null)
+                return generator;
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param footprints
+     * @return
+     */
+    private static List<HeapReport.Footprint> report(Collection<? extends Footprint> footprints)
+    {
+        List<HeapReport.Footprint> report = new ArrayList<>(footprints.size());
+        for (Footprint footprint : footprints)
+            report.add(new HeapReport.Footprint(footprint.uid, footprint.name, footprint.peak.get()));
+
+        report.sort(Comparator.comparingLong(HeapReport.Footprint::getPeakBytes).reversed());
+        return report;
+    }
+
+    private static class Footprint
+    {
+        private final String uid;
+        private final String name;
+        private final AtomicLong live = new AtomicLong(0);
+        private final AtomicLong peak = new AtomicLong(0);
+
+        private Footprint(String uid, String name)
+        {
+            this.uid = uid;
+            this.name = name;
+        }
+
+        void add(long delta)
+        {
+            long live = this.live.addAndGet(delta);
+            if (delta > 0)
+                this.peak.accumulateAndGet(live, Math::max);
+        }
+    }
+
+    private static final class NodeFootprint extends Footprint
+    {
+        private final Footprint stream;
+        /* Size of the node's non-stream value, -1 when the heap doesn't hold one */
+        private final AtomicLong value = new AtomicLong(-1);
+        private final Map<Long, Long> offsets = new ConcurrentHashMap<>();
+
+        private NodeFootprint(String uid, String name, Footprint stream)
+        {
+            super(uid, name);
+            this.stream = stream;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.noleme.flow.impl.pipeline.runtime.heap.accounting;
+
+import com.noleme.flow.impl.pipeline.runtime.heap.Sizer;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A Sizer relying on the JVM's own object size measurement, which requires an Instrumentation instance.
+ *
+ * The instrumentation is obtained either by loading the noleme-flow "agent" jar (the artifact with the {@code agent} classifier) as a java agent (eg. {@code -javaagent:noleme-flow-agent.jar}), or by handing over the Instrumentation of another agent through install().
+ * The main noleme-flow artifact isn't a java agent.
+ * Only the value itself and its direct elements (for arrays, collections and maps) are measured, deeper object graphs aren't walked.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/18
+ */
+public class InstrumentationSizer implements Sizer
+{
+    private static volatile Instrumentation instrumentation;
+
+    /**
+     *
+     * @param arguments
+     * @param instrumentation
+     */
+    public static void premain(String arguments, Instrumentation instrumentation)
+    {
+        install(instrumentation);
+    }
+
+    /**
+     *
+     * @param arguments
+     * @param instrumentation
+     */
+    public static void agentmain(String arguments, Instrumentation instrumentation)
+    {
+        install(instrumentation);
+    }
+
+    /**
+     *
+     * @param instrumentation
+     */
+    public static void install(Instrumentation instrumentation)
+    {
+        InstrumentationSizer.instrumentation = instrumentation;
+    }
+
+    /**
+     *
+     * @return true if an Instrumentation instance was installed
+     */
+    public static boolean isAvailable()
+    {
+        return instrumentation != null;
+    }
+
+    @Override
+    public long sizeOf(Object value)
+    {
+        if (value == null)
+            return 0;
+
+        Instrumentation instrumentation = InstrumentationSizer.instrumentation;
+
+        if (instrumentation == null)
+            throw new IllegalStateException("No Instrumentation instance was installed, the InstrumentationSizer requires noleme-flow to be loaded as a java agent.");
+
+        long size = instrumentation.getObjectSize(value);
+
+        if (value instanceof Object[])
+        {
+            for (Object element : (Object[]) value)
+                size += element != null ? instrumentation.getObjectSize(element) : 0;
+        }
+        else if (value instanceof Collection)
+        {
+            for (Object element : (Collection<?>) value)
+                size += element != null ? instrumentation.getObjectSize(element) : 0;
+        }
+        else if (value instanceof Map)
+        {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+            {
+                size += instrumentation.getObjectSize(entry);
+                size += entry.getKey() != null ? instrumentation.getObjectSize(entry.getKey()) : 0;
+                size += entry.getValue() != null ? instrumentation.getObjectSize(entry.getValue()) : 0;
+            }
+        }
+
+        return size;
+    }
+}
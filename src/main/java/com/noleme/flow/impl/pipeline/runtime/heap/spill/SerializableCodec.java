@@ -0,0 +1,37 @@
+package com.noleme.flow.impl.pipeline.runtime.heap.spill;
+
+import java.io.*;
+
+/**
+ * A ValueCodec relying on Java serialization, it supports any {@link Serializable} value.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/17
+ */
+public class SerializableCodec implements ValueCodec
+{
+    @Override
+    public boolean supports(Object value)
+    {
+        return value instanceof Serializable;
+    }
+
+    @Override
+    public void encode(Object value, OutputStream output) throws IOException
+    {
+        var stream = new ObjectOutputStream(output);
+        stream.writeObject(value);
+        stream.flush();
+    }
+
+    @Override
+    public Object decode(InputStream input) throws IOException
+    {
+        try {
+            return new ObjectInputStream(input).readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("A spilled value could not be deserialized.", e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.noleme.flow.impl.pipeline.runtime.heap.spill;
+
+import com.noleme.flow.impl.pipeline.runtime.heap.Sizer;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Configuration of a SpillingHeap.
+ *
+ * Values are kept in memory as long as the estimated footprint of in-memory values remains within the budget, values pushed beyond that point are spilled to disk.
+ * Values which estimated footprint exceeds the threshold are spilled regardless of the budget.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/17
+ */
+public class SpillConfig
+{
+    private final long budget;
+    private long threshold = Long.MAX_VALUE;
+    private Path directory = Paths.get(System.getProperty("java.io.tmpdir"));
+    private ValueCodec codec = new SerializableCodec();
+    private Sizer sizer = Sizer.shallow();
+
+    /**
+     *
+     * @param budget the memory budget for heap values, in bytes
+     */
+    public SpillConfig(long budget)
+    {
+        this.budget = budget;
+    }
+
+    public long getBudget()
+    {
+        return this.budget;
+    }
+
+    public long getThreshold()
+    {
+        return this.threshold;
+    }
+
+    /**
+     *
+     * @param threshold the size in bytes from which values are always spilled
+     * @return
+     */
+    public SpillConfig setThreshold(long threshold)
+    {
+        this.threshold = threshold;
+        return this;
+    }
+
+    public Path getDirectory()
+    {
+        return this.directory;
+    }
+
+    /**
+     *
+     * @param directory the directory under which spill files are created, each run uses its own sub-directory
+     * @return
+     */
+    public SpillConfig setDirectory(Path directory)
+    {
+        this.directory = directory;
+        return this;
+    }
+
+    public ValueCodec getCodec()
+    {
+        return this.codec;
+    }
+
+    public SpillConfig setCodec(ValueCodec codec)
+    {
+        this.codec = codec;
+        return this;
+    }
+
+    public Sizer getSizer()
+    {
+        return this.sizer;
+    }
+
+    public SpillConfig setSizer(Sizer sizer)
+    {
+        this.sizer = sizer;
+        return this;
+    }
+}
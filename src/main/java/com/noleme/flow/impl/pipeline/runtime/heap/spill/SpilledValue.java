@@ -0,0 +1,70 @@
+package com.noleme.flow.impl.pipeline.runtime.heap.spill;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Placeholder for a value spilled to disk, it is stored in the underlying heap in place of the actual value.
+ *
+ * The last loaded value is softly referenced, so that consecutive reads don't go back to disk unless the memory is actually needed.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/17
+ */
+final class SpilledValue
+{
+    private final Path path;
+    private final AtomicInteger remaining;
+    private volatile SoftReference<Object> cache = new SoftReference<>(null);
+
+    /**
+     *
+     * @param path
+     * @param consumers
+     */
+    SpilledValue(Path path, int consumers)
+    {
+        this.path = path;
+        this.remaining = new AtomicInteger(consumers);
+    }
+
+    Path getPath()
+    {
+        return this.path;
+    }
+
+    /**
+     *
+     * @param codec
+     * @return
+     * @throws IOException
+     */
+    Object load(ValueCodec codec) throws IOException
+    {
+        Object value = this.cache.get();
+
+        if (value == null)
+        {
+            try (InputStream input = new BufferedInputStream(Files.newInputStream(this.path))) {
+                value = codec.decode(input);
+            }
+            this.cache = new SoftReference<>(value);
+        }
+
+        return value;
+    }
+
+    /**
+     *
+     * @return true if the value has no remaining consumer
+     */
+    boolean release()
+    {
+        return this.remaining.decrementAndGet() <= 0;
+    }
+}
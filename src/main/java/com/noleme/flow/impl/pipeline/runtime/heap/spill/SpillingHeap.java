@@ -0,0 +1,372 @@
+package com.noleme.flow.impl.pipeline.runtime.heap.spill;
+
+import com.noleme.flow.actor.generator.Generator;
+import com.noleme.flow.impl.pipeline.runtime.heap.Accumulation;
+import com.noleme.flow.impl.pipeline.runtime.heap.Heap;
+import com.noleme.flow.io.input.Key;
+import com.noleme.flow.io.output.Output;
+import com.noleme.flow.node.Node;
+import com.noleme.flow.stream.StreamAccumulator;
+import com.noleme.flow.stream.StreamGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Heap decorator which spills non-stream values to disk once the memory budget is exhausted, or when they exceed the size threshold of its SpillConfig.
+ *
+ * Spilled values are replaced by a placeholder in the underlying heap, and loaded back upon consumption.
+ * A spill file is deleted as soon as its last consumer has read it, remaining files are deleted when the heap is closed.
+ *
+ * Stream values are short-lived and never spilled, neither are values feeding a stream generator as generators recover their input from the underlying heap.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/17
+ */
+@SuppressWarnings("rawtypes")
+public class SpillingHeap implements Heap, AutoCloseable
+{
+    private final Heap heap;
+    private final SpillConfig config;
+    /* Estimated footprint of non-stream values currently held in memory */
+    private final AtomicLong memory = new AtomicLong(0);
+    private final Map<String, Long> sizes = new ConcurrentHashMap<>();
+    private final Set<Path> files = ConcurrentHashMap.newKeySet();
+    private final AtomicLong spillCount = new AtomicLong(0);
+    private Path directory;
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillingHeap.class);
+
+    /**
+     *
+     * @param heap
+     * @param config
+     */
+    public SpillingHeap(Heap heap, SpillConfig config)
+    {
+        this.heap = heap;
+        this.config = config;
+    }
+
+    @Override
+    public Heap push(String id, Object returnValue, int counter)
+    {
+        this.heap.push(id, returnValue, counter);
+        return this;
+    }
+
+    @Override
+    public Heap push(Node node, Object returnValue, int counter)
+    {
+        this.heap.push(node, this.admit(node, returnValue, counter), counter);
+        return this;
+    }
+
+    @Override
+    public boolean has(String id)
+    {
+        return this.heap.has(id);
+    }
+
+    @Override
+    public Object peek(String id)
+    {
+        return this.load(this.heap.peek(id));
+    }
+
+    @Override
+    public Object consume(String id)
+    {
+        return this.resolve(id, this.heap.consume(id));
+    }
+
+    @Override
+    public Object consume(Node node)
+    {
+        return this.resolve(node.getUid(), this.heap.consume(node));
+    }
+
+    @Override
+    public Generator getStreamGenerator(StreamGenerator node)
+    {
+        return this.heap.getStreamGenerator(node);
+    }
+
+    @Override
+    public long getNextStreamOffset(StreamGenerator node)
+    {
+        return this.heap.getNextStreamOffset(node);
+    }
+
+    @Override
+    public void closeStreamGenerators()
+    {
+        this.heap.closeStreamGenerators();
+    }
+
+    @Override
+    public Heap push(String id, long offset, Object returnValue, int counter)
+    {
+        this.heap.push(id, offset, returnValue, counter);
+        return this;
+    }
+
+    @Override
+    public Heap push(Node node, long offset, Object returnValue, int counter)
+    {
+        this.heap.push(node, offset, returnValue, counter);
+        return this;
+    }
+
+    @Override
+    public boolean has(String id, long offset)
+    {
+        return this.heap.has(id, offset);
+    }
+
+    @Override
+    public Object peek(String id, long offset)
+    {
+        return this.load(this.heap.peek(id, offset));
+    }
+
+    /*
+     * Non-stream values consumed from within a stream are shared by every offset and aren't released by the underlying heap, spilled ones are loaded without being released either.
+     * The runtime consumes them through the non-stream methods once the stream is over, at which point their spill file is deleted.
+     */
+
+    @Override
+    public Object consume(String id, long offset)
+    {
+        return this.load(this.heap.consume(id, offset));
+    }
+
+    @Override
+    public Object consume(Node node, long offset)
+    {
+        return this.load(this.heap.consume(node, offset));
+    }
+
+    @Override
+    public Collection<Object> consumeAll(String id)
+    {
+        return this.heap.consumeAll(id);
+    }
+
+    @Override
+    public Collection<Object> consumeAll(Node node)
+    {
+        return this.heap.consumeAll(node);
+    }
+
+    @Override
+    public Accumulation getAccumulation(StreamAccumulator node)
+    {
+        return this.heap.getAccumulation(node);
+    }
+
+    @Override
+    public boolean hasInput(Key<?> key)
+    {
+        return this.heap.hasInput(key);
+    }
+
+    @Override
+    public <T> T getInput(Key<T> key)
+    {
+        return this.heap.getInput(key);
+    }
+
+    @Override
+    public Heap setOutput(String identifier, Object value)
+    {
+        this.heap.setOutput(identifier, value);
+        return this;
+    }
+
+    @Override
+    public Output getOutput()
+    {
+        return this.heap.getOutput();
+    }
+
+    /**
+     *
+     * @return the number of values spilled to disk so far
+     */
+    public long getSpillCount()
+    {
+        return this.spillCount.get();
+    }
+
+    /**
+     * Deletes any remaining spill file, along with the run directory.
+     */
+    @Override
+    synchronized public void close()
+    {
+        for (Path file : this.files)
+            this.delete(file);
+
+        if (this.directory != null)
+            this.delete(this.directory);
+    }
+
+    /**
+     *
+     * @param node
+     * @param value
+     * @param counter
+     * @return either the value itself, or a placeholder for its spilled version
+     */
+    private Object admit(Node node, Object value, int counter)
+    {
+        if (value == null || counter == 0 || !this.config.getCodec().supports(value) || feedsGenerator(node))
+            return value;
+
+        long size = this.config.getSizer().sizeOf(value);
+
+        if (size < this.config.getThreshold() && this.memory.addAndGet(size) <= this.config.getBudget())
+        {
+            this.sizes.put(node.getUid(), size);
+            return value;
+        }
+        else if (size < this.config.getThreshold())
+            this.memory.addAndGet(-size);
+
+        return this.spill(node, value, counter);
+    }
+
+    /**
+     *
+     * @param node
+     * @param value
+     * @param counter
+     * @return
+     */
+    private SpilledValue spill(Node node, Object value, int counter)
+    {
+        try {
+            Path file = Files.createTempFile(this.getDirectory(), "node-", ".bin");
+            this.files.add(file);
+
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(file))) {
+                this.config.getCodec().encode(value, output);
+            }
+
+            this.spillCount.incrementAndGet();
+            logger.debug("Spilled the value of flow node #{} to {} ({} bytes on disk)", node.getUid(), file, Files.size(file));
+
+            return new SpilledValue(file, counter);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("The value of flow node #" + node.getUid() + " could not be spilled to disk.", e);
+        }
+    }
+
+    /**
+     *
+     * @param id
+     * @param value
+     * @return
+     */
+    private Object resolve(String id, Object value)
+    {
+        if (value instanceof SpilledValue)
+        {
+            SpilledValue spilled = (SpilledValue) value;
+            Object loaded = this.load(spilled);
+
+            if (spilled.release())
+            {
+                this.files.remove(spilled.getPath());
+                this.delete(spilled.getPath());
+            }
+
+            return loaded;
+        }
+
+        /* Once the underlying heap has released an in-memory value, its footprint is returned to the budget */
+        if (!this.heap.has(id))
+        {
+            Long size = this.sizes.remove(id);
+            if (size != null)
+                this.memory.addAndGet(-size);
+        }
+
+        return value;
+    }
+
+    /**
+     *
+     * @param value
+     * @return
+     */
+    private Object load(Object value)
+    {
+        if (!(value instanceof SpilledValue))
+            return value;
+
+        try {
+            return ((SpilledValue) value).load(this.config.getCodec());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("A spilled value could not be loaded back from " + ((SpilledValue) value).getPath(), e);
+        }
+    }
+
+    /**
+     *
+     * @return
+     * @throws IOException
+     */
+    synchronized private Path getDirectory() throws IOException
+    {
+        if (this.directory == null)
+        {
+            Files.createDirectories(this.config.getDirectory());
+            this.directory = Files.createTempDirectory(this.config.getDirectory(), "flow-spill-");
+        }
+        return this.directory;
+    }
+
+    /**
+     *
+     * @param path
+     */
+    private void delete(Path path)
+    {
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            logger.warn("Spill file {} could not be deleted: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * @param node
+     * @return
+     */
+    private static boolean feedsGenerator(Node node)
+    {
+        for (Node downstream : node.getDownstream())
+        {
+            if (downstream instanceof StreamGenerator)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,37 @@
+package com.noleme.flow.impl.pipeline.runtime.heap.spill;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Serializes heap values to and from spill files.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/17
+ */
+public interface ValueCodec
+{
+    /**
+     *
+     * @param value
+     * @return true if the codec is able to encode the provided value, values that aren't supported remain in memory
+     */
+    boolean supports(Object value);
+
+    /**
+     *
+     * @param value
+     * @param output
+     * @throws IOException
+     */
+    void encode(Object value, OutputStream output) throws IOException;
+
+    /**
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     */
+    Object decode(InputStream input) throws IOException;
+}
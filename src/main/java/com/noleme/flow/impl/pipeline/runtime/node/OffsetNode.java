@@ -8,13 +8,17 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 /**
+ * The uid of an OffsetNode is only built when requested, runtimes address stream nodes by (node, offset) and don't need it on their hot path.
+ *
+ * Runtimes may pool OffsetNode subclasses and move them from an offset to another through setOffset(), which is only legitimate once the node is no longer referenced for its previous offset.
+ *
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
  * Created on 2020/12/12
  */
-public final class OffsetNode extends NodeDecorator
+public class OffsetNode extends NodeDecorator
 {
-    private final String uid;
-    private final long offset;
+    private long offset;
+    private String uid;
     private List<Node> downstream;
     private List<Node> requirements;
 
@@ -27,7 +31,6 @@ public final class OffsetNode extends NodeDecorator
     {
         super(node);
         this.offset = offset;
-        this.uid = node.getUid() + "#" + this.offset;
     }
 
     /**
@@ -36,6 +39,8 @@ public final class OffsetNode extends NodeDecorator
      */
     public String getUid()
     {
+        if (this.uid == null)
+            this.uid = this.getNode().getUid() + "#" + this.offset;
         return this.uid;
     }
 
@@ -50,6 +55,18 @@ public final class OffsetNode extends NodeDecorator
         return this.offset;
     }
 
+    /**
+     *
+     * @param offset
+     */
+    protected void setOffset(long offset)
+    {
+        this.offset = offset;
+        this.uid = null;
+        this.downstream = null;
+        this.requirements = null;
+    }
+
     @Override
     public List<Node> getRequirements()
     {
@@ -0,0 +1,149 @@
+package com.noleme.flow.io.output;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Summary of the memory held by the heap over a run, as estimated by the Sizer of the run's AccountingConfig.
+ *
+ * Footprints are listed by decreasing peak, so that the nodes responsible for the largest share of the heap come first.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/18
+ */
+public final class HeapReport
+{
+    private final long peakBytes;
+    private final long liveBytes;
+    private final long budget;
+    private final long deferredOffsets;
+    private final List<Footprint> nodes;
+    private final List<Footprint> streams;
+
+    /**
+     *
+     * @param peakBytes
+     * @param liveBytes
+     * @param budget
+     * @param deferredOffsets
+     * @param nodes
+     * @param streams
+     */
+    public HeapReport(long peakBytes, long liveBytes, long budget, long deferredOffsets, List<Footprint> nodes, List<Footprint> streams)
+    {
+        this.peakBytes = peakBytes;
+        this.liveBytes = liveBytes;
+        this.budget = budget;
+        this.deferredOffsets = deferredOffsets;
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.streams = Collections.unmodifiableList(streams);
+    }
+
+    /**
+     *
+     * @return the highest number of bytes held by the heap at any point of the run
+     */
+    public long getPeakBytes()
+    {
+        return this.peakBytes;
+    }
+
+    /**
+     *
+     * @return the number of bytes still held by the heap when the report was produced, eg. values without consumers or values left behind by a failure
+     */
+    public long getLiveBytes()
+    {
+        return this.liveBytes;
+    }
+
+    /**
+     *
+     * @return the configured budget in bytes, 0 if none was set
+     */
+    public long getBudget()
+    {
+        return this.budget;
+    }
+
+    /**
+     *
+     * @return the number of times a stream offset was held back because the heap was over budget
+     */
+    public long getDeferredOffsets()
+    {
+        return this.deferredOffsets;
+    }
+
+    /**
+     *
+     * @return per-node footprints, by decreasing peak
+     */
+    public List<Footprint> getNodes()
+    {
+        return this.nodes;
+    }
+
+    /**
+     * Stream footprints aggregate the values of every stream node fed by a given generator, they are identified by the generator node.
+     *
+     * @return per-stream footprints, by decreasing peak
+     */
+    public List<Footprint> getStreams()
+    {
+        return this.streams;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HeapReport{peak=" + this.peakBytes + "B, live=" + this.liveBytes + "B, budget=" + this.budget + "B, deferred=" + this.deferredOffsets
+            + ", nodes=[" + this.nodes.stream().limit(5).map(Footprint::toString).collect(Collectors.joining(", ")) + (this.nodes.size() > 5 ? ", ..." : "") + "]}"
+        ;
+    }
+
+    /**
+     * Peak footprint of a node, or of a stream.
+     */
+    public static final class Footprint
+    {
+        private final String uid;
+        private final String name;
+        private final long peakBytes;
+
+        /**
+         *
+         * @param uid
+         * @param name
+         * @param peakBytes
+         */
+        public Footprint(String uid, String name, long peakBytes)
+        {
+            this.uid = uid;
+            this.name = name;
+            this.peakBytes = peakBytes;
+        }
+
+        public String getUid()
+        {
+            return this.uid;
+        }
+
+        public String getName()
+        {
+            return this.name;
+        }
+
+        public long getPeakBytes()
+        {
+            return this.peakBytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return (this.name != null ? this.name + "#" : "#") + this.uid + "=" + this.peakBytes + "B";
+        }
+    }
+}
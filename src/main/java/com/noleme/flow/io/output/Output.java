@@ -62,6 +62,12 @@ public interface Output
      */
     Instant endTime();
 
+    /**
+     *
+     * @return the heap footprint of the run, null unless heap accounting was enabled
+     */
+    HeapReport heapReport();
+
     default Duration elapsedTime()
     {
         return Duration.between(this.startTime(), this.endTime());
@@ -13,6 +13,7 @@ public class OutputMap implements WriteableOutput
     private final Map<String, Object> values;
     private Instant start;
     private Instant end;
+    private HeapReport heapReport;
 
     public OutputMap()
     {
@@ -81,6 +82,12 @@ public class OutputMap implements WriteableOutput
         return this.end;
     }
 
+    @Override
+    public HeapReport heapReport()
+    {
+        return this.heapReport;
+    }
+
     @Override
     public WriteableOutput set(String identifier, Object value)
     {
@@ -101,4 +108,11 @@ public class OutputMap implements WriteableOutput
         this.end = end;
         return this;
     }
+
+    @Override
+    public WriteableOutput setHeapReport(HeapReport report)
+    {
+        this.heapReport = report;
+        return this;
+    }
 }
@@ -28,4 +28,11 @@ public interface WriteableOutput extends Output
      * @return
      */
     WriteableOutput setEndTime(Instant end);
+
+    /**
+     *
+     * @param report
+     * @return
+     */
+    WriteableOutput setHeapReport(HeapReport report);
 }
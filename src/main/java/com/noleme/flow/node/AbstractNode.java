@@ -90,6 +90,6 @@ public abstract class AbstractNode implements Node
     @Override
     public int hashCode()
     {
-        return Objects.hash(this.uid);
+        return this.uid.hashCode();
     }
 }
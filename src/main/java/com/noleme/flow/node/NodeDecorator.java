@@ -4,7 +4,6 @@ import com.noleme.flow.compiler.NotImplementedException;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.Objects;
 
 /**
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
@@ -84,7 +83,7 @@ public abstract class NodeDecorator implements Node
     @Override
     public int hashCode()
     {
-        return Objects.hash(this.getUid());
+        return this.getUid().hashCode();
     }
 
     @Override
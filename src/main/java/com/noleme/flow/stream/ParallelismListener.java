@@ -0,0 +1,21 @@
+package com.noleme.flow.stream;
+
+import java.time.Instant;
+
+/**
+ * A listener notified each time the adaptive parallelism limit of a StreamGenerator changes during a run.
+ *
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/05
+ */
+@FunctionalInterface
+public interface ParallelismListener
+{
+    /**
+     *
+     * @param generator the generator which limit changed
+     * @param time the time at which the change occurred
+     * @param limit the new parallelism limit
+     */
+    void onChange(StreamGenerator<?, ?> generator, Instant time, int limit);
+}
@@ -3,7 +3,10 @@ package com.noleme.flow.stream;
 import com.noleme.flow.FlowIn;
 import com.noleme.flow.FlowOut;
 import com.noleme.flow.actor.accumulator.Accumulator;
+import com.noleme.flow.actor.generator.BulkGenerator;
 import com.noleme.flow.actor.generator.Generator;
+import com.noleme.flow.actor.generator.PagedGenerator;
+import com.noleme.flow.actor.generator.PrefetchingGenerator;
 import com.noleme.flow.actor.loader.Loader;
 import com.noleme.flow.actor.transformer.BiTransformer;
 import com.noleme.flow.actor.transformer.Transformer;
@@ -20,6 +23,11 @@ import java.util.function.Predicate;
 public class StreamGenerator<I, O> extends SimpleNode<Function<I, Generator<O>>> implements FlowIn<I>, StreamOut<O>
 {
     private int maxParallelism = 1;
+    private int minParallelism = 1;
+    private boolean adaptiveParallelism = false;
+    private ParallelismListener parallelismListener;
+    private int prefetch = 0;
+    private int batchSize = 1;
 
     /**
      * @param generatorSupplier
@@ -36,7 +44,14 @@ public class StreamGenerator<I, O> extends SimpleNode<Function<I, Generator<O>>>
      */
     public Generator<O> produceGenerator(I input)
     {
-        return this.getActor().apply(input);
+        Generator<O> generator = this.getActor().apply(input);
+
+        if (this.prefetch > 0)
+            return new PrefetchingGenerator<>(generator, this.prefetch, "flow-prefetch-" + (this.name != null ? this.name : this.getUid()));
+        /* Paged sources may only find out about the end of the stream by fetching an empty page */
+        if (this.batchSize > 1 && generator instanceof BulkGenerator)
+            return new PagedGenerator<>((BulkGenerator<O>) generator);
+        return generator;
     }
 
     @Override
@@ -97,7 +112,23 @@ public class StreamGenerator<I, O> extends SimpleNode<Function<I, Generator<O>>>
         return this.maxParallelism;
     }
 
+    public int getMinParallelism()
+    {
+        return this.minParallelism;
+    }
+
+    public boolean isAdaptiveParallelism()
+    {
+        return this.adaptiveParallelism;
+    }
+
+    public ParallelismListener getParallelismListener()
+    {
+        return this.parallelismListener;
+    }
+
     /**
+     * Sets a static parallelism factor, this disables adaptive parallelism if it was previously enabled.
      *
      * @param factor
      * @return
@@ -108,6 +139,85 @@ public class StreamGenerator<I, O> extends SimpleNode<Function<I, Generator<O>>>
             throw new RuntimeException("StreamGenerator maximum parallelism factor is expected to be larger or equal to 1");
 
         this.maxParallelism = factor;
+        this.minParallelism = 1;
+        this.adaptiveParallelism = false;
+        return this;
+    }
+
+    /**
+     * Enables adaptive parallelism: the number of offsets processed concurrently is adjusted during the run depending on their measured latency, within the provided bounds.
+     * The limit starts at the lower bound, grows as long as latency remains stable and shrinks when it degrades.
+     *
+     * @param min the lower bound for the parallelism limit
+     * @param max the upper bound for the parallelism limit
+     * @return
+     */
+    public StreamGenerator<I, O> setAdaptiveParallelism(int min, int max)
+    {
+        return this.setAdaptiveParallelism(min, max, null);
+    }
+
+    /**
+     *
+     * @param min the lower bound for the parallelism limit
+     * @param max the upper bound for the parallelism limit
+     * @param listener a listener notified upon each change of the parallelism limit
+     * @return
+     */
+    public StreamGenerator<I, O> setAdaptiveParallelism(int min, int max, ParallelismListener listener)
+    {
+        if (min < 1 || max < min)
+            throw new RuntimeException("StreamGenerator adaptive parallelism bounds are expected to satisfy 1 <= min <= max");
+
+        this.minParallelism = min;
+        this.maxParallelism = max;
+        this.adaptiveParallelism = true;
+        this.parallelismListener = listener;
+        return this;
+    }
+
+    public int getPrefetch()
+    {
+        return this.prefetch;
+    }
+
+    /**
+     * Enables prefetching for this generator: up to {@code size} upcoming items are generated ahead of time by a background thread.
+     * This is meant for generators with a high latency per item (eg. paginated APIs, compressed files), a size of 0 disables prefetching.
+     *
+     * @param size
+     * @return
+     */
+    public StreamGenerator<I, O> setPrefetch(int size)
+    {
+        if (size < 0)
+            throw new RuntimeException("StreamGenerator prefetch size is expected to be larger or equal to 0");
+
+        this.prefetch = size;
+        return this;
+    }
+
+    public int getBatchSize()
+    {
+        return this.batchSize;
+    }
+
+    /**
+     * Enables micro-batching for this stream: up to {@code size} generated items are grouped under a single offset, each stream node then runs over the whole chunk at once.
+     * This is meant for streams of many cheap items, where the per-offset scheduling overhead outweighs the work done on each item ; actors still receive items one at a time.
+     * An interruption only drops the item it was requested for, the offset is only interrupted once every item of its chunk was dropped.
+     * If the generator is a BulkGenerator, each chunk is produced by a single call to its generateBatch method.
+     * A size of 1 disables micro-batching.
+     *
+     * @param size
+     * @return
+     */
+    public StreamGenerator<I, O> setBatchSize(int size)
+    {
+        if (size < 1)
+            throw new RuntimeException("StreamGenerator batch size is expected to be larger or equal to 1");
+
+        this.batchSize = size;
         return this;
     }
 
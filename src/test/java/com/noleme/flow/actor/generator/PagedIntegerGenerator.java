@@ -0,0 +1,53 @@
+package com.noleme.flow.actor.generator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+public class PagedIntegerGenerator extends IntegerGenerator implements BulkGenerator<Integer>
+{
+    private final boolean optimistic;
+    private int pageCount = 0;
+
+    public PagedIntegerGenerator(int start, int max)
+    {
+        this(start, max, false);
+    }
+
+    /**
+     *
+     * @param start
+     * @param max
+     * @param optimistic if true, hasNext always returns true and the end of the stream is signaled by an empty page
+     */
+    public PagedIntegerGenerator(int start, int max, boolean optimistic)
+    {
+        super(start, max);
+        this.optimistic = optimistic;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return this.optimistic || super.hasNext();
+    }
+
+    @Override
+    public List<Integer> generateBatch(int max)
+    {
+        this.pageCount++;
+
+        List<Integer> page = new ArrayList<>(max);
+        while (page.size() < max && super.hasNext())
+            page.add(this.generate());
+        return page;
+    }
+
+    public int getPageCount()
+    {
+        return this.pageCount;
+    }
+}
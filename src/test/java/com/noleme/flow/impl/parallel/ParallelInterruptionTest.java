@@ -59,4 +59,24 @@ public class ParallelInterruptionTest
         var output = Flow.runAsParallel(flow);
         Assertions.assertNull(output.get(flow));
     }
+
+    @Test
+    void testInterruptDiamond() throws RunException, CompilationException
+    {
+        var interrupted = FlowDealer.sourceReturns8().interrupt();
+        var branchA = interrupted.into(i -> i * 2);
+        var branchB = interrupted.into(i -> i * 3);
+
+        var flow = branchA
+            .join(branchB, Integer::sum)
+            .collect()
+        ;
+        var other = FlowDealer.sourceReturns9()
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(flow, other);
+        Assertions.assertNull(output.get(flow));
+        Assertions.assertEquals(9, output.get(other));
+    }
 }
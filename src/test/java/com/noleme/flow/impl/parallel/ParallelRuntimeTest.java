@@ -3,13 +3,50 @@ package com.noleme.flow.impl.parallel;
 import com.noleme.flow.Flow;
 import com.noleme.flow.FlowAssertion;
 import com.noleme.flow.FlowDealer;
+import com.noleme.flow.FlowOut;
 import com.noleme.flow.FlowState;
+import com.noleme.flow.actor.generator.IntegerGenerator;
+import com.noleme.flow.actor.loader.AsyncLoader;
+import com.noleme.flow.actor.transformer.AsyncTransformer;
+import com.noleme.flow.actor.transformer.Transformer;
 import com.noleme.flow.compiler.CompilationException;
 import com.noleme.flow.compiler.RunException;
 import com.noleme.flow.impl.parallel.runtime.executor.Executors;
+import com.noleme.flow.impl.parallel.runtime.scheduler.CostModel;
+import com.noleme.flow.impl.pipeline.runtime.heap.accounting.AccountingConfig;
+import com.noleme.flow.impl.pipeline.runtime.heap.spill.SerializableCodec;
+import com.noleme.flow.impl.pipeline.runtime.heap.spill.SpillConfig;
+import com.noleme.flow.impl.pipeline.stream.IterableGenerator;
 import com.noleme.flow.io.input.Input;
+import com.noleme.flow.io.output.Output;
+import com.noleme.flow.node.Node;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
@@ -61,6 +98,49 @@ public class ParallelRuntimeTest
         Assertions.assertTrue(pipeAssertion.isActivated());
     }
 
+    @Test
+    void test_workStealingExecutorArg() throws RunException, CompilationException
+    {
+        var pipeAssertion = new FlowAssertion();
+        var flow = FlowDealer.joinSub(
+            FlowDealer.sourceReturns8(),
+            FlowDealer.sourceReturns9()
+        ).into((value) -> {
+            Assertions.assertEquals(-1, value);
+            pipeAssertion.activate();
+        });
+
+        Flow.runAsParallel(() -> Executors.newWorkStealingPool(2), Input.emptyInput, flow);
+        Assertions.assertTrue(pipeAssertion.isActivated());
+    }
+
+    @Test
+    void test_threadPerTaskExecutorArg() throws RunException, CompilationException
+    {
+        var pipeAssertion = new FlowAssertion();
+        var flow = FlowDealer.joinSub(
+            FlowDealer.sourceReturns8(),
+            FlowDealer.sourceReturns9()
+        ).into((value) -> {
+            Assertions.assertEquals(-1, value);
+            pipeAssertion.activate();
+        });
+        var executor = new ThreadPerTaskExecutor();
+        var runtime = new ParallelCompiler(() -> executor, false).compile(flow);
+
+        /* Tasks aren't recycled through thread-local pools here, every task is run on a thread of its own */
+        try {
+            for (int i = 0 ; i < 10 ; ++i)
+                runtime.run();
+        }
+        finally {
+            runtime.shutdownThreadPool();
+        }
+
+        Assertions.assertTrue(pipeAssertion.isActivated());
+        Assertions.assertTrue(executor.started.get() >= 10);
+    }
+
     @Test
     void testSimpleArithmetic1() throws RunException, CompilationException
     {
@@ -212,4 +292,564 @@ public class ParallelRuntimeTest
         Assertions.assertEquals(5, stateB.getValue());
         Assertions.assertEquals(10, stateC.getValue());
     }
+
+    @Test
+    void test_failingNode() throws CompilationException
+    {
+        var pipeAssertion = new FlowAssertion();
+
+        var flow = FlowDealer.sourceReturns8()
+            .into((Transformer<Integer, Integer>) i -> {
+                throw new IllegalStateException("Failing node");
+            })
+            .sink(i -> pipeAssertion.activate())
+        ;
+        var other = FlowDealer.sourceReturns9()
+            .into(i -> i * 2)
+        ;
+
+        Assertions.assertThrows(ParallelRunException.class, () -> Flow.runAsParallel(4, flow, other));
+        Assertions.assertFalse(pipeAssertion.isActivated());
+    }
+
+    @Test
+    void test_failureDrain()
+    {
+        var started = new CountDownLatch(1);
+        var finished = new AtomicBoolean(false);
+
+        var slow = Flow.from(() -> 1)
+            .pipe(i -> {
+                started.countDown();
+                Thread.sleep(200);
+                finished.set(true);
+                return i;
+            })
+            .collect()
+        ;
+        var failing = Flow.from(() -> 2)
+            .pipe(i -> {
+                started.await();
+                throw new IllegalStateException("Failing node");
+            })
+            .collect()
+        ;
+
+        Assertions.assertThrows(ParallelRunException.class, () -> Flow.runAsParallel(2, slow, failing));
+        /* The run is only expected to return once the worker still running the other branch is done with the heap */
+        Assertions.assertTrue(finished.get());
+    }
+
+    @Test
+    void test_interruptionDrain() throws CompilationException, InterruptedException
+    {
+        var started = new CountDownLatch(1);
+        var finished = new AtomicBoolean(false);
+        var failure = new AtomicReference<Throwable>();
+
+        var slow = Flow.from(() -> 1)
+            .pipe(i -> {
+                started.countDown();
+                long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+                /* The worker ignores interruptions, as a node busy with a computation would */
+                while (System.nanoTime() < end)
+                    Thread.onSpinWait();
+                finished.set(true);
+                return i;
+            })
+            .collect()
+        ;
+
+        var runtime = new ParallelCompiler(2, true).compile(slow);
+        var caller = new Thread(() -> {
+            try {
+                runtime.run();
+            }
+            catch (RunException e) {
+                failure.set(e);
+            }
+        });
+
+        caller.start();
+        started.await();
+        caller.interrupt();
+        caller.join(10_000);
+
+        Assertions.assertTrue(failure.get() instanceof ParallelRunException);
+        /* The run is only expected to return once the worker is done with the heap */
+        Assertions.assertTrue(finished.get());
+    }
+
+    @Test
+    void test_rejectedSubmission() throws CompilationException
+    {
+        /* Branches are dispatched by the worker running the source, so rejections occur on a worker thread */
+        var source = Flow.from(() -> 1);
+        List<Node> branches = new ArrayList<>();
+        for (int i = 0 ; i < 8 ; ++i)
+        {
+            branches.add(source.pipe(value -> {
+                Thread.sleep(50);
+                return value;
+            }).collect());
+        }
+
+        /* A single thread without any queue rejects every task submitted while it is busy */
+        var runtime = new ParallelCompiler(() -> new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>()), true)
+            .compile(branches)
+        ;
+
+        var exception = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> Assertions.assertThrows(ParallelRunException.class, runtime::run));
+        Assertions.assertTrue(exception.getCause() instanceof RejectedExecutionException);
+    }
+
+    @Test
+    void test_priorityScheduling() throws RunException, CompilationException
+    {
+        List<String> executed = new CopyOnWriteArrayList<>();
+
+        var shortBranch = Flow.from(() -> executed.add("short")).sink(b -> {});
+        var longBranch = Flow.from(() -> executed.add("long"))
+            .into(b -> b)
+            .into(b -> b)
+            .sink(b -> {})
+        ;
+
+        /* With a single worker, the head of the longest branch is expected to run first regardless of declaration order */
+        new ParallelCompiler(1, true)
+            .setCostModel(new CostModel())
+            .compile(shortBranch, longBranch)
+            .run()
+        ;
+
+        Assertions.assertEquals(List.of("long", "short"), executed);
+    }
+
+    @Test
+    void test_prioritySchedulingHints() throws RunException, CompilationException
+    {
+        List<String> executed = new CopyOnWriteArrayList<>();
+
+        var light = Flow.from(() -> executed.add("light")).name("light").sink(b -> {});
+        var heavy = Flow.from(() -> executed.add("heavy")).name("heavy").sink(b -> {});
+
+        var costs = new CostModel()
+            .hint("light", 1_000)
+            .hint("heavy", 1_000_000)
+        ;
+
+        var runtime = new ParallelCompiler(1, true)
+            .setCostModel(costs)
+            .compile(light, heavy)
+        ;
+        runtime.run();
+
+        Assertions.assertEquals(List.of("heavy", "light"), executed);
+        Assertions.assertTrue(costs.export().containsKey("heavy"));
+    }
+
+    @Test
+    void test_concurrentRuns() throws CompilationException, InterruptedException, ExecutionException
+    {
+        var flow = Flow
+            .<List<Integer>>from("my_input")
+            .stream(IterableGenerator::new).setMaxParallelism(4)
+            .pipe(i -> i * 2)
+            .accumulate(vals -> vals.stream().reduce(0, Integer::sum))
+            .collect()
+        ;
+
+        var runtime = new ParallelCompiler(4, true).compile(flow);
+        var callers = java.util.concurrent.Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int r = 0 ; r < 64 ; ++r)
+            {
+                List<Integer> values = new ArrayList<>();
+                for (int i = 0 ; i <= r ; ++i)
+                    values.add(i);
+
+                results.add(callers.submit(() -> runtime.run(Input.of("my_input", values)).get(flow)));
+            }
+
+            for (int r = 0 ; r < results.size() ; ++r)
+                Assertions.assertEquals(r * (r + 1), results.get(r).get());
+        }
+        finally {
+            callers.shutdown();
+        }
+    }
+
+    @Test
+    void test_concurrentRunsFairness() throws CompilationException, InterruptedException, ExecutionException
+    {
+        var longStarted = new CountDownLatch(1);
+        var shortSubmitted = new CountDownLatch(1);
+        var records = new CopyOnWriteArrayList<String>();
+
+        /* The short run is interrupted after the first node, whereas the long run goes through a chain of 100 nodes */
+        FlowOut<String> chain = Flow
+            .<String>from("run")
+            .into(run -> {
+                /* The long run holds the only worker until the short run has been submitted to the pool */
+                if (run.equals("long"))
+                {
+                    longStarted.countDown();
+                    shortSubmitted.await(10, TimeUnit.SECONDS);
+                }
+                records.add(run);
+                return run;
+            })
+            .interruptIf(run -> run.equals("short"))
+        ;
+        for (int i = 1 ; i < 100 ; ++i)
+        {
+            chain = chain.into(run -> {
+                records.add(run);
+                return run;
+            });
+        }
+
+        /* With a single worker, the short run can only go through before the end of the long run if the worker yields between runs */
+        var runtime = new ParallelCompiler(() -> new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()) {
+            @Override
+            public void execute(Runnable command)
+            {
+                super.execute(command);
+                if (Thread.currentThread().getName().equals("short-caller"))
+                    shortSubmitted.countDown();
+            }
+        }, true).compile(chain.sink(run -> {}));
+        var longCaller = java.util.concurrent.Executors.newSingleThreadExecutor(r -> new Thread(r, "long-caller"));
+        var shortCaller = java.util.concurrent.Executors.newSingleThreadExecutor(r -> new Thread(r, "short-caller"));
+
+        try {
+            Future<Output> longRun = longCaller.submit(() -> runtime.run(Input.of("run", "long")));
+            longStarted.await();
+            Future<Output> shortRun = shortCaller.submit(() -> runtime.run(Input.of("run", "short")));
+
+            shortRun.get();
+            longRun.get();
+
+            Assertions.assertEquals(101, records.size());
+            Assertions.assertTrue(records.indexOf("short") < records.lastIndexOf("long"));
+        }
+        finally {
+            longCaller.shutdown();
+            shortCaller.shutdown();
+        }
+    }
+
+    @Test
+    void test_spillingHeap(@TempDir Path directory) throws RunException, CompilationException, IOException
+    {
+        var source = Flow.from(() -> {
+            int[] values = new int[1_000_000];
+            for (int i = 0 ; i < values.length ; ++i)
+                values[i] = i;
+            return values;
+        });
+        var sumA = source.pipe(values -> Arrays.stream(values).asLongStream().sum()).collect();
+        var sumB = source.pipe(values -> Arrays.stream(values).asLongStream().sum()).collect();
+        var sumC = source.pipe(values -> Arrays.stream(values).asLongStream().sum()).collect();
+
+        var codec = new CountingCodec();
+        var runtime = new ParallelCompiler(4, true)
+            .setSpillConfig(new SpillConfig(1024).setDirectory(directory).setCodec(codec))
+            .compile(sumA, sumB, sumC)
+        ;
+
+        var output = runtime.run();
+
+        Assertions.assertEquals(499_999_500_000L, output.get(sumA));
+        Assertions.assertEquals(499_999_500_000L, output.get(sumB));
+        Assertions.assertEquals(499_999_500_000L, output.get(sumC));
+        Assertions.assertEquals(1, codec.encoded.get());
+        try (var files = Files.list(directory)) {
+            Assertions.assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void test_heapBudget() throws RunException, CompilationException
+    {
+        List<int[]> items = new ArrayList<>();
+        for (int i = 0 ; i < 20 ; ++i)
+            items.add(new int[1000]);
+
+        /* Results are held on the heap until the end of the stream, so the budget is exceeded as soon as the first one is produced */
+        var count = Flow.from(() -> items)
+            .stream(IterableGenerator::new).setMaxParallelism(4).name("arrays")
+            .pipe(values -> {
+                Thread.sleep(20);
+                return values.clone();
+            }).name("copy")
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var runtime = new ParallelCompiler(4, true)
+            .setAccountingConfig(new AccountingConfig()
+                .setSizer(value -> value instanceof int[] ? ((int[]) value).length * 4L : 0)
+                .setBudget(1000)
+            )
+            .compile(count)
+        ;
+
+        var output = runtime.run();
+        var report = output.heapReport();
+
+        Assertions.assertEquals(20, output.get(count));
+        Assertions.assertNotNull(report);
+        Assertions.assertTrue(report.getDeferredOffsets() > 0);
+        Assertions.assertEquals("copy", report.getNodes().get(0).getName());
+        Assertions.assertEquals(80_000, report.getNodes().get(0).getPeakBytes());
+        Assertions.assertEquals("arrays", report.getStreams().get(0).getName());
+        Assertions.assertTrue(report.getStreams().get(0).getPeakBytes() >= 80_000);
+        Assertions.assertEquals(0, report.getLiveBytes());
+    }
+
+    @Test
+    void test_heapReleaseAfterStream() throws RunException, CompilationException
+    {
+        var side = Flow.from(() -> new int[1000]).name("side");
+        var length = side.pipe(values -> values.length).collect();
+        var count = Flow
+            .stream(() -> new IntegerGenerator(0, 50_000)).setMaxParallelism(8)
+            .join(side, (i, values) -> i + values.length)
+            .join(side, (i, values) -> i - values.length)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+        /* An empty stream never runs its join, the side input still has to be released once the stream is over */
+        var empty = Flow
+            .stream(() -> new IntegerGenerator(0, 0))
+            .join(side, (i, values) -> i + values.length)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var runtime = new ParallelCompiler(4, true)
+            .setAccountingConfig(new AccountingConfig().setSizer(value -> value instanceof int[] ? ((int[]) value).length * 4L : 0))
+            .compile(length, count, empty)
+        ;
+
+        var output = runtime.run();
+        var report = output.heapReport();
+
+        Assertions.assertEquals(1000, output.get(length));
+        Assertions.assertEquals(50_000, output.get(count));
+        Assertions.assertEquals(0, output.get(empty));
+        Assertions.assertEquals(4_000, report.getPeakBytes());
+        Assertions.assertEquals(0, report.getLiveBytes());
+    }
+
+    @Test
+    void test_heapReleaseOfBlockedOffsets() throws RunException, CompilationException
+    {
+        /* The join is blocked by its side input, so the arrays it was expected to consume have to be released at each offset */
+        var side = Flow.from(() -> 0).interruptIf(i -> true);
+        var arrays = Flow
+            .stream(() -> new IntegerGenerator(0, 1000)).setMaxParallelism(4)
+            .pipe(i -> new int[10]).name("arrays")
+        ;
+        arrays.join(side, (values, i) -> values.length);
+        /* Copies don't have any consumer, so they shouldn't be kept at all */
+        arrays.pipe(int[]::clone).name("copies");
+        var count = arrays
+            .pipe(values -> values.length)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var runtime = new ParallelCompiler(4, true)
+            .setAccountingConfig(new AccountingConfig().setSizer(value -> value instanceof int[] ? ((int[]) value).length * 4L : 0))
+            .compile(count)
+        ;
+
+        var output = runtime.run();
+
+        Assertions.assertEquals(1000, output.get(count));
+        Assertions.assertEquals(0, output.heapReport().getLiveBytes());
+    }
+
+    @Test
+    void test_hotMode() throws RunException, CompilationException
+    {
+        var source = Flow.<Integer>from("value");
+        var sum = source
+            .stream(value -> new IntegerGenerator(0, value)).setMaxParallelism(2)
+            .accumulate(values -> values.stream().mapToInt(Integer::intValue).sum())
+            .collect()
+        ;
+        var checked = source
+            .pipe(value -> {
+                if (value == 13)
+                    throw new IllegalStateException("Unlucky value");
+                return value * 2;
+            })
+            .collect()
+        ;
+
+        var runtime = new ParallelCompiler(2, true).setHotMode(true).compile(sum, checked);
+
+        try {
+            ParallelRunException failure = null;
+            Output failedOutput = null;
+
+            /* Failed runs are interleaved with successful ones, so that recycled heaps and states are checked for leftovers */
+            for (int value = 0 ; value < 50 ; ++value)
+            {
+                if (value == 13)
+                {
+                    failure = Assertions.assertThrows(ParallelRunException.class, () -> runtime.run(Input.of("value", 13)));
+                    failedOutput = failure.getHeap().getOutput();
+                    continue;
+                }
+
+                var output = runtime.run(Input.of("value", value));
+
+                Assertions.assertEquals(value * (value - 1) / 2, (int) output.get(sum));
+                Assertions.assertEquals(value * 2, (int) output.get(checked));
+            }
+
+            /* The heap of a failed run is exposed by its exception, so it mustn't be recycled by later runs */
+            Assertions.assertSame(failedOutput, failure.getHeap().getOutput());
+        }
+        finally {
+            runtime.shutdownThreadPool();
+        }
+    }
+
+    @Test
+    void test_pipeFusion() throws RunException, CompilationException
+    {
+        var source = Flow.<Integer>from("value");
+        var tapped = source
+            .pipe(value -> value + 1)
+            .pipe(value -> value * 2)
+            .pipe(value -> value - 1)
+        ;
+        var tap = tapped.collect();
+        var result = tapped
+            .pipe(value -> value * 10)
+            .interruptIf(value -> value > 100)
+            .pipe(value -> value + 5)
+            .collect()
+        ;
+        var sum = source
+            .stream(value -> new IntegerGenerator(0, value))
+            .pipe(i -> i + 1)
+            .pipe(i -> i * 2)
+            .accumulate(values -> values.stream().mapToInt(Integer::intValue).sum())
+            .collect()
+        ;
+
+        var runtime = new ParallelCompiler(2, false).setFusion(true).compile(tap, result, sum);
+
+        try {
+            for (int value = 0 ; value < 10 ; ++value)
+            {
+                var output = runtime.run(Input.of("value", value));
+
+                Assertions.assertEquals(value * 2 + 1, (int) output.get(tap));
+                Assertions.assertEquals(value * (value + 1), (int) output.get(sum));
+                if (value < 5)
+                    Assertions.assertEquals((value * 2 + 1) * 10 + 5, (int) output.get(result));
+                else
+                    Assertions.assertFalse(output.has(result));
+            }
+        }
+        finally {
+            runtime.shutdownThreadPool();
+        }
+    }
+
+    @Test
+    void test_asyncNodes() throws RunException, CompilationException
+    {
+        List<Integer> loaded = new CopyOnWriteArrayList<>();
+        AsyncTransformer<Integer, Integer> call = value -> CompletableFuture.supplyAsync(() -> value * 2, CompletableFuture.delayedExecutor(1, TimeUnit.MILLISECONDS));
+        AsyncLoader<Integer> load = value -> CompletableFuture.runAsync(() -> loaded.add(value));
+
+        var flow = Flow.<Integer>from("value").pipe(call);
+        flow.sink(load);
+        var result = flow
+            .pipe(value -> value + 1)
+            .pipe(call)
+            .collect()
+        ;
+
+        var runtime = new ParallelCompiler(2, false).compile(result, flow);
+
+        try {
+            for (int value = 0 ; value < 10 ; ++value)
+                Assertions.assertEquals((value * 2 + 1) * 2, (int) runtime.run(Input.of("value", value)).get(result));
+        }
+        finally {
+            runtime.shutdownThreadPool();
+        }
+
+        Assertions.assertEquals(10, loaded.size());
+    }
+
+    private static class ThreadPerTaskExecutor extends AbstractExecutorService
+    {
+        private final AtomicInteger started = new AtomicInteger();
+        private volatile boolean shutdown = false;
+
+        @Override
+        public void execute(Runnable command)
+        {
+            if (this.shutdown)
+                throw new RejectedExecutionException();
+
+            this.started.incrementAndGet();
+            new Thread(command).start();
+        }
+
+        @Override
+        public void shutdown()
+        {
+            this.shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            this.shutdown = true;
+            return new ArrayList<>();
+        }
+
+        @Override
+        public boolean isShutdown()
+        {
+            return this.shutdown;
+        }
+
+        @Override
+        public boolean isTerminated()
+        {
+            return this.shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+        {
+            return this.shutdown;
+        }
+    }
+
+    private static class CountingCodec extends SerializableCodec
+    {
+        private final AtomicInteger encoded = new AtomicInteger();
+
+        @Override
+        public void encode(Object value, OutputStream output) throws IOException
+        {
+            this.encoded.incrementAndGet();
+            super.encode(value, output);
+        }
+    }
 }
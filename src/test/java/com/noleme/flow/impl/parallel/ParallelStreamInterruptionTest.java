@@ -71,4 +71,26 @@ public class ParallelStreamInterruptionTest
 
         Assertions.assertEquals(3, output.get(flow));
     }
+
+    @Test
+    void testStreamJoinInterruptedInput() throws RunException, CompilationException
+    {
+        var assertion = new FlowAssertion();
+
+        var input = Flow.from(() -> 3).interrupt();
+
+        var flow = Flow
+            .from(() -> List.of(1, 2, 3, 4, 5))
+            .stream(IterableGenerator::new)
+            .join(input, (i, j) -> i * j)
+            .driftSink(i -> assertion.activate())
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(flow);
+
+        Assertions.assertFalse(assertion.isActivated());
+        Assertions.assertEquals(0, output.get(flow));
+    }
 }
@@ -3,18 +3,39 @@ package com.noleme.flow.impl.parallel;
 import com.noleme.flow.Flow;
 import com.noleme.flow.FlowAssertion;
 import com.noleme.flow.actor.accumulator.AccumulationException;
+import com.noleme.flow.actor.accumulator.CombiningAccumulator;
+import com.noleme.flow.actor.accumulator.FoldingAccumulator;
+import com.noleme.flow.actor.generator.AsyncGenerator;
 import com.noleme.flow.actor.generator.IntegerGenerator;
 import com.noleme.flow.actor.generator.LongGenerator;
+import com.noleme.flow.actor.generator.PagedIntegerGenerator;
+import com.noleme.flow.actor.loader.AsyncLoader;
+import com.noleme.flow.actor.transformer.AsyncTransformer;
 import com.noleme.flow.compiler.CompilationException;
 import com.noleme.flow.compiler.RunException;
+import com.noleme.flow.impl.parallel.runtime.executor.Executors;
 import com.noleme.flow.impl.pipeline.stream.IterableGenerator;
+import com.noleme.flow.interruption.InterruptionException;
+import com.noleme.flow.io.input.Input;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
@@ -362,4 +383,493 @@ public class ParallelStreamTest
 
         Assertions.assertEquals(27, output.get(flow));
     }
+
+    @Test
+    void testStreamHighParallelism() throws RunException, CompilationException
+    {
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, 20_000, i -> i + 1)).setMaxParallelism(64)
+            .into(i -> i + 1)
+            .interruptIf(i -> i % 3 == 0)
+            .into(i -> i * 2)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(16, flow);
+
+        Assertions.assertEquals(13_334, output.get(flow));
+    }
+
+    @Test
+    void testStreamOffsetRecycling() throws RunException, CompilationException
+    {
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, 50_000)).setMaxParallelism(4)
+            .into(i -> i * 2)
+            .interruptIf(i -> i % 10 == 0)
+            .into(i -> i + 1)
+            .accumulate(values -> values.stream().distinct().mapToLong(Integer::longValue).sum())
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(4, flow);
+
+        /* Every item has to go through its own offset, a recycled offset state mixing up items would show up as duplicates or missing values */
+        long expected = 0;
+        for (int i = 0 ; i < 50_000 ; ++i)
+        {
+            if ((i * 2) % 10 != 0)
+                expected += i * 2 + 1;
+        }
+
+        Assertions.assertEquals(expected, (long) output.get(flow));
+    }
+
+    @Test
+    void testSlowGeneratorCreation() throws RunException, CompilationException
+    {
+        var latch = new CountDownLatch(1);
+
+        /* The first generator can only be created once the second stream has started flowing */
+        var flowA = Flow
+            .stream(() -> {
+                try {
+                    Assertions.assertTrue(latch.await(5, TimeUnit.SECONDS));
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return new IterableGenerator<>(List.of(1, 2, 3));
+            })
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var flowB = Flow
+            .stream(() -> new IterableGenerator<>(List.of(4, 5)))
+            .pipe(i -> {
+                latch.countDown();
+                return i;
+            })
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(4, flowA, flowB);
+
+        Assertions.assertEquals(3, output.get(flowA));
+        Assertions.assertEquals(2, output.get(flowB));
+    }
+
+    @Test
+    void testStreamPrefetch() throws RunException, CompilationException
+    {
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, 1000)).setPrefetch(16).setMaxParallelism(4)
+            .into(i -> i * 2)
+            .accumulate(ls -> ls.stream().reduce(Integer::sum).orElse(0))
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(4, flow);
+
+        Assertions.assertEquals(999_000, output.get(flow));
+    }
+
+    @Test
+    void testStreamPrefetchClosedOnFailure() throws InterruptedException
+    {
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, Integer.MAX_VALUE)).setPrefetch(4).name("parallel-prefetch-failure")
+            .into(i -> {
+                if (i == 10)
+                    throw new IllegalStateException("Failing pipe");
+                return i;
+            })
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        Assertions.assertThrows(ParallelRunException.class, () -> Flow.runAsParallel(4, flow));
+
+        /* The prefetching thread of the abandoned stream is expected to stop along with the run */
+        Thread prefetcher = Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> thread.getName().equals("flow-prefetch-parallel-prefetch-failure"))
+            .findFirst()
+            .orElse(null)
+        ;
+        if (prefetcher != null)
+            prefetcher.join(5000);
+
+        Assertions.assertTrue(prefetcher == null || !prefetcher.isAlive());
+    }
+
+    @Test
+    void testStreamPrefetchFailure() throws CompilationException
+    {
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, 1000, i -> {
+                if (i == 50)
+                    throw new IllegalStateException("Failing generator");
+                return i + 1;
+            })).setPrefetch(16).setMaxParallelism(4)
+            .into(i -> i * 2)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        Assertions.assertThrows(ParallelRunException.class, () -> Flow.runAsParallel(4, flow));
+    }
+
+    @Test
+    void testStreamAdaptiveParallelism() throws RunException, CompilationException
+    {
+        var running = new AtomicInteger(0);
+        var maxRunning = new AtomicInteger(0);
+        List<Integer> limits = new CopyOnWriteArrayList<>();
+
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, 300)).setAdaptiveParallelism(2, 6, (generator, time, limit) -> limits.add(limit))
+            .into(i -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(1);
+                running.decrementAndGet();
+                return i;
+            })
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(8, flow);
+
+        Assertions.assertEquals(300, output.get(flow));
+        Assertions.assertTrue(maxRunning.get() <= 6);
+        Assertions.assertFalse(limits.isEmpty());
+        Assertions.assertTrue(limits.stream().allMatch(l -> l >= 2 && l <= 6));
+    }
+
+    @Test
+    void testStreamWorkStealingExecutor() throws RunException, CompilationException
+    {
+        var running = new AtomicInteger(0);
+        var maxRunning = new AtomicInteger(0);
+
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(1, 100_000, i -> i + 1)).setMaxParallelism(3)
+            .into(i -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                running.decrementAndGet();
+                return i;
+            })
+            .interruptIf(i -> i % 2 == 0)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(() -> Executors.newWorkStealingPool(8), Input.emptyInput, flow);
+
+        Assertions.assertEquals(50_000, output.get(flow));
+        Assertions.assertTrue(maxRunning.get() <= 3);
+    }
+
+    @Test
+    void testStreamVirtualThreadExecutor() throws RunException, CompilationException
+    {
+        var running = new AtomicInteger(0);
+        var maxRunning = new AtomicInteger(0);
+
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(1, 40, i -> i + 1)).setMaxParallelism(4)
+            .into(i -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(5);
+                running.decrementAndGet();
+                return i;
+            })
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(Executors::newVirtualThreadPerTaskExecutor, Input.emptyInput, flow);
+
+        Assertions.assertEquals(39, output.get(flow));
+        Assertions.assertTrue(maxRunning.get() <= 4);
+    }
+
+    @Test
+    void testStreamFoldingAccumulator() throws RunException, CompilationException
+    {
+        var stream = Flow
+            .stream(() -> new IntegerGenerator(0, 1000)).setMaxParallelism(4)
+            .into(i -> i * 2)
+        ;
+        var sum = stream.accumulate(FoldingAccumulator.<Integer, Long>of(() -> 0L, (s, i) -> s + i)).collect();
+        var count = stream.accumulate(FoldingAccumulator.<Integer, Integer, String>of(() -> 0, (c, i) -> c + 1, c -> "count:" + c)).collect();
+        var all = stream.accumulate(Collection::size).collect();
+
+        var output = Flow.runAsParallel(4, sum, count, all);
+
+        Assertions.assertEquals(999_000L, output.get(sum));
+        Assertions.assertEquals("count:1000", output.get(count));
+        Assertions.assertEquals(1000, output.get(all));
+    }
+
+    @Test
+    void testStreamCombiningAccumulator() throws RunException, CompilationException
+    {
+        var stream = Flow
+            .stream(() -> new IntegerGenerator(0, 10_000)).setMaxParallelism(8)
+            .into(i -> i * 2)
+        ;
+        var sum = stream.accumulate(CombiningAccumulator.<Integer, Long>of(() -> 0L, (s, i) -> s + i, Long::sum)).collect();
+        var groups = stream.accumulate(CombiningAccumulator.of(Collectors.groupingBy((Integer i) -> i % 10, Collectors.counting()))).collect();
+
+        var output = Flow.runAsParallel(8, sum, groups);
+        Map<Integer, Long> counts = output.get(groups);
+
+        Assertions.assertEquals(99_990_000L, output.get(sum));
+        Assertions.assertEquals(5, counts.size());
+        for (int key : List.of(0, 2, 4, 6, 8))
+            Assertions.assertEquals(2000L, counts.get(key));
+    }
+
+    @Test
+    void testStreamBatch() throws RunException, CompilationException
+    {
+        var assertion = new FlowAssertion();
+        var stream = Flow
+            .stream(() -> new IntegerGenerator(0, 1000)).setBatchSize(16).setMaxParallelism(4)
+            .interruptIf(i -> i % 3 == 0)
+            .join(Flow.from(() -> 2), (i, factor) -> i * factor)
+        ;
+        stream.sink(i -> assertion.activate());
+        var sum = stream.accumulate(FoldingAccumulator.<Integer, Long>of(() -> 0L, (s, i) -> s + i)).collect();
+        var all = stream.accumulate(Collection::size).collect();
+
+        var output = Flow.runAsParallel(4, sum, all);
+
+        Assertions.assertEquals(665_334L, output.get(sum));
+        Assertions.assertEquals(666, output.get(all));
+        Assertions.assertEquals(666, assertion.getActivationCount());
+    }
+
+    @Test
+    void testStreamBulkGeneratorEmptyPage()
+    {
+        var generator = new PagedIntegerGenerator(0, 1000, true);
+        var flow = Flow
+            .stream(() -> generator).setBatchSize(16).setMaxParallelism(4)
+            .into(i -> i * 2)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> Flow.runAsParallel(4, flow));
+
+        Assertions.assertEquals(1000, output.get(flow));
+        /* 63 pages holding items, then a single empty page ending the stream */
+        Assertions.assertEquals(64, generator.getPageCount());
+    }
+
+    @Test
+    void testStreamBulkGenerator() throws RunException, CompilationException
+    {
+        var generator = new PagedIntegerGenerator(0, 1000);
+        var stream = Flow
+            .stream(() -> generator).setBatchSize(16).setMaxParallelism(4)
+            .interruptIf(i -> i % 3 == 0)
+            .join(Flow.from(() -> 2), (i, factor) -> i * factor)
+        ;
+        var sum = stream.accumulate(FoldingAccumulator.<Integer, Long>of(() -> 0L, (s, i) -> s + i)).collect();
+        var all = stream.accumulate(Collection::size).collect();
+
+        var output = Flow.runAsParallel(4, sum, all);
+
+        Assertions.assertEquals(665_334L, output.get(sum));
+        Assertions.assertEquals(666, output.get(all));
+        Assertions.assertEquals(63, generator.getPageCount());
+    }
+
+    @Test
+    void testStreamFusion() throws RunException, CompilationException
+    {
+        var stream = Flow
+            .stream(() -> new IntegerGenerator(0, 1000)).setMaxParallelism(4)
+            .into(i -> i + 1)
+            .into(i -> i * 2)
+            .interruptIf(i -> i % 3 == 0)
+            .into(i -> i - 1)
+        ;
+        var joined = stream
+            .join(Flow.from(() -> 10), Integer::sum)
+            .into(i -> i * 3)
+            .into(i -> i + 1)
+        ;
+        var sum = joined.accumulate(FoldingAccumulator.<Integer, Long>of(() -> 0L, (s, i) -> s + i)).collect();
+        var count = stream.accumulate(Collection::size).collect();
+
+        var expected = Flow.runAsPipeline(sum, count);
+        var runtime = new ParallelCompiler(4, false).setFusion(true).compile(sum, count);
+
+        try {
+            for (int i = 0 ; i < 3 ; ++i)
+            {
+                var output = runtime.run();
+
+                Assertions.assertEquals(667, (int) output.get(count));
+                Assertions.assertEquals((long) expected.get(sum), (long) output.get(sum));
+            }
+        }
+        finally {
+            runtime.shutdownThreadPool();
+        }
+    }
+
+    @Test
+    void testStreamAsync() throws RunException, CompilationException
+    {
+        var inFlight = new AtomicInteger(0);
+        var maxInFlight = new AtomicInteger(0);
+        AsyncTransformer<Integer, Integer> call = i -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            return CompletableFuture.supplyAsync(() -> {
+                inFlight.decrementAndGet();
+                return i * 2;
+            }, CompletableFuture.delayedExecutor(5, TimeUnit.MILLISECONDS));
+        };
+
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, 500)).setMaxParallelism(100)
+            .into(call)
+            .interruptIf(i -> i % 3 == 0)
+            .accumulate(FoldingAccumulator.<Integer, Long>of(() -> 0L, (s, i) -> s + i))
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(2, flow);
+
+        Assertions.assertEquals(166_334L, output.get(flow));
+        /* With only 2 workers, blocking calls couldn't have more than 2 requests in flight */
+        Assertions.assertTrue(maxInFlight.get() > 2);
+    }
+
+    @Test
+    void testStreamAsyncBatch() throws RunException, CompilationException
+    {
+        var loaded = new AtomicInteger(0);
+        AsyncTransformer<Integer, Integer> call = i -> i % 3 == 0
+            ? CompletableFuture.failedFuture(InterruptionException.interrupt())
+            : CompletableFuture.supplyAsync(() -> i, CompletableFuture.delayedExecutor(1, TimeUnit.MILLISECONDS))
+        ;
+        AsyncLoader<Integer> load = i -> CompletableFuture.runAsync(loaded::incrementAndGet);
+
+        var stream = Flow
+            .stream(() -> new AsyncIntegerGenerator(0, 200)).setBatchSize(8).setMaxParallelism(16)
+            .into(call)
+        ;
+        stream.into(load);
+        var flow = stream.accumulate(Collection::size).collect();
+
+        var output = Flow.runAsParallel(2, flow);
+
+        Assertions.assertEquals(133, output.get(flow));
+        Assertions.assertEquals(133, loaded.get());
+    }
+
+    @Test
+    void testStreamAsyncFailure() throws CompilationException
+    {
+        AsyncTransformer<Integer, Integer> call = i -> CompletableFuture.supplyAsync(() -> {
+            if (i == 50)
+                throw new IllegalStateException("Failing call");
+            return i;
+        });
+
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, 1000)).setMaxParallelism(16)
+            .into(call)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var exception = Assertions.assertThrows(ParallelRunException.class, () -> Flow.runAsParallel(2, flow));
+        Assertions.assertTrue(exception.getCause().getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    void testStreamAsyncBatchCallerThread() throws RunException, CompilationException
+    {
+        var io = java.util.concurrent.Executors.newSingleThreadExecutor(r -> new Thread(r, "foreign-io"));
+        var callers = new CopyOnWriteArrayList<String>();
+
+        try {
+            var flow = Flow
+                .stream(() -> new AsyncIntegerGenerator(0, 200, io, callers)).setBatchSize(8).setMaxParallelism(4)
+                .accumulate(Collection::size)
+                .collect()
+            ;
+
+            var output = Flow.runAsParallel(2, flow);
+
+            Assertions.assertEquals(200, output.get(flow));
+            /* The generator is only ever called back from the runtime's own threads, never from the one completing its futures */
+            Assertions.assertFalse(callers.isEmpty());
+            Assertions.assertFalse(callers.contains("foreign-io"));
+        }
+        finally {
+            io.shutdownNow();
+        }
+    }
+
+    @Test
+    void testStreamAsyncBatchCompleted() throws RunException, CompilationException
+    {
+        /* Futures are completed upon return, a large chunk of them mustn't result in a deep recursion */
+        var flow = Flow
+            .stream(() -> new AsyncIntegerGenerator(0, 100_000, Runnable::run, Collections.synchronizedList(new ArrayList<>()))).setBatchSize(50_000)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Flow.runAsParallel(2, flow);
+
+        Assertions.assertEquals(100_000, output.get(flow));
+    }
+
+    private static class AsyncIntegerGenerator implements AsyncGenerator<Integer>
+    {
+        private final int end;
+        private final Executor executor;
+        private final List<String> callers;
+        private int current;
+
+        private AsyncIntegerGenerator(int start, int end)
+        {
+            this(start, end, CompletableFuture.delayedExecutor(1, TimeUnit.MILLISECONDS), new CopyOnWriteArrayList<>());
+        }
+
+        private AsyncIntegerGenerator(int start, int end, Executor executor, List<String> callers)
+        {
+            this.current = start;
+            this.end = end;
+            this.executor = executor;
+            this.callers = callers;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            this.callers.add(Thread.currentThread().getName());
+            return this.current < this.end;
+        }
+
+        @Override
+        public CompletionStage<Integer> generateAsync()
+        {
+            this.callers.add(Thread.currentThread().getName());
+            int value = this.current++;
+            return CompletableFuture.supplyAsync(() -> value, this.executor);
+        }
+    }
 }
@@ -0,0 +1,114 @@
+package com.noleme.flow.impl.parallel.runtime.heap;
+
+import com.noleme.flow.io.input.Input;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Pierre Lecerf (plecerf@lumiomedical.com)
+ * Created on 2021/07/21
+ */
+@SuppressWarnings("deprecation")
+public class ConcurrentHashHeapTest
+{
+    private static final int CONSUMERS = 8;
+    private static final int ROUNDS = 10_000;
+
+    @Test
+    void test_concurrentConsume() throws Exception
+    {
+        var heap = new ConcurrentHashHeap(Input.empty());
+        var value = new Object();
+        var consumed = new AtomicInteger(0);
+        var pool = Executors.newFixedThreadPool(CONSUMERS);
+
+        try {
+            for (int round = 0 ; round < 1_000 ; ++round)
+            {
+                heap.push("node", value, CONSUMERS);
+                heap.push("stream", round, value, CONSUMERS);
+
+                var barrier = new CyclicBarrier(CONSUMERS);
+                var futures = new Future<?>[CONSUMERS];
+                final int offset = round;
+
+                for (int i = 0 ; i < CONSUMERS ; ++i)
+                {
+                    futures[i] = pool.submit(() -> {
+                        barrier.await();
+                        if (heap.consume("node") == value)
+                            consumed.incrementAndGet();
+                        if (heap.consume("stream", offset) == value)
+                            consumed.incrementAndGet();
+                        return null;
+                    });
+                }
+                for (Future<?> future : futures)
+                    future.get(10, TimeUnit.SECONDS);
+
+                /* Every consumer is served the value, and the last one removes it */
+                Assertions.assertFalse(heap.has("node"));
+                Assertions.assertFalse(heap.has("stream", offset));
+            }
+
+            Assertions.assertEquals(1_000 * CONSUMERS * 2, consumed.get());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void test_consumeRacingPush() throws Exception
+    {
+        var heap = new ConcurrentHashHeap(Input.empty());
+        var pool = Executors.newFixedThreadPool(2);
+
+        try {
+            for (int round = 0 ; round < ROUNDS ; ++round)
+            {
+                var previous = "previous-" + round;
+                var next = "next-" + round;
+                heap.push("node", previous, 1);
+                heap.push("stream", 0, previous, 1);
+
+                var barrier = new CyclicBarrier(2);
+                Future<Object[]> consumer = pool.submit(() -> {
+                    barrier.await();
+                    return new Object[]{ heap.consume("node"), heap.consume("stream", 0) };
+                });
+                Future<?> producer = pool.submit(() -> {
+                    barrier.await();
+                    heap.push("node", next, 1);
+                    heap.push("stream", 0, next, 1);
+                    return null;
+                });
+
+                Object[] consumed = consumer.get(10, TimeUnit.SECONDS);
+                producer.get(10, TimeUnit.SECONDS);
+
+                /* A consumer releasing the previous value mustn't remove the value pushed in the meantime */
+                if (consumed[0] == previous)
+                    Assertions.assertSame(next, heap.peek("node"));
+                if (consumed[1] == previous)
+                    Assertions.assertSame(next, heap.peek("stream", 0));
+
+                /* The heap is emptied for the next round */
+                while (heap.has("node"))
+                    heap.consume("node");
+                while (heap.has("stream", 0))
+                    heap.consume("stream", 0);
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+}
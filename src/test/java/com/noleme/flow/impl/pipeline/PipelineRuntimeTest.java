@@ -4,10 +4,30 @@ import com.noleme.flow.FlowAssertion;
 import com.noleme.flow.FlowDealer;
 import com.noleme.flow.Flow;
 import com.noleme.flow.FlowState;
+import com.noleme.flow.actor.generator.IntegerGenerator;
+import com.noleme.flow.actor.loader.AsyncLoader;
+import com.noleme.flow.actor.transformer.AsyncTransformer;
 import com.noleme.flow.compiler.CompilationException;
 import com.noleme.flow.compiler.RunException;
+import com.noleme.flow.impl.pipeline.runtime.heap.accounting.AccountingConfig;
+import com.noleme.flow.impl.pipeline.runtime.heap.spill.SerializableCodec;
+import com.noleme.flow.impl.pipeline.runtime.heap.spill.SpillConfig;
+import com.noleme.flow.io.input.Input;
+import com.noleme.flow.node.Node;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Pierre Lecerf (plecerf@lumiomedical.com)
@@ -191,5 +211,288 @@ public class PipelineRuntimeTest
         Assertions.assertEquals(10, stateC.getValue());
     }
 
+    @Test
+    void testNullValue() throws RunException, CompilationException
+    {
+        FlowState<Integer> stateA = new FlowState<>();
+        FlowState<Integer> stateB = new FlowState<>();
+
+        var flow = Flow.from(() -> (Integer) null)
+            .driftSink(stateA::setValue)
+            .into(i -> i == null ? -1 : i)
+            .into(stateB::setValue);
+
+        Flow.runAsPipeline(flow);
+
+        Assertions.assertNull(stateA.getValue());
+        Assertions.assertEquals(-1, stateB.getValue());
+    }
+
+    @Test
+    void testSpillingHeap(@TempDir Path directory) throws RunException, CompilationException, IOException
+    {
+        var source = Flow.from(() -> {
+            int[] values = new int[1_000_000];
+            for (int i = 0 ; i < values.length ; ++i)
+                values[i] = i;
+            return values;
+        });
+        var sumA = source.pipe(values -> Arrays.stream(values).asLongStream().sum()).collect();
+        var sumB = source.pipe(values -> Arrays.stream(values).asLongStream().sum()).collect();
+        var sumC = source.pipe(values -> Arrays.stream(values).asLongStream().sum()).collect();
+
+        var codec = new CountingCodec();
+        var runtime = new PipelineCompiler()
+            .setSpillConfig(new SpillConfig(1024).setDirectory(directory).setCodec(codec))
+            .compile(sumA, sumB, sumC)
+        ;
+
+        var output = runtime.run();
+
+        Assertions.assertEquals(499_999_500_000L, output.get(sumA));
+        Assertions.assertEquals(499_999_500_000L, output.get(sumB));
+        Assertions.assertEquals(499_999_500_000L, output.get(sumC));
+        Assertions.assertEquals(1, codec.encoded.get());
+        try (var files = Files.list(directory)) {
+            Assertions.assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void testHeapAccounting() throws RunException, CompilationException
+    {
+        var source = Flow.from(() -> new int[1000]).name("source");
+        var sumA = source.pipe(values -> Arrays.stream(values).sum()).collect();
+        var sumB = source.pipe(values -> new int[values.length * 2]).name("doubled").pipe(values -> values.length).collect();
+
+        var runtime = new PipelineCompiler()
+            .setAccountingConfig(new AccountingConfig().setSizer(value -> value instanceof int[] ? ((int[]) value).length * 4L : 0))
+            .compile(sumA, sumB)
+        ;
+
+        var output = runtime.run();
+        var report = output.heapReport();
+
+        Assertions.assertEquals(0, output.get(sumA));
+        Assertions.assertEquals(2000, output.get(sumB));
+        Assertions.assertNotNull(report);
+        Assertions.assertEquals(12_000, report.getPeakBytes());
+        Assertions.assertEquals(0, report.getLiveBytes());
+        Assertions.assertEquals("doubled", report.getNodes().get(0).getName());
+        Assertions.assertEquals(8_000, report.getNodes().get(0).getPeakBytes());
+        Assertions.assertEquals("source", report.getNodes().get(1).getName());
+        Assertions.assertEquals(4_000, report.getNodes().get(1).getPeakBytes());
+    }
+
+    @Test
+    void testHeapReleaseAfterStream() throws RunException, CompilationException
+    {
+        /* The side input is only consumed by stream nodes, it has to be released once the stream is over */
+        var side = Flow.from(() -> new int[1000]).name("side");
+        var count = Flow
+            .stream(() -> new IntegerGenerator(0, 50_000))
+            .join(side, (i, values) -> i + values.length)
+            .join(side, (i, values) -> i - values.length)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var runtime = new PipelineCompiler()
+            .setAccountingConfig(new AccountingConfig().setSizer(value -> value instanceof int[] ? ((int[]) value).length * 4L : 0))
+            .compile(count)
+        ;
+
+        var output = runtime.run();
+        var report = output.heapReport();
+
+        Assertions.assertEquals(50_000, output.get(count));
+        Assertions.assertEquals(4_000, report.getPeakBytes());
+        Assertions.assertEquals(0, report.getLiveBytes());
+    }
+
+    @Test
+    void testHeapReleaseOfBlockedOffsets() throws RunException, CompilationException
+    {
+        /* The join is blocked by its side input, so the arrays it was expected to consume have to be released at each offset */
+        var side = Flow.from(() -> 0).interruptIf(i -> true);
+        var arrays = Flow
+            .stream(() -> new IntegerGenerator(0, 1000))
+            .pipe(i -> new int[10]).name("arrays")
+        ;
+        arrays.join(side, (values, i) -> values.length);
+        /* Copies don't have any consumer, so they shouldn't be kept at all */
+        arrays.pipe(int[]::clone).name("copies");
+        var count = arrays
+            .pipe(values -> values.length)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var runtime = new PipelineCompiler()
+            .setAccountingConfig(new AccountingConfig().setSizer(value -> value instanceof int[] ? ((int[]) value).length * 4L : 0))
+            .compile(count)
+        ;
+
+        var output = runtime.run();
+
+        Assertions.assertEquals(1000, output.get(count));
+        Assertions.assertEquals(0, output.heapReport().getLiveBytes());
+    }
+
+    @Test
+    void testHotMode() throws RunException, CompilationException
+    {
+        var source = Flow.<Integer>from("value");
+        var sum = source
+            .stream(value -> new IntegerGenerator(0, value))
+            .accumulate(values -> values.stream().mapToInt(Integer::intValue).sum())
+            .collect()
+        ;
+        var even = source
+            .interruptIf(value -> value % 2 != 0)
+            .pipe(value -> value / 2)
+            .collect()
+        ;
+
+        var runtime = new PipelineCompiler().setHotMode(true).compile(sum, even);
+
+        /* Interrupted runs are interleaved with complete ones, so that recycled heaps and blocking states are checked for leftovers */
+        for (int value = 0 ; value < 50 ; ++value)
+        {
+            var output = runtime.run(Input.of("value", value));
+
+            Assertions.assertEquals(value * (value - 1) / 2, (int) output.get(sum));
+            if (value % 2 == 0)
+                Assertions.assertEquals(value / 2, (int) output.get(even));
+            else
+                Assertions.assertFalse(output.has(even));
+        }
+    }
+
+    @Test
+    void testHotModeFailure() throws RunException, CompilationException
+    {
+        var checked = Flow.<Integer>from("value")
+            .pipe(value -> {
+                if (value == 13)
+                    throw new IllegalStateException("Unlucky value");
+                return value * 2;
+            })
+            .collect()
+        ;
+
+        var runtime = new PipelineCompiler().setHotMode(true).compile(checked);
+
+        var failure = Assertions.assertThrows(PipelineRunException.class, () -> runtime.run(Input.of("value", 13)));
+        var failedOutput = failure.getHeap().getOutput();
+
+        for (int value = 0 ; value < 10 ; ++value)
+            Assertions.assertEquals(value * 2, (int) runtime.run(Input.of("value", value)).get(checked));
+
+        /* The heap of a failed run is exposed by its exception, so it mustn't be recycled by later runs */
+        Assertions.assertSame(failedOutput, failure.getHeap().getOutput());
+    }
+
+    @Test
+    void testPipeFusion() throws RunException, CompilationException
+    {
+        var tapped = Flow.<Integer>from("value")
+            .pipe(value -> value + 1)
+            .pipe(value -> value * 2)
+            .pipe(value -> value - 1)
+        ;
+        var tap = tapped.collect();
+        var result = tapped
+            .pipe(value -> value * 10)
+            .interruptIf(value -> value > 100)
+            .pipe(value -> value + 5)
+            .collect()
+        ;
+
+        var runtime = new PipelineCompiler().compile(tap, result);
+        var fusedRuntime = new PipelineCompiler().setFusion(true).compile(tap, result);
+
+        for (int value = 0 ; value < 10 ; ++value)
+        {
+            var expected = runtime.run(Input.of("value", value));
+            var output = fusedRuntime.run(Input.of("value", value));
+
+            Assertions.assertEquals(value * 2 + 1, (int) output.get(tap));
+            Assertions.assertEquals(expected.has(result), output.has(result));
+            if (expected.has(result))
+                Assertions.assertEquals((int) expected.get(result), (int) output.get(result));
+        }
+    }
 
+    @Test
+    void testPipeFusionFailure() throws CompilationException
+    {
+        var flow = Flow.<Integer>from("value")
+            .pipe(value -> value + 1)
+            .pipe(value -> {
+                if (value == 3)
+                    throw new IllegalStateException("Failing stage");
+                return value;
+            }).name("failing-stage")
+            .pipe(value -> value * 2)
+            .collect()
+        ;
+
+        var runtime = new PipelineCompiler().setFusion(true).compile(flow);
+        var exception = Assertions.assertThrows(PipelineRunException.class, () -> runtime.run(Input.of("value", 2)));
+
+        Assertions.assertTrue(exception.getMessage().contains("failing-stage#"));
+        Assertions.assertTrue(exception.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    void testAsyncNodes() throws RunException, CompilationException
+    {
+        var loaded = new AtomicInteger(0);
+        AsyncTransformer<Integer, Integer> call = value -> CompletableFuture.supplyAsync(() -> value * 2);
+        AsyncLoader<Integer> load = value -> CompletableFuture.runAsync(loaded::incrementAndGet);
+
+        var flow = Flow.<Integer>from("value").pipe(call);
+        flow.sink(load);
+        var result = flow
+            .pipe(value -> value + 1)
+            .pipe(call)
+            .collect()
+        ;
+
+        var output = Flow.runAsPipeline(Input.of("value", 3), result);
+
+        Assertions.assertEquals(14, (int) output.get(result));
+        Assertions.assertEquals(1, loaded.get());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    void testBlockBranch()
+    {
+        var source = Flow.from(() -> 3);
+        var pipe = source.pipe(value -> value + 1);
+        var stream = pipe.stream(max -> new IntegerGenerator(0, max));
+        var accumulator = stream.pipe(value -> value * 2).accumulate();
+
+        Set<Node> blocked = new HashSet<>();
+        PipelineRuntime.blockBranch((Node) pipe, blocked);
+
+        Assertions.assertFalse(blocked.contains((Node) source));
+        Assertions.assertTrue(blocked.contains((Node) pipe));
+        Assertions.assertTrue(blocked.contains((Node) stream));
+        Assertions.assertFalse(blocked.contains((Node) accumulator));
+    }
+
+    private static class CountingCodec extends SerializableCodec
+    {
+        private final AtomicInteger encoded = new AtomicInteger();
+
+        @Override
+        public void encode(Object value, OutputStream output) throws IOException
+        {
+            this.encoded.incrementAndGet();
+            super.encode(value, output);
+        }
+    }
 }
@@ -69,4 +69,71 @@ public class PipelineStreamInterruptionTest
 
         Assertions.assertEquals(3, output.get(flow));
     }
+
+    @Test
+    void testInterruptBeforeStream() throws RunException, CompilationException
+    {
+        var assertion = new FlowAssertion();
+
+        var flow = Flow
+            .from(() -> List.of(1, 2, 3, 4, 5))
+            .interruptIf(list -> true)
+            .stream(IterableGenerator::new)
+            .into(i -> {
+                assertion.activate();
+                return i;
+            })
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Flow.runAsPipeline(flow);
+
+        Assertions.assertFalse(assertion.isActivated());
+        Assertions.assertEquals(0, output.get(flow));
+    }
+
+    @Test
+    void testInterruptStreamSideInput() throws RunException, CompilationException
+    {
+        var side = Flow.from(() -> 3).interruptIf(i -> true);
+
+        var flow = Flow
+            .from(() -> List.of(1, 2, 3, 4, 5))
+            .stream(IterableGenerator::new)
+            .join(side, Integer::sum)
+            .into(i -> i * 2)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Flow.runAsPipeline(flow);
+
+        Assertions.assertEquals(0, output.get(flow));
+    }
+
+    @Test
+    void testStreamInterruptBranches() throws RunException, CompilationException
+    {
+        var stream = Flow
+            .from(() -> List.of(1, 2, 3, 4, 5, 6))
+            .stream(IterableGenerator::new)
+            .interruptIf(i -> i % 2 == 0)
+        ;
+        var sum = stream
+            .into(i -> i * 10)
+            .accumulate(values -> values.stream().mapToInt(Integer::intValue).sum())
+            .collect()
+        ;
+        var count = stream
+            .into(i -> i * 100)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Flow.runAsPipeline(sum, count);
+
+        Assertions.assertEquals(90, output.get(sum));
+        Assertions.assertEquals(3, output.get(count));
+    }
 }
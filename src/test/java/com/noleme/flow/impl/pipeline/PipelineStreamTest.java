@@ -3,13 +3,17 @@ package com.noleme.flow.impl.pipeline;
 import com.noleme.flow.Flow;
 import com.noleme.flow.FlowAssertion;
 import com.noleme.flow.actor.accumulator.AccumulationException;
+import com.noleme.flow.actor.accumulator.FoldingAccumulator;
 import com.noleme.flow.actor.generator.IntegerGenerator;
+import com.noleme.flow.actor.generator.PagedIntegerGenerator;
 import com.noleme.flow.compiler.CompilationException;
 import com.noleme.flow.compiler.RunException;
 import com.noleme.flow.impl.pipeline.stream.IterableGenerator;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -248,4 +252,213 @@ public class PipelineStreamTest
         Assertions.assertTrue(assertion.isActivated());
         Assertions.assertEquals(9, assertion.getActivationCount());
     }
+
+    @Test
+    void testStreamPrefetch() throws RunException, CompilationException
+    {
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, 1000)).setPrefetch(16)
+            .into(i -> i * 2)
+            .accumulate(ArrayList::new)
+            .collect()
+        ;
+
+        var output = Flow.runAsPipeline(flow);
+        List<Integer> values = output.get(flow);
+
+        Assertions.assertEquals(1000, values.size());
+        for (int i = 0 ; i < values.size() ; ++i)
+            Assertions.assertEquals(i * 2, values.get(i));
+    }
+
+    @Test
+    void testStreamPrefetchClosedOnFailure() throws InterruptedException
+    {
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, Integer.MAX_VALUE)).setPrefetch(4).name("pipeline-prefetch-failure")
+            .into(i -> {
+                if (i == 10)
+                    throw new IllegalStateException("Failing pipe");
+                return i;
+            })
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        Assertions.assertThrows(PipelineRunException.class, () -> Flow.runAsPipeline(flow));
+
+        /* The prefetching thread of the abandoned stream is expected to stop along with the run */
+        Thread prefetcher = Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> thread.getName().equals("flow-prefetch-pipeline-prefetch-failure"))
+            .findFirst()
+            .orElse(null)
+        ;
+        if (prefetcher != null)
+            prefetcher.join(5000);
+
+        Assertions.assertTrue(prefetcher == null || !prefetcher.isAlive());
+    }
+
+    @Test
+    void testStreamFoldingAccumulator() throws RunException, CompilationException
+    {
+        var stream = Flow
+            .stream(() -> new IntegerGenerator(0, 1000))
+            .into(i -> i * 2)
+        ;
+        var sum = stream.accumulate(FoldingAccumulator.<Integer, Long>of(() -> 0L, (s, i) -> s + i)).collect();
+        var all = stream.accumulate(ArrayList::new).collect();
+
+        var output = Flow.runAsPipeline(sum, all);
+        List<Integer> values = output.get(all);
+
+        Assertions.assertEquals(999_000L, output.get(sum));
+        Assertions.assertEquals(1000, values.size());
+    }
+
+    @Test
+    void testStreamBatch() throws RunException, CompilationException
+    {
+        var assertion = new FlowAssertion();
+        var stream = Flow
+            .stream(() -> new IntegerGenerator(0, 1000)).setBatchSize(16)
+            .interruptIf(i -> i % 3 == 0)
+            .join(Flow.from(() -> 2), (i, factor) -> i * factor)
+        ;
+        stream.sink(i -> assertion.activate());
+        var sum = stream.accumulate(FoldingAccumulator.<Integer, Long>of(() -> 0L, (s, i) -> s + i)).collect();
+        var all = stream.accumulate(ArrayList::new).collect();
+
+        var output = Flow.runAsPipeline(sum, all);
+        List<Integer> values = output.get(all);
+
+        Assertions.assertEquals(665_334L, output.get(sum));
+        Assertions.assertEquals(666, values.size());
+        Assertions.assertEquals(666, assertion.getActivationCount());
+        for (int i = 1 ; i < values.size() ; ++i)
+            Assertions.assertTrue(values.get(i - 1) < values.get(i));
+    }
+
+    @Test
+    void testStreamBulkGeneratorEmptyPage()
+    {
+        var generator = new PagedIntegerGenerator(0, 1000, true);
+        var flow = Flow
+            .stream(() -> generator).setBatchSize(16)
+            .into(i -> i * 2)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var output = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> Flow.runAsPipeline(flow));
+
+        Assertions.assertEquals(1000, output.get(flow));
+        /* 63 pages holding items, then a single empty page ending the stream */
+        Assertions.assertEquals(64, generator.getPageCount());
+    }
+
+    @Test
+    void testStreamBulkGenerator() throws RunException, CompilationException
+    {
+        var generator = new PagedIntegerGenerator(0, 1000);
+        var stream = Flow
+            .stream(() -> generator).setBatchSize(16)
+            .interruptIf(i -> i % 3 == 0)
+            .join(Flow.from(() -> 2), (i, factor) -> i * factor)
+        ;
+        var sum = stream.accumulate(FoldingAccumulator.<Integer, Long>of(() -> 0L, (s, i) -> s + i)).collect();
+        var all = stream.accumulate(ArrayList::new).collect();
+
+        var output = Flow.runAsPipeline(sum, all);
+        List<Integer> values = output.get(all);
+
+        Assertions.assertEquals(665_334L, output.get(sum));
+        Assertions.assertEquals(666, values.size());
+        Assertions.assertEquals(63, generator.getPageCount());
+        for (int i = 1 ; i < values.size() ; ++i)
+            Assertions.assertTrue(values.get(i - 1) < values.get(i));
+    }
+
+    @Test
+    void testStreamBatchInterruption() throws RunException, CompilationException
+    {
+        var assertion = new FlowAssertion();
+        var stream = Flow
+            .stream(() -> new IntegerGenerator(0, 10)).setBatchSize(4)
+            .interruptIf(i -> i < 8)
+        ;
+        stream.into(i -> i * 2).sink(i -> assertion.activate());
+        var all = stream.accumulate(ArrayList::new).collect();
+
+        var output = Flow.runAsPipeline(all);
+
+        Assertions.assertEquals(List.of(8, 9), output.get(all));
+        Assertions.assertEquals(2, assertion.getActivationCount());
+    }
+
+    @Test
+    void testStreamJoinBeforeAccumulation() throws RunException, CompilationException
+    {
+        /* Node uids are random, which used to make the joined source occasionally sorted after the accumulator, hence the repetition */
+        for (int i = 0 ; i < 20 ; ++i)
+        {
+            var stream = Flow.stream(() -> new IntegerGenerator(0, 100));
+            stream.join(Flow.from(() -> 10), Integer::sum).sink(v -> {});
+            var all = stream.accumulate(Collection::size).collect();
+
+            var output = Flow.runAsPipeline(all);
+
+            Assertions.assertEquals(100, (int) output.get(all));
+        }
+    }
+
+    @Test
+    void testStreamFusion() throws RunException, CompilationException
+    {
+        var stream = Flow
+            .stream(() -> new IntegerGenerator(0, 1000))
+            .into(i -> i + 1)
+            .into(i -> i * 2)
+            .interruptIf(i -> i % 3 == 0)
+            .into(i -> i - 1)
+        ;
+        var joined = stream
+            .join(Flow.from(() -> 10), Integer::sum)
+            .into(i -> i * 3)
+            .into(i -> i + 1)
+        ;
+        var sum = joined.accumulate(FoldingAccumulator.<Integer, Long>of(() -> 0L, (s, i) -> s + i)).collect();
+        var all = stream.accumulate(ArrayList::new).collect();
+
+        var expected = new PipelineCompiler().compile(sum, all).run();
+        var output = new PipelineCompiler().setFusion(true).compile(sum, all).run();
+        List<Integer> values = output.get(all);
+
+        Assertions.assertEquals(667, values.size());
+        Assertions.assertEquals(expected.get(all), values);
+        Assertions.assertEquals((long) expected.get(sum), (long) output.get(sum));
+    }
+
+    @Test
+    void testStreamFusionFailure() throws CompilationException
+    {
+        var flow = Flow
+            .stream(() -> new IntegerGenerator(0, 100)).setBatchSize(8)
+            .into(i -> i + 1)
+            .into(i -> {
+                if (i == 50)
+                    throw new IllegalStateException("Failing stage");
+                return i;
+            }).name("failing-stage")
+            .into(i -> i * 2)
+            .accumulate(Collection::size)
+            .collect()
+        ;
+
+        var runtime = new PipelineCompiler().setFusion(true).compile(flow);
+        var exception = Assertions.assertThrows(PipelineRunException.class, runtime::run);
+
+        Assertions.assertTrue(exception.getMessage().contains("failing-stage#"));
+        Assertions.assertTrue(exception.getCause() instanceof IllegalStateException);
+    }
 }